@@ -0,0 +1,53 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * BenchDatabase - creates a throw-away SQLite file with the Users and Stocks tables and points
+ * StockDB at it. Must run before anything touches ServerConfig, since its settings are read once.
+ */
+public class BenchDatabase {
+
+    public static final int USERS = 1000;
+
+    /**
+     * Creates the database with USERS users, each holding a few positions.
+     *
+     * @return the database file, to be deleted by the caller
+     */
+    public static File create() throws IOException, SQLException {
+        File file = File.createTempFile("stock_exchange_bench", ".db");
+        file.deleteOnExit();
+        String url = "jdbc:sqlite:" + file.getAbsolutePath();
+        System.setProperty("db.url", url);
+
+        try (Connection connection = DriverManager.getConnection(url);
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE Users (" +
+                    "ID INTEGER PRIMARY KEY AUTOINCREMENT, email TEXT, first_name TEXT, last_name TEXT, " +
+                    "user_name TEXT NOT NULL, password TEXT, usd_balance DOUBLE NOT NULL)");
+            statement.executeUpdate("CREATE TABLE Stocks (" +
+                    "ID INTEGER PRIMARY KEY AUTOINCREMENT, stock_symbol VARCHAR(4) NOT NULL, " +
+                    "stock_name VARCHAR(20) NOT NULL, stock_balance DOUBLE, user_id INTEGER, " +
+                    "FOREIGN KEY (user_id) REFERENCES Users (ID))");
+
+            connection.setAutoCommit(false);
+            for (int i = 1; i <= USERS; i++) {
+                statement.executeUpdate("INSERT INTO Users (email, first_name, last_name, user_name, password, " +
+                        "usd_balance) VALUES ('user" + i + "@example.com', 'First', 'Last', 'user" + i +
+                        "', 'secret', 1000000000)");
+                for (String symbol : new String[]{"AMD", "MSFT", "APPL"}) {
+                    statement.executeUpdate("INSERT INTO Stocks (stock_symbol, stock_name, stock_balance, " +
+                            "user_id) VALUES ('" + symbol + "', '" + symbol + "', 1000000, " + i + ")");
+                }
+            }
+            connection.commit();
+        }
+        return file;
+    }
+}
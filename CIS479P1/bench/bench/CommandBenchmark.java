@@ -0,0 +1,63 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CommandBenchmark - BUY, SELL, LIST and BALANCE end to end through Server.processCommand
+ * against a temporary SQLite database (see BenchDatabase).
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandBenchmark {
+
+    private File database;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = BenchDatabase.create();
+        ServerAccess.loadAccountCache();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ServerAccess.closeDatabase();
+        database.delete();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        final Object session = ServerAccess.newSession();
+    }
+
+    private static int randomUser() {
+        return 1 + ThreadLocalRandom.current().nextInt(BenchDatabase.USERS);
+    }
+
+    @Benchmark
+    public String buy(Client client) {
+        return ServerAccess.processCommand("BUY AMD 1 10.5 " + randomUser(), client.session);
+    }
+
+    @Benchmark
+    public String sell(Client client) {
+        return ServerAccess.processCommand("SELL MSFT 1 10.5 " + randomUser(), client.session);
+    }
+
+    @Benchmark
+    public String list(Client client) {
+        return ServerAccess.processCommand("LIST " + randomUser(), client.session);
+    }
+
+    @Benchmark
+    public String balance(Client client) {
+        return ServerAccess.processCommand("BALANCE " + randomUser(), client.session);
+    }
+}
@@ -0,0 +1,51 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CommandParserBenchmark - CommandParser against the String.split based parsing that
+ * processCommand used before. Run with "-prof gc" to compare allocations per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandParserBenchmark {
+
+    @Param({"BUY AMD 12.5 101.25 42", "LIST 42", "buy AMD x 1 1"})
+    public String line;
+
+    private final Object command = ServerAccess.newCommand();
+
+    @Benchmark
+    public void commandParser(Blackhole blackhole) {
+        blackhole.consume(ServerAccess.parse(line, command));
+        blackhole.consume(ServerAccess.amount(command));
+        blackhole.consume(ServerAccess.stockSymbol(command));
+    }
+
+    @Benchmark
+    public void stringSplit(Blackhole blackhole) {
+        // The parsing processCommand did before CommandParser.
+        try {
+            String[] parts = line.trim().split(" ");
+            String verb = parts[0].toUpperCase();
+            blackhole.consume(verb);
+            if (verb.equals("BUY") || verb.equals("SELL")) {
+                blackhole.consume(parts[1]);
+                blackhole.consume(Double.parseDouble(parts[2]));
+                blackhole.consume(Double.parseDouble(parts[3]));
+                blackhole.consume(Integer.parseInt(parts[4]));
+            } else {
+                blackhole.consume(Integer.parseInt(parts[1]));
+            }
+        } catch (Exception e) {
+            blackhole.consume(e);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.Socket;
+
+/**
+ * ServerAccess - the server classes live in the default package, which a named package cannot
+ * import, while JMH refuses benchmarks in the default package. The benchmarks therefore call the
+ * server through these method handles. They are static finals, so the JIT inlines them and the
+ * indirection does not show up in the measurements.
+ */
+final class ServerAccess {
+
+    private static final MethodHandle PROCESS_COMMAND;
+    private static final MethodHandle NEW_SESSION;
+    private static final MethodHandle NEW_COMMAND;
+    private static final MethodHandle PARSE;
+    private static final MethodHandle COMMAND_AMOUNT;
+    private static final MethodHandle COMMAND_SYMBOL;
+    private static final MethodHandle LOAD_ACCOUNT_CACHE;
+    private static final MethodHandle CLOSE_DATABASE;
+    private static final MethodHandle NEW_CLIENT_HANDLER;
+
+    static {
+        try {
+            Class<?> server = Class.forName("Server");
+            Class<?> session = Class.forName("Session");
+            Class<?> command = Class.forName("Command");
+            Class<?> parser = Class.forName("CommandParser");
+            Class<?> accountCache = Class.forName("AccountCache");
+            Class<?> stockDB = Class.forName("StockDB");
+            Class<?> clientHandler = Class.forName("ClientHandler");
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+            // processCommand is package-private, so it needs a private lookup into Server.
+            PROCESS_COMMAND = MethodHandles.privateLookupIn(server, lookup)
+                    .findStatic(server, "processCommand", MethodType.methodType(String.class, String.class, session))
+                    .asType(MethodType.methodType(String.class, String.class, Object.class));
+            NEW_SESSION = lookup.findConstructor(session, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+            NEW_COMMAND = lookup.findConstructor(command, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+            PARSE = lookup.findStatic(parser, "parse", MethodType.methodType(boolean.class, CharSequence.class, command))
+                    .asType(MethodType.methodType(boolean.class, CharSequence.class, Object.class));
+            COMMAND_AMOUNT = lookup.findVirtual(command, "getAmount", MethodType.methodType(long.class))
+                    .asType(MethodType.methodType(long.class, Object.class));
+            COMMAND_SYMBOL = lookup.findVirtual(command, "getStockSymbol", MethodType.methodType(String.class))
+                    .asType(MethodType.methodType(String.class, Object.class));
+            LOAD_ACCOUNT_CACHE = lookup.findStatic(accountCache, "load", MethodType.methodType(void.class));
+            CLOSE_DATABASE = lookup.findStatic(stockDB, "close", MethodType.methodType(void.class));
+            NEW_CLIENT_HANDLER = lookup.findConstructor(clientHandler, MethodType.methodType(void.class, Socket.class))
+                    .asType(MethodType.methodType(Runnable.class, Socket.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private ServerAccess() {
+    }
+
+    static String processCommand(String line, Object session) {
+        try {
+            return (String) PROCESS_COMMAND.invokeExact(line, session);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static Object newSession() {
+        try {
+            return (Object) NEW_SESSION.invokeExact();
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static Object newCommand() {
+        try {
+            return (Object) NEW_COMMAND.invokeExact();
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static boolean parse(CharSequence line, Object command) {
+        try {
+            return (boolean) PARSE.invokeExact(line, command);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static long amount(Object command) {
+        try {
+            return (long) COMMAND_AMOUNT.invokeExact(command);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static String stockSymbol(Object command) {
+        try {
+            return (String) COMMAND_SYMBOL.invokeExact(command);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static void loadAccountCache() {
+        try {
+            LOAD_ACCOUNT_CACHE.invokeExact();
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static void closeDatabase() {
+        try {
+            CLOSE_DATABASE.invokeExact();
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static Runnable newClientHandler(Socket socket) {
+        try {
+            return (Runnable) NEW_CLIENT_HANDLER.invokeExact(socket);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+}
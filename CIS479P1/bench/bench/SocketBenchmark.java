@@ -0,0 +1,96 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SocketBenchmark - loopback round trips through a real ClientHandler: the latency of one
+ * command at a time, and the throughput of pipelined commands on one connection.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SocketBenchmark {
+
+    private static final int PIPELINE_DEPTH = 100;
+
+    private File database;
+    private ServerSocket serverSocket;
+    private Socket socket;
+    private BufferedReader in;
+    private Writer out;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = BenchDatabase.create();
+        ServerAccess.loadAccountCache();
+
+        serverSocket = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            try {
+                ServerAccess.newClientHandler(serverSocket.accept()).run();
+            } catch (IOException e) {
+                // Benchmark finished.
+            }
+        }, "bench-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        socket = new Socket("127.0.0.1", serverSocket.getLocalPort());
+        socket.setTcpNoDelay(true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+
+        out.write("FRAMED\n");
+        out.flush();
+        readResponse();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        socket.close();
+        serverSocket.close();
+        ServerAccess.closeDatabase();
+        database.delete();
+    }
+
+    private int readResponse() throws IOException {
+        int lines = 0;
+        String line;
+        while ((line = in.readLine()) != null && !line.equals(".")) {
+            lines++;
+        }
+        return lines;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int balanceRoundTrip() throws IOException {
+        out.write("BALANCE 1\n");
+        out.flush();
+        return readResponse();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(PIPELINE_DEPTH)
+    public int balancePipelined() throws IOException {
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            out.write("BALANCE 1\n");
+        }
+        out.flush();
+
+        int lines = 0;
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            lines += readResponse();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,186 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AccountCache - in-memory copy of users and their stock positions, keyed by user ID.
+ * Users and Stocks only change through this server, so BALANCE and LIST are answered from
+ * memory and the cache is updated with the committed result of every BUY and SELL.
+ * At most ServerConfig.CACHE_MAX_USERS accounts are held; the least recently used one
+ * is dropped when the cache is full and reloaded from StockDB on its next use.
+ */
+public class AccountCache {
+
+    private static final IntLruMap<Account> accounts = new IntLruMap<>(ServerConfig.CACHE_MAX_USERS);
+
+    // Counts trades applied to accounts that were not cached, and invalidations, guarded by the
+    // accounts lock. A load that overlaps such a change may have read stale rows, so it is not cached.
+    private static long uncachedTrades = 0;
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    /**
+     * Loads users and their positions from StockDB until the cache is full. Called once at startup.
+     */
+    public static void load() {
+        Map<Integer, Account> loaded = new LinkedHashMap<>();
+        for (User user : StockDB.getUsers()) {
+            if (loaded.size() >= accounts.capacity()) break;
+            loaded.put(user.getId(), new Account(user));
+        }
+
+        for (Stock stock : StockDB.getStocks()) {
+            Account account = loaded.get(stock.getUserID());
+            if (account != null) {
+                account.add(stock);
+            }
+        }
+
+        synchronized (accounts) {
+            for (Account account : loaded.values()) {
+                accounts.put(account.user.getId(), account);
+            }
+        }
+        System.out.println("Account cache loaded " + loaded.size() + " users");
+    }
+
+    /**
+     * Returns the user with the given ID, reading it from StockDB only on a cache miss.
+     *
+     * @return User object, or null if no user exists with the given ID
+     */
+    public static User getUser(int userId) {
+        Account account = getAccount(userId);
+        return account == null ? null : account.user;
+    }
+
+    /**
+     * Adds the user's positions from index from (inclusive) to to (exclusive), in the order they
+     * were created, to the given list. LIST copies one chunk at a time this way instead of a
+     * snapshot of the whole portfolio.
+     *
+     * @return the user's number of positions, or -1 if the user does not exist
+     */
+    public static int copyPositions(int userId, int from, int to, List<Stock> into) {
+        Account account = getAccount(userId);
+        if (account == null) return -1;
+        synchronized (accounts) {
+            List<Stock> ordered = account.ordered;
+            int end = Math.min(to, ordered.size());
+            for (int i = from; i < end; i++) {
+                into.add(ordered.get(i));
+            }
+            return ordered.size();
+        }
+    }
+
+    /**
+     * Records a committed trade in the cached account, if that account is cached.
+     * Called with the values StockDB returned for the trade, so no extra read is needed.
+     */
+    public static void applyTrade(TradeRequest trade, TradeResult result) {
+        if (!result.isOk()) return;
+
+        synchronized (accounts) {
+            Account account = accounts.get(trade.getUserID());
+            if (account == null) {
+                uncachedTrades++;
+                return;
+            }
+
+            account.user.setBalance(result.getUsdBalance());
+
+            Stock updated = result.getPosition();
+            Stock cached = account.positions.get(trade.getStockSymbol());
+            if (cached != null) {
+                cached.setStockBalance(updated.getStockBalance());
+            } else {
+                account.add(updated);
+            }
+        }
+    }
+
+    /**
+     * Drops the cached account so its next use reloads it from StockDB. Used after changes that
+     * do not come back as a TradeResult, such as order book settlement.
+     */
+    public static void invalidate(int userId) {
+        synchronized (accounts) {
+            accounts.remove(userId);
+            // A load already in flight may have read the rows before this change.
+            uncachedTrades++;
+        }
+    }
+
+    /**
+     * Returns a one-line summary of cache size and hit/miss counters.
+     */
+    public static String stats() {
+        synchronized (accounts) {
+            return "users=" + accounts.size() + "/" + accounts.capacity()
+                    + " hits=" + hits.sum()
+                    + " misses=" + misses.sum()
+                    + " evictions=" + evictions.sum();
+        }
+    }
+
+    //Looks up the account, loading it from StockDB on a miss.
+    private static Account getAccount(int userId) {
+        long tradesBeforeLoad;
+        synchronized (accounts) {
+            Account account = accounts.get(userId);
+            if (account != null) {
+                hits.increment();
+                return account;
+            }
+            tradesBeforeLoad = uncachedTrades;
+        }
+        misses.increment();
+
+        // Read outside the lock so one slow load does not stall every other client.
+        User user = StockDB.getUserByID(userId);
+        if (user == null) return null;
+
+        Account loaded = new Account(user);
+        for (Stock stock : StockDB.getStockByUserAndSymbol(userId, null)) {
+            loaded.add(stock);
+        }
+
+        synchronized (accounts) {
+            // Another thread may have loaded (and since updated) the same account meanwhile.
+            Account existing = accounts.get(userId);
+            if (existing != null) return existing;
+            if (uncachedTrades != tradesBeforeLoad) return loaded;
+
+            if (accounts.put(userId, loaded) != null) {
+                evictions.increment();
+            }
+            return loaded;
+        }
+    }
+
+    /**
+     * A cached user together with their positions, indexed by stock symbol and in creation order.
+     * Positions are never removed, only their balances change, so an index into ordered stays valid.
+     */
+    private static class Account {
+        private final User user;
+        private final Map<String, Stock> positions = new HashMap<>();
+        private final List<Stock> ordered = new ArrayList<>();
+
+        private Account(User user) {
+            this.user = user;
+        }
+
+        private void add(Stock stock) {
+            if (positions.putIfAbsent(stock.getStockSymbol(), stock) == null) {
+                ordered.add(stock);
+            }
+        }
+    }
+}
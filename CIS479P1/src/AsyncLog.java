@@ -0,0 +1,291 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * AsyncLog - audit log written off the request path.
+ *
+ * Client threads publish records (connections, received requests, executed trades, database
+ * errors) into a preallocated ring buffer: claiming a slot is one compare-and-set and the record
+ * is only formatted later, by the single "audit-log" writer thread. The writer drains whatever
+ * has been published, writes it as one batch to ServerConfig.AUDIT_FILE and flushes once per
+ * batch. When the file exceeds AUDIT_MAX_FILE_BYTES it is rotated to audit.log.1, .2 and so on.
+ *
+ * Publishing never blocks: if the writer falls a full buffer behind, records are dropped and
+ * counted, and the count is written to the log once there is room again.
+ */
+public class AsyncLog {
+
+    enum Type { CONNECT, DISCONNECT, REQUEST, TRADE, ERROR, INFO }
+
+    //One slot of the ring buffer; reused for every record that lands in it.
+    private static final class Entry {
+        long time;
+        Type type;
+        String text;
+        TradeRequest trade;
+        TradeResult result;
+    }
+
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(2, ServerConfig.AUDIT_BUFFER_SIZE));
+    private static final int MASK = CAPACITY - 1;
+
+    private static final Entry[] entries = new Entry[CAPACITY];
+    // Sequence of the record held by each slot once it is fully written; -1 while empty.
+    private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong nextClaim = new AtomicLong();
+    private static volatile long nextRead = 0;
+
+    private static final LongAdder dropped = new LongAdder();
+    private static final LongAdder written = new LongAdder();
+
+    private static final Thread writer;
+    private static volatile boolean running = true;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            entries[i] = new Entry();
+            published.set(i, -1);
+        }
+        writer = new Thread(AsyncLog::drain, "audit-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+
+    public static void connected(Object remote) {
+        publish(Type.CONNECT, String.valueOf(remote), null, null);
+    }
+
+    public static void disconnected(Object remote) {
+        publish(Type.DISCONNECT, String.valueOf(remote), null, null);
+    }
+
+    public static void request(String line) {
+        publish(Type.REQUEST, withoutPassword(line), null, null);
+    }
+
+    //A LOGIN line is logged up to its user name; its password never reaches the log.
+    private static String withoutPassword(String line) {
+        String trimmed = line.stripLeading();
+        if (!trimmed.regionMatches(true, 0, "LOGIN", 0, 5)) return line;
+        String[] tokens = trimmed.split("\\s+", 3);
+        return tokens.length < 2 ? trimmed : tokens[0] + " " + tokens[1] + " ***";
+    }
+
+    /**
+     * Records an executed BUY or SELL and its outcome. Formatting happens on the writer thread.
+     */
+    public static void trade(TradeRequest trade, TradeResult result) {
+        publish(Type.TRADE, null, trade, result);
+    }
+
+    public static void error(String message) {
+        publish(Type.ERROR, message, null, null);
+    }
+
+    public static void info(String message) {
+        publish(Type.INFO, message, null, null);
+    }
+
+    public static String stats() {
+        return "written=" + written.sum() + " dropped=" + dropped.sum();
+    }
+
+    /**
+     * Writes out everything published so far and stops the writer. Called once at shutdown.
+     */
+    public static void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private static void publish(Type type, String text, TradeRequest trade, TradeResult result) {
+        long sequence;
+        do {
+            sequence = nextClaim.get();
+            if (sequence - nextRead >= CAPACITY) {
+                // Writer is a whole buffer behind; never make the client thread wait for the disk.
+                dropped.increment();
+                return;
+            }
+        } while (!nextClaim.compareAndSet(sequence, sequence + 1));
+
+        int index = (int) (sequence & MASK);
+        Entry entry = entries[index];
+        entry.time = System.currentTimeMillis();
+        entry.type = type;
+        entry.text = text;
+        entry.trade = trade;
+        entry.result = result;
+        published.lazySet(index, sequence);
+    }
+
+    //Writer thread: drains published records in sequence order, one batch and one flush at a time.
+    private static void drain() {
+        RotatingWriter out = new RotatingWriter(new File(ServerConfig.AUDIT_FILE),
+                ServerConfig.AUDIT_MAX_FILE_BYTES, ServerConfig.AUDIT_MAX_FILES);
+        StringBuilder line = new StringBuilder(256);
+        long reportedDrops = 0;
+        long idleNanos = 0;
+
+        while (true) {
+            long sequence = nextRead;
+            int index = (int) (sequence & MASK);
+
+            if (published.get(index) != sequence) {
+                if (!running && nextClaim.get() == sequence) break;
+                if (idleNanos == 0) {
+                    out.flush();
+                    long drops = dropped.sum();
+                    if (drops != reportedDrops) {
+                        out.write(format(line, System.currentTimeMillis(), Type.ERROR,
+                                (drops - reportedDrops) + " audit records dropped (buffer full)", null, null));
+                        out.flush();
+                        reportedDrops = drops;
+                    }
+                }
+                // Back off gradually while idle so an idle server does not spin.
+                idleNanos = Math.min(Math.max(idleNanos * 2, 10_000), 1_000_000);
+                LockSupport.parkNanos(idleNanos);
+                continue;
+            }
+            idleNanos = 0;
+
+            Entry entry = entries[index];
+            out.write(format(line, entry.time, entry.type, entry.text, entry.trade, entry.result));
+            entry.text = null;
+            entry.trade = null;
+            entry.result = null;
+            published.lazySet(index, -1);
+            nextRead = sequence + 1;
+            written.increment();
+        }
+        out.close();
+    }
+
+    private static StringBuilder format(StringBuilder line, long time, Type type, String text,
+                                        TradeRequest trade, TradeResult result) {
+        line.setLength(0);
+        line.append(Instant.ofEpochMilli(time)).append(' ').append(type);
+        if (trade != null) {
+            line.append(' ').append(trade.isBuy() ? "BUY" : "SELL")
+                    .append(" user=").append(trade.getUserID())
+                    .append(' ').append(trade.getStockSymbol())
+                    .append(" amount=");
+            Money.appendQuantity(line, trade.getAmount()).append(" price=");
+            Money.appendUsd(line, trade.getPrice()).append(" status=").append(result.getStatus());
+            if (result.isOk()) {
+                Money.appendUsd(line.append(" usd="), result.getUsdBalance()).append(" position=");
+                Money.appendQuantity(line, result.getStockBalance());
+            }
+        } else {
+            line.append(' ').append(text);
+        }
+        return line.append('\n');
+    }
+
+
+    /**
+     * Buffered file writer that rolls the file over once it passes maxBytes:
+     * audit.log becomes audit.log.1, audit.log.1 becomes audit.log.2, up to maxFiles.
+     * I/O errors are reported on the console once and the records are discarded.
+     */
+    private static final class RotatingWriter {
+
+        private final File file;
+        private final long maxBytes;
+        private final int maxFiles;
+        private Writer out;
+        private long size;
+        private boolean failed = false;
+
+        RotatingWriter(File file, long maxBytes, int maxFiles) {
+            this.file = file;
+            this.maxBytes = maxBytes;
+            this.maxFiles = maxFiles;
+            open();
+        }
+
+        void write(CharSequence text) {
+            if (out == null) return;
+            try {
+                out.append(text);
+                size += text.length();
+                if (size >= maxBytes) rotate();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void flush() {
+            if (out == null) return;
+            try {
+                out.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void close() {
+            if (out == null) return;
+            try {
+                out.close();
+            } catch (IOException e) {
+                fail(e);
+            }
+            out = null;
+        }
+
+        private void open() {
+            try {
+                File parent = file.getAbsoluteFile().getParentFile();
+                if (parent != null) parent.mkdirs();
+                out = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(file, true), StandardCharsets.UTF_8), 64 * 1024);
+                size = file.length();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void rotate() throws IOException {
+            out.close();
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                File older = new File(file.getPath() + "." + i);
+                if (older.exists()) {
+                    File target = new File(file.getPath() + "." + (i + 1));
+                    target.delete();
+                    older.renameTo(target);
+                }
+            }
+            File first = new File(file.getPath() + ".1");
+            first.delete();
+            file.renameTo(first);
+            open();
+        }
+
+        private void fail(IOException e) {
+            if (!failed) {
+                System.out.println("Audit log " + file + " unavailable: " + e.getMessage());
+                failed = true;
+            }
+            out = null;
+        }
+    }
+}
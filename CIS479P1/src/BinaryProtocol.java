@@ -0,0 +1,469 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * BinaryProtocol - compact fixed-layout frames, used instead of text lines after a client sends
+ * BINARY and has read its "200 OK". There is no way back to text on that connection.
+ *
+ * Every field is little-endian. Amounts, prices and balances are Money micros, so neither side
+ * parses or formats a decimal. A request is 32 bytes, followed by a payload only for TEXT:
+ *
+ *   0  u8   opcode (OP_*)
+ *   1  u8   symbol length, 1-8 (BUY, SELL)
+ *   2  u16  payload length (TEXT: a text command line in UTF-8, answered as over the text protocol)
+ *   4  i32  user ID
+ *   8  8    symbol, ASCII, zero padded
+ *   16 i64  amount (BUY, SELL), order ID (CANCEL), offset (LIST)
+ *   24 i64  price (BUY, SELL), limit (LIST, 0 for all positions)
+ *
+ * A response is 56 bytes followed by its payload:
+ *
+ *   0  u8   opcode of the request
+ *   1  u8   reason (REASON_*), REASON_OK unless the status is an error
+ *   2  u16  status: 200, 400, 401, 403 or 429 as in the text protocol
+ *   4  i32  payload length
+ *   8  i64  USD balance (BUY, SELL, BALANCE)
+ *   16 i64  stock balance after the trade (BUY, SELL), -1 for orders handled by the matching engine
+ *   24 i64  order ID (matched orders, CANCEL), 0 if nothing rests in the book
+ *   32 i64  amount filled (matched orders)
+ *   40 i64  average fill price (matched orders)
+ *   48 i64  amount left open (matched orders), amount released (CANCEL)
+ *
+ * A LIST payload holds one entry per position: i32 stock ID, i64 balance, u8 symbol length and
+ * the symbol. A TEXT payload is the text response. Events pushed after SUBSCRIBE arrive between
+ * responses as OP_EVENT frames whose payload is the event line.
+ */
+public final class BinaryProtocol {
+
+    public static final int REQUEST_SIZE = 32;
+    public static final int RESPONSE_SIZE = 56;
+    public static final int MAX_SYMBOL_LENGTH = 8;
+    public static final int MAX_REQUEST_PAYLOAD = 0xFFFF;
+
+    public static final byte OP_BUY = 1;
+    public static final byte OP_SELL = 2;
+    public static final byte OP_LIST = 3;
+    public static final byte OP_BALANCE = 4;
+    public static final byte OP_CANCEL = 5;
+    public static final byte OP_QUIT = 6;
+    public static final byte OP_SHUTDOWN = 7;
+    public static final byte OP_TEXT = 8;
+    public static final byte OP_EVENT = 9;
+
+    public static final int REASON_OK = 0;
+    public static final int REASON_USER_NOT_FOUND = 1;
+    public static final int REASON_NOT_ENOUGH_USD = 2;
+    public static final int REASON_NOT_ENOUGH_STOCK = 3;
+    public static final int REASON_NO_SUCH_ORDER = 4;
+    public static final int REASON_MATCHING_DISABLED = 5;
+    public static final int REASON_FORMAT_ERROR = 6;
+    public static final int REASON_INVALID_COMMAND = 7;
+    public static final int REASON_ERROR = 8;
+    public static final int REASON_NOT_LOGGED_IN = 9;
+    public static final int REASON_THROTTLED = 10;
+
+    private static final String[] REASONS = {"OK", "User not found.", "Not enough USD.", "Not enough stock.",
+            "No such open order.", "Order matching is not enabled.", "message format error",
+            "Invalid command", "Invalid command or format", "Not logged in as this user.",
+            "Too many requests."};
+
+    // Each thread assembles symbols here before they are interned by CommandParser.
+    private static final ThreadLocal<StringBuilder> SYMBOL = ThreadLocal.withInitial(StringBuilder::new);
+
+    private BinaryProtocol() {
+    }
+
+    public static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public static byte opcode(ByteBuffer frame) {
+        return frame.get(0);
+    }
+
+    // Number of payload bytes that follow a request header.
+    public static int requestPayloadLength(ByteBuffer header) {
+        return header.getShort(2) & 0xFFFF;
+    }
+
+    // Number of payload bytes that follow a response header.
+    public static int responsePayloadLength(ByteBuffer header) {
+        return header.getInt(4);
+    }
+
+    public static String reasonText(int reason) {
+        return reason >= 0 && reason < REASONS.length ? REASONS[reason] : "reason " + reason;
+    }
+
+    public static int reasonOf(TradeResult.Status status) {
+        switch (status) {
+            case OK: return REASON_OK;
+            case USER_NOT_FOUND: return REASON_USER_NOT_FOUND;
+            case NOT_ENOUGH_USD: return REASON_NOT_ENOUGH_USD;
+            case NOT_ENOUGH_STOCK: return REASON_NOT_ENOUGH_STOCK;
+            default: return REASON_ERROR;
+        }
+    }
+
+
+    /**
+     * Decodes a request frame (not TEXT) into the given command, like CommandParser does for a line.
+     *
+     * @return true if the frame is a well-formed command, false if command.getError() is set
+     */
+    public static boolean decode(ByteBuffer frame, Command command) {
+        command.reset();
+        Command.Verb verb = verbOf(opcode(frame));
+        command.setVerb(verb);
+        if (verb == Command.Verb.UNKNOWN) {
+            command.setError(Command.INVALID_COMMAND);
+            return false;
+        }
+
+        int userId = frame.getInt(4);
+        command.setUserID(userId);
+        boolean valid = userId >= 0;
+
+        switch (verb) {
+            case BUY:
+            case SELL:
+                String symbol = symbol(frame);
+                long amount = frame.getLong(16);
+                long price = frame.getLong(24);
+                command.setStockSymbol(symbol);
+                command.setAmount(amount);
+                command.setPrice(price);
+                valid &= symbol != null
+                        && amount >= 0 && amount <= Money.MAX_ORDER_VALUE
+                        && price >= 0 && price <= Money.MAX_ORDER_VALUE;
+                break;
+            case CANCEL:
+                long orderId = frame.getLong(16);
+                command.setOrderId(orderId);
+                valid &= orderId >= 1;
+                break;
+            case LIST:
+                long offset = frame.getLong(16);
+                long limit = frame.getLong(24);
+                valid &= offset >= 0 && offset <= Integer.MAX_VALUE && limit >= 0 && limit <= Integer.MAX_VALUE;
+                if (valid) {
+                    command.setOffset((int) offset);
+                    command.setLimit((int) limit);
+                }
+                break;
+            default:
+                break;
+        }
+
+        if (!valid) command.setError(Command.FORMAT_ERROR);
+        return valid;
+    }
+
+    // Returns the payload of a TEXT request as the command line it carries.
+    public static String text(ByteBuffer frame) {
+        return new String(frame.array(), frame.arrayOffset() + REQUEST_SIZE, requestPayloadLength(frame),
+                StandardCharsets.UTF_8);
+    }
+
+    //Interns the frame's symbol, or returns null if its length or characters are invalid.
+    private static String symbol(ByteBuffer frame) {
+        int length = frame.get(1) & 0xFF;
+        if (length < 1 || length > MAX_SYMBOL_LENGTH) return null;
+
+        StringBuilder sb = SYMBOL.get();
+        sb.setLength(0);
+        for (int i = 0; i < length; i++) {
+            byte b = frame.get(8 + i);
+            if (b <= ' ' || b >= 127) return null;
+            sb.append((char) b);
+        }
+        return CommandParser.symbol(sb, 0, length);
+    }
+
+    private static Command.Verb verbOf(byte opcode) {
+        switch (opcode) {
+            case OP_BUY: return Command.Verb.BUY;
+            case OP_SELL: return Command.Verb.SELL;
+            case OP_LIST: return Command.Verb.LIST;
+            case OP_BALANCE: return Command.Verb.BALANCE;
+            case OP_CANCEL: return Command.Verb.CANCEL;
+            case OP_QUIT: return Command.Verb.QUIT;
+            case OP_SHUTDOWN: return Command.Verb.SHUTDOWN;
+            default: return Command.Verb.UNKNOWN;
+        }
+    }
+
+
+    /**
+     * Writes a request frame into out, starting at its current position.
+     * The symbol must be at most MAX_SYMBOL_LENGTH ASCII characters; it is ignored unless needed.
+     */
+    public static void encodeRequest(ByteBuffer out, byte opcode, String symbol, long amount, long price,
+                                     int userId) {
+        int start = out.position();
+        out.put(opcode)
+                .put((byte) (symbol == null ? 0 : symbol.length()))
+                .putShort((short) 0)
+                .putInt(userId);
+        for (int i = 0; i < MAX_SYMBOL_LENGTH; i++) {
+            out.put(symbol != null && i < symbol.length() ? (byte) symbol.charAt(i) : 0);
+        }
+        out.putLong(amount).putLong(price);
+        out.position(start + REQUEST_SIZE);
+    }
+
+    /**
+     * Writes a TEXT request carrying one text protocol line.
+     */
+    public static void encodeText(ByteBuffer out, String line) {
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        if (text.length > MAX_REQUEST_PAYLOAD) {
+            throw new IllegalArgumentException("Command longer than " + MAX_REQUEST_PAYLOAD + " bytes");
+        }
+        encodeRequest(out, OP_TEXT, null, 0, 0, 0);
+        out.putShort(out.position() - REQUEST_SIZE + 2, (short) text.length);
+        out.put(text);
+    }
+
+    /**
+     * Writes the frame for a line typed in the text protocol: BUY, SELL, LIST, BALANCE, CANCEL,
+     * QUIT and SHUTDOWN become binary requests, anything else (including malformed lines, so the
+     * server can answer them in its own words) is sent as TEXT.
+     */
+    public static void encodeLine(ByteBuffer out, String line, Command scratch) {
+        if (!CommandParser.parse(line, scratch)) {
+            encodeText(out, line);
+            return;
+        }
+        switch (scratch.getVerb()) {
+            case BUY:
+            case SELL:
+                if (scratch.getStockSymbol().length() > MAX_SYMBOL_LENGTH) break;
+                encodeRequest(out, scratch.getVerb() == Command.Verb.BUY ? OP_BUY : OP_SELL,
+                        scratch.getStockSymbol(), scratch.getAmount(), scratch.getPrice(), scratch.getUserID());
+                return;
+            case LIST:
+                encodeRequest(out, OP_LIST, null, scratch.getOffset(), scratch.getLimit(), scratch.getUserID());
+                return;
+            case BALANCE:
+                encodeRequest(out, OP_BALANCE, null, 0, 0, scratch.getUserID());
+                return;
+            case CANCEL:
+                encodeRequest(out, OP_CANCEL, null, scratch.getOrderId(), 0, scratch.getUserID());
+                return;
+            case QUIT:
+                encodeRequest(out, OP_QUIT, null, 0, 0, 0);
+                return;
+            case SHUTDOWN:
+                encodeRequest(out, OP_SHUTDOWN, null, 0, 0, 0);
+                return;
+            default:
+                break;
+        }
+        encodeText(out, line);
+    }
+
+    /**
+     * Builds the frame for a pushed event line (see EventBus).
+     */
+    public static ByteBuffer event(String event) {
+        byte[] text = event.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = allocate(RESPONSE_SIZE + text.length);
+        frame.put(0, OP_EVENT).putShort(2, (short) 200).putInt(4, text.length);
+        frame.position(RESPONSE_SIZE);
+        frame.put(text).flip();
+        return frame;
+    }
+
+    /**
+     * Describes a request frame as a text protocol line, for the request log.
+     */
+    public static String describeRequest(ByteBuffer frame) {
+        byte opcode = opcode(frame);
+        if (opcode == OP_TEXT) return text(frame);
+
+        StringBuilder sb = new StringBuilder(64);
+        Command.Verb verb = verbOf(opcode);
+        sb.append(verb == Command.Verb.UNKNOWN ? "OPCODE " + opcode : verb.name());
+        switch (verb) {
+            case BUY:
+            case SELL:
+                sb.append(' ');
+                for (int i = 0; i < Math.min(frame.get(1) & 0xFF, MAX_SYMBOL_LENGTH); i++) {
+                    sb.append((char) (frame.get(8 + i) & 0xFF));
+                }
+                Money.appendQuantity(sb.append(' '), frame.getLong(16));
+                Money.appendQuantity(sb.append(' '), frame.getLong(24));
+                break;
+            case CANCEL:
+                sb.append(' ').append(frame.getLong(16));
+                break;
+            default:
+                break;
+        }
+        if (verb != Command.Verb.QUIT && verb != Command.Verb.SHUTDOWN) {
+            sb.append(' ').append(frame.getInt(4));
+        }
+        if (verb == Command.Verb.LIST && frame.getLong(24) != 0) {
+            sb.append(' ').append(frame.getLong(16)).append(' ').append(frame.getLong(24));
+        }
+        return sb.append(" (binary)").toString();
+    }
+
+    /**
+     * Renders a response frame as readable text, for the interactive client.
+     */
+    public static String describeResponse(ByteBuffer frame) {
+        byte opcode = opcode(frame);
+        int reason = frame.get(1) & 0xFF;
+        int status = frame.getShort(2) & 0xFFFF;
+        int payloadLength = responsePayloadLength(frame);
+
+        if (opcode == OP_TEXT || opcode == OP_EVENT) {
+            return new String(frame.array(), frame.arrayOffset() + RESPONSE_SIZE, payloadLength,
+                    StandardCharsets.UTF_8);
+        }
+        if (status != 200) {
+            return status + " " + reasonText(reason);
+        }
+
+        StringBuilder sb = new StringBuilder("200 OK");
+        long orderId = frame.getLong(24);
+        switch (opcode) {
+            case OP_BUY:
+            case OP_SELL:
+                if (frame.getLong(16) < 0) {
+                    sb.append(" order=").append(orderId == 0 ? "-" : String.valueOf(orderId));
+                    Money.appendQuantity(sb.append(" filled="), frame.getLong(32));
+                    Money.appendUsd(sb.append(" avg=$"), frame.getLong(40));
+                    Money.appendQuantity(sb.append(" open="), frame.getLong(48));
+                } else {
+                    Money.appendQuantity(sb.append(" position="), frame.getLong(16));
+                }
+                Money.appendUsd(sb.append(" usd=$"), frame.getLong(8));
+                break;
+            case OP_BALANCE:
+                Money.appendUsd(sb.append(" usd=$"), frame.getLong(8));
+                break;
+            case OP_CANCEL:
+                sb.append(" cancelled=").append(orderId);
+                Money.appendQuantity(sb.append(" released="), frame.getLong(48));
+                break;
+            case OP_LIST:
+                for (int p = RESPONSE_SIZE; p < RESPONSE_SIZE + payloadLength; ) {
+                    sb.append('\n').append(frame.getInt(p)).append(' ');
+                    long balance = frame.getLong(p + 4);
+                    int length = frame.get(p + 12) & 0xFF;
+                    sb.append(new String(frame.array(), frame.arrayOffset() + p + 13, length, StandardCharsets.US_ASCII));
+                    Money.appendQuantity(sb.append(' '), balance);
+                    p += 13 + length;
+                }
+                break;
+            default:
+                break;
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * A response being built by the server. Each worker thread reuses one; finish() returns its
+     * buffer, which stays valid until the thread's next response.
+     */
+    public static final class Response {
+        private ByteBuffer buffer = allocate(256);
+        private byte opcode;
+        private int reason;
+        private int status;
+        private long usdBalance;
+        private long stockBalance;
+        private long orderId;
+        private long filled;
+        private long averagePrice;
+        private long open;
+
+        void begin(byte opcode) {
+            this.opcode = opcode;
+            reason = REASON_OK;
+            status = 200;
+            usdBalance = 0;
+            stockBalance = 0;
+            orderId = 0;
+            filled = 0;
+            averagePrice = 0;
+            open = 0;
+            buffer.clear().position(RESPONSE_SIZE);
+        }
+
+        void fail(int status, int reason) {
+            this.status = status;
+            this.reason = reason;
+        }
+
+        void trade(long usdBalance, long stockBalance) {
+            this.usdBalance = usdBalance;
+            this.stockBalance = stockBalance;
+        }
+
+        void order(long orderId, long filled, long averagePrice, long open, long usdBalance) {
+            this.orderId = orderId;
+            this.filled = filled;
+            this.averagePrice = averagePrice;
+            this.open = open;
+            this.usdBalance = usdBalance;
+            this.stockBalance = -1;
+        }
+
+        void balance(long usdBalance) {
+            this.usdBalance = usdBalance;
+        }
+
+        void cancelled(long orderId, long open) {
+            this.orderId = orderId;
+            this.open = open;
+        }
+
+        void position(int stockId, String symbol, long balance) {
+            int length = Math.min(symbol.length(), 255);
+            ensureRoom(13 + length);
+            buffer.putInt(stockId).putLong(balance).put((byte) length);
+            for (int i = 0; i < length; i++) {
+                buffer.put((byte) symbol.charAt(i));
+            }
+        }
+
+        void text(String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            ensureRoom(bytes.length);
+            buffer.put(bytes);
+        }
+
+        /**
+         * Writes the header and returns the whole frame, ready to be written out.
+         */
+        ByteBuffer finish() {
+            int end = buffer.position();
+            buffer.put(0, opcode)
+                    .put(1, (byte) reason)
+                    .putShort(2, (short) status)
+                    .putInt(4, end - RESPONSE_SIZE)
+                    .putLong(8, usdBalance)
+                    .putLong(16, stockBalance)
+                    .putLong(24, orderId)
+                    .putLong(32, filled)
+                    .putLong(40, averagePrice)
+                    .putLong(48, open);
+            buffer.flip();
+            return buffer;
+        }
+
+        private void ensureRoom(int bytes) {
+            if (buffer.remaining() >= bytes) return;
+            ByteBuffer larger = allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+}
@@ -0,0 +1,409 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BulkLoader - imports Users and Stocks from CSV files into the SQLite database at
+ * ServerConfig.DB_URL, and exports them back to CSV, for seeding test environments and moving
+ * production data.
+ *
+ *   java BulkLoader import|export users|stocks <file.csv> [--batch=10000] [--commit=500000]
+ *
+ * The first line of a file names the columns, in this order:
+ *
+ *   users:  ID,email,first_name,last_name,user_name,password,usd_balance
+ *   stocks: ID,stock_symbol,stock_name,stock_balance,user_id
+ *
+ * Balances are decimals ("2325.2", "0.5") of any size a long holds in micros (see Money.parse),
+ * not just the order sizes BUY and SELL accept. An empty ID lets the database pick one; an empty
+ * optional column is stored as NULL. Fields with commas, quotes or line breaks are quoted the
+ * usual CSV way. A row whose ID (or, for stocks, whose user and symbol) already exists replaces
+ * the existing row, so an import can be run again. Malformed rows are reported and skipped.
+ *
+ * Rows are streamed: inserts go to the database in JDBC batches of --batch rows and are
+ * committed every --commit rows, with the progress printed every few seconds. The database is
+ * created or upgraded by Schema first. Run it while the server is stopped, since the server
+ * caches accounts; a server on the memory engine reads the database only to seed an empty
+ * storage directory (see MemoryStorage).
+ */
+public class BulkLoader {
+
+    private static final String USER_COLUMNS = "ID,email,first_name,last_name,user_name,password,usd_balance";
+    private static final String STOCK_COLUMNS = "ID,stock_symbol,stock_name,stock_balance,user_id";
+
+    private static final String INSERT_USER = "INSERT OR REPLACE INTO Users (" + USER_COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_STOCK = "INSERT OR REPLACE INTO Stocks (" + STOCK_COLUMNS + ") VALUES (?, ?, ?, ?, ?)";
+    private static final String SELECT_USERS = "SELECT " + USER_COLUMNS + " FROM Users ORDER BY ID";
+    private static final String SELECT_STOCKS = "SELECT " + STOCK_COLUMNS + " FROM Stocks ORDER BY user_id, ID";
+
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    // Reported one by one up to this many; after that only counted.
+    private static final int MAX_REPORTED_ERRORS = 20;
+
+    private final boolean users;
+    private final Path file;
+    private int batchSize = 10_000;
+    private int commitSize = 500_000;
+
+    private long rows = 0;
+    private long skipped = 0;
+    private long started;
+    private long lastProgress;
+
+    private BulkLoader(boolean users, Path file) {
+        this.users = users;
+        this.file = file;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3 || !(args[0].equals("import") || args[0].equals("export"))
+                || !(args[1].equals("users") || args[1].equals("stocks"))) {
+            usage();
+            System.exit(1);
+        }
+
+        BulkLoader loader = new BulkLoader(args[1].equals("users"), Paths.get(args[2]));
+        try {
+            for (int i = 3; i < args.length; i++) {
+                loader.parseOption(args[i]);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(1);
+        }
+
+        try (Connection db = DriverManager.getConnection(ServerConfig.DB_URL)) {
+            try (Statement statement = db.createStatement()) {
+                for (String sql : Schema.connectionSetup()) {
+                    statement.execute(sql);
+                }
+            }
+            Schema.migrate(db);
+
+            boolean ok = args[0].equals("import") ? loader.importFile(db) : loader.exportFile(db);
+            System.exit(ok ? 0 : 1);
+        } catch (SQLException | IOException e) {
+            System.err.println(args[0] + " failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    static void usage() {
+        System.err.println("Usage: java [-Ddb.url=<jdbc url>] BulkLoader import|export users|stocks <file.csv>"
+                + " [--batch=10000] [--commit=500000]");
+        System.err.println("  users:  " + USER_COLUMNS);
+        System.err.println("  stocks: " + STOCK_COLUMNS);
+    }
+
+    private void parseOption(String option) {
+        int equals = option.indexOf('=');
+        if (!option.startsWith("--") || equals < 0) {
+            throw new IllegalArgumentException("Unknown option: " + option);
+        }
+        String name = option.substring(2, equals);
+        String value = option.substring(equals + 1);
+
+        switch (name) {
+            case "batch": batchSize = positive(name, Integer.parseInt(value)); break;
+            case "commit": commitSize = positive(name, Integer.parseInt(value)); break;
+            default: throw new IllegalArgumentException("Unknown option: " + option);
+        }
+    }
+
+    private static int positive(String name, int value) {
+        if (value < 1) throw new IllegalArgumentException("--" + name + " must be at least 1");
+        return value;
+    }
+
+    /** /////////////////////////////////////////////////////////////////////////////////////
+     * Import
+     *///////////////////////////////////////////////////////////////////////////////////////
+
+    //Streams the file into the database. Returns false if the database stopped the import.
+    private boolean importFile(Connection db) throws IOException, SQLException {
+        String table = users ? "users" : "stocks";
+        String columns = users ? USER_COLUMNS : STOCK_COLUMNS;
+
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+             PreparedStatement insert = db.prepareStatement(users ? INSERT_USER : INSERT_STOCK)) {
+            CsvReader csv = new CsvReader(in);
+            List<String> fields = new ArrayList<>();
+            if (!csv.next(fields) || !String.join(",", fields).equalsIgnoreCase(columns)) {
+                System.err.println(file + ": the first line must be " + columns);
+                return false;
+            }
+
+            db.setAutoCommit(false);
+            start();
+            long committed = 0;
+            long pending = 0;
+            try {
+                while (csv.next(fields)) {
+                    String error = users ? bindUser(insert, fields) : bindStock(insert, fields);
+                    if (error != null) {
+                        skip(csv.getLine(), error);
+                        continue;
+                    }
+                    insert.addBatch();
+                    rows++;
+                    if (++pending % batchSize == 0) {
+                        insert.executeBatch();
+                    }
+                    if (pending == commitSize) {
+                        insert.executeBatch();
+                        db.commit();
+                        committed = rows;
+                        pending = 0;
+                    }
+                    progress("Imported", table);
+                }
+                insert.executeBatch();
+                db.commit();
+            } catch (SQLException e) {
+                db.rollback();
+                System.err.println("Import stopped at line " + csv.getLine() + ": " + e.getMessage()
+                        + ". " + committed + " rows were committed before it.");
+                return false;
+            } finally {
+                db.setAutoCommit(true);
+            }
+        }
+        finish("Imported", table);
+        return true;
+    }
+
+    //Binds one users row; returns why it cannot be imported, or null.
+    private static String bindUser(PreparedStatement insert, List<String> fields) throws SQLException {
+        if (fields.size() != 7) return "expected 7 columns, found " + fields.size();
+        if (fields.get(4).isEmpty()) return "user_name is empty";
+        long balance;
+        try {
+            balance = Money.parse(fields.get(6));
+        } catch (NumberFormatException e) {
+            return "usd_balance: " + e.getMessage();
+        }
+        String error = bindId(insert, 1, fields.get(0));
+        if (error != null) return error;
+
+        for (int column = 1; column <= 5; column++) {
+            insert.setString(column + 1, emptyToNull(fields.get(column)));
+        }
+        insert.setLong(7, balance);
+        return null;
+    }
+
+    //Binds one stocks row; returns why it cannot be imported, or null.
+    private static String bindStock(PreparedStatement insert, List<String> fields) throws SQLException {
+        if (fields.size() != 5) return "expected 5 columns, found " + fields.size();
+        if (fields.get(1).isEmpty() || fields.get(2).isEmpty()) return "stock_symbol and stock_name are required";
+        long balance;
+        try {
+            balance = Money.parse(fields.get(3));
+        } catch (NumberFormatException e) {
+            return "stock_balance: " + e.getMessage();
+        }
+        long userId = CommandParser.parseInt(fields.get(4), 0, fields.get(4).length());
+        if (userId < 0) return "user_id is not a number: " + fields.get(4);
+        String error = bindId(insert, 1, fields.get(0));
+        if (error != null) return error;
+
+        insert.setString(2, fields.get(1));
+        insert.setString(3, fields.get(2));
+        insert.setLong(4, balance);
+        insert.setLong(5, userId);
+        return null;
+    }
+
+    private static String bindId(PreparedStatement insert, int index, String id) throws SQLException {
+        if (id.isEmpty()) {
+            insert.setNull(index, Types.INTEGER);
+            return null;
+        }
+        long value = CommandParser.parseInt(id, 0, id.length());
+        if (value < 0) return "ID is not a number: " + id;
+        insert.setLong(index, value);
+        return null;
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    private void skip(long line, String error) {
+        if (++skipped <= MAX_REPORTED_ERRORS) {
+            System.err.println(file + " line " + line + ": " + error + ", skipped");
+        } else if (skipped == MAX_REPORTED_ERRORS + 1) {
+            System.err.println("Further skipped rows are only counted");
+        }
+    }
+
+    /** /////////////////////////////////////////////////////////////////////////////////////
+     * Export
+     *///////////////////////////////////////////////////////////////////////////////////////
+
+    private boolean exportFile(Connection db) throws IOException, SQLException {
+        String table = users ? "users" : "stocks";
+        try (Writer out = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8), 1 << 16);
+             Statement statement = db.createStatement();
+             ResultSet result = statement.executeQuery(users ? SELECT_USERS : SELECT_STOCKS)) {
+            out.write(users ? USER_COLUMNS : STOCK_COLUMNS);
+            out.write('\n');
+
+            start();
+            StringBuilder line = new StringBuilder(256);
+            while (result.next()) {
+                line.setLength(0);
+                line.append(result.getLong(1));
+                if (users) {
+                    for (int column = 2; column <= 6; column++) {
+                        appendField(line.append(','), result.getString(column));
+                    }
+                    Money.appendQuantity(line.append(','), result.getLong(7));
+                } else {
+                    appendField(line.append(','), result.getString(2));
+                    appendField(line.append(','), result.getString(3));
+                    Money.appendQuantity(line.append(','), result.getLong(4));
+                    line.append(',').append(result.getLong(5));
+                }
+                out.append(line).write('\n');
+                rows++;
+                progress("Exported", table);
+            }
+        }
+        finish("Exported", table);
+        return true;
+    }
+
+    //Appends a CSV field, quoted if it has to be; null as an empty field.
+    private static void appendField(StringBuilder line, String value) {
+        if (value == null) return;
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') line.append('"');
+            line.append(c);
+        }
+        line.append('"');
+    }
+
+    /** /////////////////////////////////////////////////////////////////////////////////////
+     * Progress
+     *///////////////////////////////////////////////////////////////////////////////////////
+
+    private void start() {
+        started = System.nanoTime();
+        lastProgress = started;
+    }
+
+    private void progress(String verb, String table) {
+        // Checking the clock every row would cost more than the row itself.
+        if ((rows & 1023) != 0) return;
+        long now = System.nanoTime();
+        if (now - lastProgress < PROGRESS_INTERVAL_NANOS) return;
+        lastProgress = now;
+        System.out.printf("%s %,d %s (%,.0f rows/s)%n", verb, rows, table, rate(now));
+    }
+
+    private void finish(String verb, String table) {
+        long now = System.nanoTime();
+        System.out.printf("%s %,d %s in %.1f s (%,.0f rows/s)%s%n", verb, rows, table,
+                (now - started) / 1e9, rate(now), skipped > 0 ? ", " + skipped + " rows skipped" : "");
+    }
+
+    private double rate(long now) {
+        double seconds = (now - started) / 1e9;
+        return seconds > 0 ? rows / seconds : 0;
+    }
+
+    /**
+     * Reads CSV records: comma separated, fields optionally in double quotes, a doubled quote
+     * inside quotes for a quote, and line breaks allowed inside quotes.
+     */
+    private static final class CsvReader {
+        private final BufferedReader in;
+        private final StringBuilder field = new StringBuilder();
+        private long line = 0;
+        private long recordLine = 0;
+
+        private CsvReader(BufferedReader in) {
+            this.in = in;
+        }
+
+        //Reads the next record into fields; false at end of file. Blank lines are skipped.
+        private boolean next(List<String> fields) throws IOException {
+            fields.clear();
+            field.setLength(0);
+            recordLine = line + 1;
+            boolean quoted = false;
+            boolean any = false;
+            int c;
+            while ((c = in.read()) >= 0) {
+                if (quoted) {
+                    if (c == '"') {
+                        in.mark(1);
+                        if (in.read() == '"') {
+                            field.append('"');
+                        } else {
+                            in.reset();
+                            quoted = false;
+                        }
+                    } else {
+                        if (c == '\n') line++;
+                        field.append((char) c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                    any = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                    any = true;
+                } else if (c == '\n') {
+                    line++;
+                    if (!any && field.length() == 0) {
+                        recordLine = line + 1;
+                        continue;
+                    }
+                    break;
+                } else if (c != '\r') {
+                    field.append((char) c);
+                    any = true;
+                }
+            }
+            if (!any && field.length() == 0) return false;
+            fields.add(field.toString());
+            return true;
+        }
+
+        //Number of the line the last record started on.
+        private long getLine() {
+            return recordLine;
+        }
+    }
+}
@@ -1,29 +1,78 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 
 public class Client {
 
     public static final int SERVER_PORT = 4080;
 
+    // Most commands sent but not yet answered in pipeline mode.
+    private static final int DEFAULT_WINDOW = 1024;
+
+    // Most orders the server accepts in one BATCH (its trade.maxBatchOrders; set the same property
+    // here if the server changed it). A larger BATCH is refused at once with a single 403.
+    private static final int MAX_BATCH_ORDERS = Integer.getInteger("trade.maxBatchOrders", 10000);
+
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.err.println("Usage: java Client <server_ip>");
+        if (args.length >= 2 && args[1].equals("--load")) {
+            LoadGenerator.run(args[0], Arrays.copyOfRange(args, 2, args.length));
+            return;
+        }
+
+        if (args.length < 1 || args.length > 2
+                || (args.length == 2 && !args[1].startsWith("--pipeline") && !args[1].equals("--binary")
+                        && !args[1].startsWith("--watch="))) {
+            System.err.println("Usage: java Client <server_ip> [--pipeline[=<window>] | --binary | --watch=<user_id>[,<user_id>...]]");
+            LoadGenerator.usage();
             System.exit(1);
         }
 
         String host = args[0];
 
+        if (args.length == 2 && args[1].equals("--binary")) {
+            runBinary(host);
+        } else if (args.length == 2 && args[1].startsWith("--watch=")) {
+            runWatch(host, args[1].substring("--watch=".length()).split(","));
+        } else if (args.length == 2) {
+            int window = args[1].startsWith("--pipeline=")
+                    ? Integer.parseInt(args[1].substring("--pipeline=".length()))
+                    : DEFAULT_WINDOW;
+            runPipelined(host, window);
+        } else {
+            runInteractive(host);
+        }
+    }
+
+    /**
+     * Sends one command at a time from stdin and prints each response before reading the next.
+     * The connection is switched to framed responses so the end of a multi-line response
+     * is known exactly.
+     */
+    private static void runInteractive(String host) {
         try (
                 Socket socket = new Socket(host, SERVER_PORT);
                 BufferedReader userInput = new BufferedReader(new InputStreamReader(System.in));
                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)
         ) {
+            // Ask for framed responses; the acknowledgement is not shown to the user.
+            out.println("FRAMED");
+            if (readResponse(in, null) == null) {
+                System.out.println("Server has shut down. Connection closed.");
+                return;
+            }
+
             String line;
+            int batchOrdersLeft = 0;
 
             while ((line = userInput.readLine()) != null) {
                 // Check for quit command before sending
-                if (line.equalsIgnoreCase("QUIT")) {
+                if (batchOrdersLeft == 0 && line.equalsIgnoreCase("QUIT")) {
                     out.println(line); // tell server we're quitting
                     System.out.println("You have disconnected from the server.");
                     break; // exit input loop
@@ -31,24 +80,278 @@ public class Client {
 
                 out.println(line); // send command to server
 
-                // Read multi-line response from server
-                String response;
-                while ((response = in.readLine()) != null) {
-                    System.out.println(response);
+                // A BATCH is answered only after its last order line has been sent.
+                if (batchOrdersLeft > 0) {
+                    if (--batchOrdersLeft > 0) continue;
+                } else {
+                    batchOrdersLeft = batchSize(line);
+                    if (batchOrdersLeft > 0) continue;
+                }
+
+                // Read the whole framed response; null means the server closed the connection.
+                if (readResponse(in, System.out) == null) {
+                    System.out.println("Server has shut down. Connection closed.");
+                    break;
+                }
+            }
+
+        } catch (IOException e) {
+            System.out.println("Connection to server lost.");
+        }
+    }
+
+    /**
+     * Sends every command from stdin without waiting for answers, keeping up to window commands
+     * in flight on the one socket. A reader thread matches responses to commands in send order
+     * and prints them as "command -> response".
+     */
+    private static void runPipelined(String host, int window) {
+        try (
+                Socket socket = new Socket(host, SERVER_PORT);
+                BufferedReader userInput = new BufferedReader(new InputStreamReader(System.in));
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()))
+        ) {
+            Queue<String> inFlight = new ConcurrentLinkedQueue<>();
+            Semaphore slots = new Semaphore(window);
+
+            out.write("FRAMED\n");
+            out.flush();
+            if (readResponse(in, null) == null) {
+                System.out.println("Server has shut down. Connection closed.");
+                return;
+            }
+
+            Thread reader = new Thread(() -> {
+                try {
+                    // Runs until the server closes the connection after QUIT or SHUTDOWN.
+                    StringBuilder response = new StringBuilder();
+                    while (readResponse(in, response) != null) {
+                        String command = inFlight.poll();
+                        slots.release();
+                        System.out.print(command + " -> " + response);
+                        response.setLength(0);
+                    }
+                } catch (IOException e) {
+                    // Socket closed after QUIT or SHUTDOWN.
+                }
+            }, "response-reader");
+            reader.start();
+
+            String line;
+            int batchOrdersLeft = 0;
+            while ((line = userInput.readLine()) != null) {
+                if (line.isBlank()) continue;
+
+                if (batchOrdersLeft > 0) {
+                    // Order line of a BATCH: answered together with the BATCH line itself.
+                    batchOrdersLeft--;
+                } else {
+                    // Window full: push out what is buffered so the server can answer, then wait.
+                    if (!slots.tryAcquire()) {
+                        out.flush();
+                        slots.acquire();
+                    }
+                    inFlight.add(line);
+                    batchOrdersLeft = batchSize(line);
+                }
+                out.write(line);
+                out.write('\n');
+
+                // Flush when stdin has nothing more queued up, so a pasted batch goes out in one write.
+                if (!userInput.ready()) {
+                    out.flush();
+                }
+                if (line.equalsIgnoreCase("QUIT")) break;
+            }
+
+            if (line == null) {
+                inFlight.add("QUIT");
+                out.write("QUIT\n");
+            }
+            out.flush();
+            reader.join();
+            System.out.println("You have disconnected from the server.");
+
+        } catch (IOException e) {
+            System.out.println("Connection to server lost.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Subscribes to the given users and prints their events as they arrive, until the server
+     * closes the connection.
+     */
+    private static void runWatch(String host, String[] users) {
+        try (
+                Socket socket = new Socket(host, SERVER_PORT);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)
+        ) {
+            out.println("FRAMED");
+            if (readResponse(in, null) == null) {
+                System.out.println("Server has shut down. Connection closed.");
+                return;
+            }
+            for (String user : users) {
+                out.println("SUBSCRIBE " + user.trim());
+                StringBuilder answer = new StringBuilder();
+                if (readResponse(in, answer) == null) {
+                    System.out.println("Server has shut down. Connection closed.");
+                    return;
+                }
+                System.out.print("SUBSCRIBE " + user.trim() + " -> " + answer);
+            }
+
+            // Events arrive framed like responses; readResponse prints them on its own.
+            while (readResponse(in, null) != null) {
+                // Nothing else is sent, so every frame is an event.
+            }
+            System.out.println("Server has shut down. Connection closed.");
+
+        } catch (IOException e) {
+            System.out.println("Connection to server lost.");
+        }
+    }
+
+    /**
+     * Like the interactive mode, but switches the connection to BinaryProtocol: each typed line is
+     * sent as a binary frame (or as a TEXT frame for commands without one) and the binary response
+     * is printed in readable form.
+     */
+    private static void runBinary(String host) {
+        try (
+                Socket socket = new Socket(host, SERVER_PORT);
+                BufferedReader userInput = new BufferedReader(new InputStreamReader(System.in));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream())
+        ) {
+            // The text answer to BINARY is a single unframed line; nothing may be sent before it arrives.
+            out.write("BINARY\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String answer = readAsciiLine(in);
+            if (answer == null || !answer.startsWith("200")) {
+                System.out.println("Server refused binary mode: " + answer);
+                return;
+            }
+
+            ByteBuffer frame = BinaryProtocol.allocate(BinaryProtocol.REQUEST_SIZE + BinaryProtocol.MAX_REQUEST_PAYLOAD);
+            ByteBuffer response = BinaryProtocol.allocate(4096);
+            Command scratch = new Command();
+            String line;
+            int batchOrdersLeft = 0;
+
+            while ((line = userInput.readLine()) != null) {
+                frame.clear();
+                BinaryProtocol.encodeLine(frame, line, scratch);
+                out.write(frame.array(), 0, frame.position());
+                out.flush();
 
-                    // If server closes socket (after SHUTDOWN), in.readLine() will return null
-                    if (!in.ready()) break;
+                // A BATCH is answered only after its last order line has been sent.
+                if (batchOrdersLeft > 0) {
+                    if (--batchOrdersLeft > 0) continue;
+                } else {
+                    batchOrdersLeft = batchSize(line);
+                    if (batchOrdersLeft > 0) continue;
                 }
 
-                // Check if server closed the connection
-                if (!socket.isConnected() || socket.isClosed()) {
+                // Events pushed after SUBSCRIBE may arrive ahead of the response.
+                response = readFrame(in, response);
+                while (response != null && BinaryProtocol.opcode(response) == BinaryProtocol.OP_EVENT) {
+                    System.out.println(BinaryProtocol.describeResponse(response));
+                    response = readFrame(in, response);
+                }
+                if (response == null) {
                     System.out.println("Server has shut down. Connection closed.");
                     break;
                 }
+                System.out.println(BinaryProtocol.describeResponse(response));
+
+                byte opcode = BinaryProtocol.opcode(response);
+                if (opcode == BinaryProtocol.OP_QUIT || opcode == BinaryProtocol.OP_SHUTDOWN) {
+                    System.out.println("You have disconnected from the server.");
+                    break;
+                }
             }
 
         } catch (IOException e) {
             System.out.println("Connection to server lost.");
         }
     }
+
+    /**
+     * Reads one BinaryProtocol response into buffer, replacing it with a larger one if needed.
+     *
+     * @return the buffer holding the whole frame, or null if the connection closed
+     */
+    static ByteBuffer readFrame(DataInputStream in, ByteBuffer buffer) throws IOException {
+        try {
+            in.readFully(buffer.array(), 0, BinaryProtocol.RESPONSE_SIZE);
+            buffer.clear();
+            int payload = BinaryProtocol.responsePayloadLength(buffer);
+            if (BinaryProtocol.RESPONSE_SIZE + payload > buffer.capacity()) {
+                ByteBuffer larger = BinaryProtocol.allocate(BinaryProtocol.RESPONSE_SIZE + payload);
+                larger.put(buffer.array(), 0, BinaryProtocol.RESPONSE_SIZE).clear();
+                buffer = larger;
+            }
+            in.readFully(buffer.array(), BinaryProtocol.RESPONSE_SIZE, payload);
+            buffer.limit(BinaryProtocol.RESPONSE_SIZE + payload);
+            return buffer;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    //Reads one text line from a stream that is otherwise read as binary frames.
+    static String readAsciiLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) return null;
+            if (b != '\r') sb.append((char) b);
+        }
+        return sb.toString();
+    }
+
+    //Returns the number of order lines announced by a "BATCH <n>" line, or 0 for any other line
+    //and for a BATCH the server refuses, since that is answered right away like any other command.
+    private static int batchSize(String line) {
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length != 2 || !parts[0].equalsIgnoreCase("BATCH")) return 0;
+        try {
+            int count = Integer.parseInt(parts[1]);
+            return count <= MAX_BATCH_ORDERS ? Math.max(0, count) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Reads one framed response (up to the "." terminator line). Events pushed after SUBSCRIBE
+     * come framed the same way, between responses; they are printed as they arrive and skipped.
+     *
+     * @param in Server input
+     * @param sink Where the response lines are appended, or null to discard them
+     * @return the sink (or an empty builder when discarding), or null if the connection closed
+     */
+    private static Appendable readResponse(BufferedReader in, Appendable sink) throws IOException {
+        Appendable target = sink == null ? new StringBuilder() : sink;
+        String response;
+        boolean first = true;
+        while ((response = in.readLine()) != null) {
+            if (first && response.startsWith("EVENT ")) {
+                System.out.println(response);
+                if (in.readLine() == null) return null;
+                continue;
+            }
+            first = false;
+            if (response.equals(".")) return target;
+            if (sink != null) {
+                sink.append(response).append(System.lineSeparator());
+            }
+        }
+        return null;
+    }
 }
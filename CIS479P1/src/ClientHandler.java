@@ -0,0 +1,280 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ClientHandler - serves a single connected client on its own thread.
+ * Reads one command per line, passes it to Server.processCommand and writes the response back.
+ * Responses are buffered and only flushed once no further pipelined command is already waiting
+ * in the input, so a burst of commands is answered with a few large writes.
+ * After BINARY the same loop runs on BinaryProtocol frames instead of lines.
+ * A client over its rate limit (see RateLimiter) gets its 429 and is then not read from until
+ * it may send again; the socket buffers fill up and TCP makes the client wait.
+ * Events for SUBSCRIBE are written by an EventBus pusher thread; every write holds outputLock,
+ * so an event always lands between two complete responses.
+ */
+public class ClientHandler implements Runnable {
+
+    private final Socket clientSocket;
+
+    // Input buffer shared by line and frame reading, so no byte is lost when the protocol switches.
+    private InputStream in;
+    private final byte[] input = new byte[8192];
+    private int inputPosition = 0;
+    private int inputLimit = 0;
+    private byte[] line = new byte[128];
+
+    // Output, shared with the pusher thread and guarded by outputLock.
+    private final Object outputLock = new Object();
+    private OutputStream bytesOut;
+    private Writer out;
+    private volatile boolean frames = false;
+    private Session session;
+
+    public ClientHandler(Socket clientSocket) {
+        this.clientSocket = clientSocket;
+    }
+
+    @Override
+    public void run() {
+        try (Socket socket = clientSocket) {
+
+            in = socket.getInputStream();
+            bytesOut = new BufferedOutputStream(socket.getOutputStream(), 8192);
+            out = new OutputStreamWriter(bytesOut, StandardCharsets.UTF_8);
+
+            session = new Session();
+            session.setEventSignal(() -> EventBus.push(this::pushEvents));
+            StringBuilder response = new StringBuilder();
+            String line;
+
+            // Process each line of input from the connected client.
+            while ((line = readLine()) != null) {
+
+                if (ServerConfig.LOG_REQUESTS) {
+                    AsyncLog.request(line);
+                }
+
+                String result = Server.processCommand(line, session);
+                response.setLength(0);
+
+                // Order line of a BATCH still being collected: nothing to answer yet.
+                if (result == null) {
+                    if (!inputReady()) flush();
+                    continue;
+                }
+
+                // Handle QUIT
+                if (result.equals("QUIT")) {
+                    session.appendResponse(response, "200 OK");
+                    write(response);
+                    break;
+                }
+
+                // Handle SHUTDOWN: answer first, then let the server drain the other clients.
+                if (result.equals("SHUTDOWN")) {
+                    session.appendResponse(response, "200 OK");
+                    write(response);
+                    Server.shutdown();
+                    break;
+                }
+
+                synchronized (outputLock) {
+                    // A long LIST arrives in chunks; the writer passes each on as its buffer fills.
+                    while (session.hasMoreOutput()) {
+                        out.append(result);
+                        result = Server.nextChunk(session);
+                    }
+
+                    session.appendResponse(response, result);
+                    out.append(response);
+
+                    // The client now waits for this answer before it sends frames.
+                    if (session.isBinary()) {
+                        out.flush();
+                        frames = true;
+                    } else if (!inputReady()) {
+                        // Keep buffering while the client has more commands queued up.
+                        out.flush();
+                    }
+                }
+                if (frames) {
+                    serveFrames();
+                    break;
+                }
+            }
+
+        } catch (IOException e) {
+            // Connection reset or closed during shutdown; nothing left to answer.
+        } finally {
+            if (session != null && session.getSubscriber() != null) {
+                EventBus.unsubscribeAll(session.getSubscriber());
+            }
+            Server.clientDisconnected(this);
+            AsyncLog.disconnected(clientSocket.getRemoteSocketAddress());
+        }
+    }
+
+    /**
+     * Binary mode: answers BinaryProtocol request frames until QUIT, SHUTDOWN or end of stream.
+     */
+    private void serveFrames() throws IOException {
+        ByteBuffer frame = BinaryProtocol.allocate(BinaryProtocol.REQUEST_SIZE + BinaryProtocol.MAX_REQUEST_PAYLOAD);
+        byte[] bytes = frame.array();
+
+        while (true) {
+            backOff();
+            if (!readFully(bytes, 0, BinaryProtocol.REQUEST_SIZE)) break;
+            int payload = BinaryProtocol.requestPayloadLength(frame);
+            if (!readFully(bytes, BinaryProtocol.REQUEST_SIZE, payload)) break;
+            frame.clear().limit(BinaryProtocol.REQUEST_SIZE + payload);
+
+            if (ServerConfig.LOG_REQUESTS) {
+                AsyncLog.request(BinaryProtocol.describeRequest(frame));
+            }
+
+            ByteBuffer response = Server.processFrame(frame, session);
+            if (response == null) {
+                if (!inputReady()) flush();
+                continue;
+            }
+
+            byte opcode = BinaryProtocol.opcode(response);
+            boolean last = opcode == BinaryProtocol.OP_QUIT || opcode == BinaryProtocol.OP_SHUTDOWN;
+            synchronized (outputLock) {
+                bytesOut.write(response.array(), response.arrayOffset(), response.limit());
+                if (last || !inputReady()) {
+                    bytesOut.flush();
+                }
+            }
+            if (last) {
+                if (opcode == BinaryProtocol.OP_SHUTDOWN) Server.shutdown();
+                return;
+            }
+        }
+        flush();
+    }
+
+    //Writes a text response and flushes it.
+    private void write(CharSequence response) throws IOException {
+        synchronized (outputLock) {
+            out.append(response).flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        synchronized (outputLock) {
+            if (frames) bytesOut.flush();
+            else out.flush();
+        }
+    }
+
+    /**
+     * Runs on an EventBus pusher thread: writes every queued event, as a line framed like a
+     * response or as an OP_EVENT frame, and flushes.
+     */
+    private void pushEvents() {
+        Subscriber subscriber = session.getSubscriber();
+        try {
+            synchronized (outputLock) {
+                StringBuilder sb = new StringBuilder();
+                String event;
+                while ((event = subscriber.poll()) != null) {
+                    if (frames) {
+                        ByteBuffer frame = BinaryProtocol.event(event);
+                        bytesOut.write(frame.array(), frame.arrayOffset(), frame.limit());
+                    } else {
+                        sb.setLength(0);
+                        session.appendResponse(sb, event);
+                        out.append(sb);
+                    }
+                }
+                if (frames) bytesOut.flush();
+                else out.flush();
+            }
+        } catch (IOException e) {
+            // Connection closed; the handler thread unsubscribes it.
+        }
+        subscriber.drained();
+    }
+
+    //Reads the next line without its terminator, or returns null at end of stream.
+    private String readLine() throws IOException {
+        backOff();
+        int length = 0;
+        while (true) {
+            if (inputPosition == inputLimit && !fill()) {
+                return length == 0 ? null : decode(length);
+            }
+            byte b = input[inputPosition++];
+            if (b == '\n') {
+                return decode(length);
+            }
+            if (length == line.length) {
+                line = Arrays.copyOf(line, length * 2);
+            }
+            line[length++] = b;
+        }
+    }
+
+    private String decode(int length) {
+        if (length > 0 && line[length - 1] == '\r') length--;
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    //Reads exactly length bytes into target; false if the stream ends first.
+    private boolean readFully(byte[] target, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (inputPosition == inputLimit && !fill()) return false;
+            int count = Math.min(length, inputLimit - inputPosition);
+            System.arraycopy(input, inputPosition, target, offset, count);
+            inputPosition += count;
+            offset += count;
+            length -= count;
+        }
+        return true;
+    }
+
+    private boolean fill() throws IOException {
+        int count = in.read(input);
+        if (count <= 0) return false;
+        inputPosition = 0;
+        inputLimit = count;
+        return true;
+    }
+
+    //Waits, with everything answered so far flushed, while the session is throttled.
+    private void backOff() throws IOException {
+        long resumeAt = session.takeThrottle();
+        if (resumeAt == 0) return;
+        flush();
+        long wait = resumeAt - System.nanoTime();
+        if (wait <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            // Server is draining: carry on, the next read ends the connection.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //True if more input is already buffered or waiting on the socket.
+    private boolean inputReady() throws IOException {
+        return inputPosition < inputLimit || in.available() > 0;
+    }
+
+    /**
+     * Stops reading further commands from this client. A command that is already being
+     * processed still gets its response; the next read then sees end of stream.
+     */
+    public void stopReading() {
+        try {
+            clientSocket.shutdownInput();
+        } catch (IOException e) {
+            // Socket already closed.
+        }
+    }
+}
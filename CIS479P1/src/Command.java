@@ -0,0 +1,225 @@
+/**
+ * Command - one parsed protocol request.
+ * Instances are mutable and meant to be reused: CommandParser overwrites every field on each parse,
+ * so a client thread can keep a single Command for its whole session.
+ */
+public class Command {
+
+    public enum Verb {
+        BUY,
+        SELL,
+        LIST,
+        BALANCE,
+        QUIT,
+        SHUTDOWN,
+        FRAMED,
+        BATCH,
+        STATS,
+        CANCEL,
+        BINARY,
+        VALUE,
+        SUBSCRIBE,
+        UNSUBSCRIBE,
+        LOGIN,
+        UNKNOWN
+    }
+
+    // Error codes reported by CommandParser.
+    public static final int OK = 0;
+    public static final int INVALID_COMMAND = 400;
+    public static final int FORMAT_ERROR = 403;
+
+    private Verb verb;
+    private String stockSymbol;
+    // Amount and price in micros (see Money).
+    private long amount;
+    private long price;
+    private int userID;
+    private int count;
+    private long orderId;
+    private int offset;
+    private int limit;
+    // User name and password given by a LOGIN command.
+    private String userName;
+    private String password;
+    private int error;
+
+    public Command() {
+        reset();
+    }
+
+    void reset() {
+        verb = Verb.UNKNOWN;
+        stockSymbol = null;
+        amount = 0;
+        price = 0;
+        userID = 0;
+        count = 0;
+        orderId = 0;
+        offset = 0;
+        limit = 0;
+        userName = null;
+        password = null;
+        error = OK;
+    }
+
+
+    public Verb getVerb() {
+        return verb;
+    }
+
+    void setVerb(Verb verb) {
+        this.verb = verb;
+    }
+
+    /**
+     * @return true for the verbs whose commands name a User_ID
+     */
+    public boolean namesUser() {
+        switch (verb) {
+            case BUY:
+            case SELL:
+            case LIST:
+            case BALANCE:
+            case CANCEL:
+            case VALUE:
+            case SUBSCRIBE:
+            case UNSUBSCRIBE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+
+    public String getStockSymbol() {
+        return stockSymbol;
+    }
+
+    void setStockSymbol(String stockSymbol) {
+        this.stockSymbol = stockSymbol;
+    }
+
+
+    public long getAmount() {
+        return amount;
+    }
+
+    void setAmount(long amount) {
+        this.amount = amount;
+    }
+
+
+    public long getPrice() {
+        return price;
+    }
+
+    void setPrice(long price) {
+        this.price = price;
+    }
+
+
+    public int getUserID() {
+        return userID;
+    }
+
+    void setUserID(int userID) {
+        this.userID = userID;
+    }
+
+
+    /**
+     * @return number of order lines announced by a BATCH command
+     */
+    public int getCount() {
+        return count;
+    }
+
+    void setCount(int count) {
+        this.count = count;
+    }
+
+
+    /**
+     * @return order ID given by a CANCEL command
+     */
+    public long getOrderId() {
+        return orderId;
+    }
+
+    void setOrderId(long orderId) {
+        this.orderId = orderId;
+    }
+
+
+    /**
+     * @return number of positions a paged LIST skips
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    void setOffset(int offset) {
+        this.offset = offset;
+    }
+
+
+    /**
+     * @return most positions a paged LIST returns, or 0 for all of them
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+
+    public String getUserName() {
+        return userName;
+    }
+
+    void setUserName(String userName) {
+        this.userName = userName;
+    }
+
+
+    public String getPassword() {
+        return password;
+    }
+
+    void setPassword(String password) {
+        this.password = password;
+    }
+
+
+    /**
+     * @return OK, or the protocol error code (400 or 403) when the line could not be parsed
+     */
+    public int getError() {
+        return error;
+    }
+
+    void setError(int error) {
+        this.error = error;
+    }
+
+
+    @Override
+    public String toString() {
+        return "Command{" +
+                "verb=" + verb +
+                ", stockSymbol='" + stockSymbol + '\'' +
+                ", amount=" + amount +
+                ", price=" + price +
+                ", userID=" + userID +
+                ", count=" + count +
+                ", orderId=" + orderId +
+                ", offset=" + offset +
+                ", limit=" + limit +
+                ", userName='" + userName + '\'' +
+                ", error=" + error +
+                '}';
+    }
+}
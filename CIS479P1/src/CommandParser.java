@@ -0,0 +1,323 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * CommandParser - turns one protocol line into a reusable Command without String.split,
+ * upper-casing or Double/Integer parsing. Tokens are scanned in place, verbs are matched
+ * character by character, numbers are accumulated digit by digit (amounts and prices straight
+ * into fixed-point micros, see Money) and stock symbols are
+ * interned, so parsing a well-formed command does not allocate once its symbol has been seen.
+ * Malformed input is reported through Command.getError() instead of exceptions.
+ */
+public class CommandParser {
+
+    private static final Command.Verb[] VERBS = {
+            Command.Verb.BUY,
+            Command.Verb.SELL,
+            Command.Verb.LIST,
+            Command.Verb.BALANCE,
+            Command.Verb.QUIT,
+            Command.Verb.SHUTDOWN,
+            Command.Verb.FRAMED,
+            Command.Verb.BATCH,
+            Command.Verb.STATS,
+            Command.Verb.CANCEL,
+            Command.Verb.BINARY,
+            Command.Verb.VALUE,
+            Command.Verb.SUBSCRIBE,
+            Command.Verb.UNSUBSCRIBE,
+            Command.Verb.LOGIN
+    };
+
+    // Largest number of digits accepted in an order or user ID; keeps the value exact in a long.
+    private static final int MAX_DIGITS = 18;
+
+    // Interned stock symbols, shared by every thread. Open addressing with linear probing.
+    private static final int SYMBOL_TABLE_SIZE = 4096;
+    private static final int MAX_SYMBOL_PROBES = 8;
+    private static final int MAX_INTERNED_SYMBOL_LENGTH = 16;
+    private static final AtomicReferenceArray<String> symbols = new AtomicReferenceArray<>(SYMBOL_TABLE_SIZE);
+
+    /**
+     * Parses a request line into the given command.
+     *
+     * @param line The request without its line terminator
+     * @param command Command to fill in; all of its previous contents are replaced
+     * @return true if the line is a well-formed command, false if command.getError() is set
+     */
+    public static boolean parse(CharSequence line, Command command) {
+        command.reset();
+        int length = line.length();
+
+        // Verb
+        int start = skipSpaces(line, 0, length);
+        int end = tokenEnd(line, start, length);
+        Command.Verb verb = matchVerb(line, start, end);
+        command.setVerb(verb);
+        if (verb == Command.Verb.UNKNOWN) {
+            return fail(command, Command.INVALID_COMMAND);
+        }
+
+        switch (verb) {
+            case BUY:
+            case SELL:
+                // <symbol> <amount> <price> <user_id>
+                start = skipSpaces(line, end, length);
+                end = tokenEnd(line, start, length);
+                if (start == end) return fail(command, Command.FORMAT_ERROR);
+                command.setStockSymbol(symbol(line, start, end));
+
+                start = skipSpaces(line, end, length);
+                end = tokenEnd(line, start, length);
+                long amount = parseMicros(line, start, end);
+                if (amount < 0) return fail(command, Command.FORMAT_ERROR);
+                command.setAmount(amount);
+
+                start = skipSpaces(line, end, length);
+                end = tokenEnd(line, start, length);
+                long price = parseMicros(line, start, end);
+                if (price < 0) return fail(command, Command.FORMAT_ERROR);
+                command.setPrice(price);
+
+                start = skipSpaces(line, end, length);
+                end = tokenEnd(line, start, length);
+                long buyUserId = parseInt(line, start, end);
+                if (buyUserId < 0) return fail(command, Command.FORMAT_ERROR);
+                command.setUserID((int) buyUserId);
+                break;
+
+            case LIST:
+                // <user_id> [<offset> <limit>]
+                start = skipSpaces(line, end, length);
+                end = tokenEnd(line, start, length);
+                long listUserId = parseInt(line, start, end);
+                if (listUserId < 0) return fail(command, Command.FORMAT_ERROR);
+                command.setUserID((int) listUserId);
+
+                start = skipSpaces(line, end, length);
+                if (start == length) break;
+                end = tokenEnd(line, start, length);
+                long offset = parseInt(line, start, end);
+                if (offset < 0) return fail(command, Command.FORMAT_ERROR);
+                command.setOffset((int) offset);
+
+                start = skipSpaces(line, end, length);
+                end = tokenEnd(line, start, length);
+                long limit = parseInt(line, start, end);
+                if (limit < 1) return fail(command, Command.FORMAT_ERROR);
+                command.setLimit((int) limit);
+                break;
+
+            case BALANCE:
+            case VALUE:
+            case SUBSCRIBE:
+            case UNSUBSCRIBE:
+                // <user_id>
+                start = skipSpaces(line, end, length);
+                end = tokenEnd(line, start, length);
+                long userId = parseInt(line, start, end);
+                if (userId < 0) return fail(command, Command.FORMAT_ERROR);
+                command.setUserID((int) userId);
+                break;
+
+            case CANCEL:
+                // <order_id> <user_id>
+                start = skipSpaces(line, end, length);
+                end = tokenEnd(line, start, length);
+                long orderId = parseLong(line, start, end);
+                if (orderId < 1) return fail(command, Command.FORMAT_ERROR);
+                command.setOrderId(orderId);
+
+                start = skipSpaces(line, end, length);
+                end = tokenEnd(line, start, length);
+                long cancelUserId = parseInt(line, start, end);
+                if (cancelUserId < 0) return fail(command, Command.FORMAT_ERROR);
+                command.setUserID((int) cancelUserId);
+                break;
+
+            case LOGIN:
+                // <user_name> <password>; both taken as they are, without spaces.
+                start = skipSpaces(line, end, length);
+                end = tokenEnd(line, start, length);
+                if (start == end) return fail(command, Command.FORMAT_ERROR);
+                command.setUserName(line.subSequence(start, end).toString());
+
+                start = skipSpaces(line, end, length);
+                end = tokenEnd(line, start, length);
+                if (start == end) return fail(command, Command.FORMAT_ERROR);
+                command.setPassword(line.subSequence(start, end).toString());
+                break;
+
+            case BATCH:
+                // <order_count>
+                start = skipSpaces(line, end, length);
+                end = tokenEnd(line, start, length);
+                long count = parseInt(line, start, end);
+                if (count < 1 || count > ServerConfig.MAX_BATCH_ORDERS) return fail(command, Command.FORMAT_ERROR);
+                command.setCount((int) count);
+                break;
+
+            default:
+                break;
+        }
+
+        // Nothing may follow the last expected argument.
+        if (skipSpaces(line, end, length) != length) {
+            return fail(command, Command.FORMAT_ERROR);
+        }
+        return true;
+    }
+
+    private static boolean fail(Command command, int error) {
+        command.setError(error);
+        return false;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static int skipSpaces(CharSequence line, int position, int length) {
+        while (position < length && isSpace(line.charAt(position))) position++;
+        return position;
+    }
+
+    private static int tokenEnd(CharSequence line, int position, int length) {
+        while (position < length && !isSpace(line.charAt(position))) position++;
+        return position;
+    }
+
+    //Case-insensitive comparison of the token against each known verb.
+    private static Command.Verb matchVerb(CharSequence line, int start, int end) {
+        int length = end - start;
+        for (Command.Verb verb : VERBS) {
+            String name = verb.name();
+            if (name.length() != length) continue;
+
+            boolean matches = true;
+            for (int i = 0; i < length; i++) {
+                char c = line.charAt(start + i);
+                if (c >= 'a' && c <= 'z') c -= 'a' - 'A';
+                if (c != name.charAt(i)) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) return verb;
+        }
+        return Command.Verb.UNKNOWN;
+    }
+
+    /**
+     * Parses an unsigned decimal such as "12", "0.5" or "3." into micros: "12.5" is 12_500_000.
+     * Digits beyond the sixth decimal must be zeros, since they cannot be represented.
+     *
+     * @return the value, or -1 if the token is empty, malformed, too precise or above Money.MAX_ORDER_VALUE
+     */
+    static long parseMicros(CharSequence line, int start, int end) {
+        if (start == end) return -1;
+
+        long value = 0;
+        int fractionDigits = 0;
+        boolean seenPoint = false;
+
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c == '.') {
+                if (seenPoint) return -1;
+                seenPoint = true;
+                continue;
+            }
+            if (c < '0' || c > '9') return -1;
+
+            if (seenPoint && ++fractionDigits > Money.DECIMALS) {
+                if (c != '0') return -1;
+                continue;
+            }
+            value = value * 10 + (c - '0');
+            // Checked on every digit, so the value never gets near overflowing.
+            if (value > Money.MAX_ORDER_VALUE) return -1;
+        }
+
+        // A lone "." is not a number.
+        if (seenPoint && end - start == 1) return -1;
+
+        for (int i = Math.min(fractionDigits, Money.DECIMALS); i < Money.DECIMALS; i++) {
+            value *= 10;
+        }
+        return value > Money.MAX_ORDER_VALUE ? -1 : value;
+    }
+
+    /**
+     * Parses an unsigned decimal integer that fits in an int.
+     *
+     * @return the value, or -1 if the token is empty, malformed or too large
+     */
+    static long parseInt(CharSequence line, int start, int end) {
+        if (start == end) return -1;
+
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+            if (value > Integer.MAX_VALUE) return -1;
+        }
+        return value;
+    }
+
+    /**
+     * Parses an unsigned decimal integer of at most 18 digits.
+     *
+     * @return the value, or -1 if the token is empty, malformed or too long
+     */
+    static long parseLong(CharSequence line, int start, int end) {
+        if (start == end || end - start > MAX_DIGITS) return -1;
+
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    //Returns the symbol as a String, reusing the interned instance when it has been seen before.
+    static String symbol(CharSequence line, int start, int end) {
+        int length = end - start;
+        if (length > MAX_INTERNED_SYMBOL_LENGTH) {
+            return line.subSequence(start, end).toString();
+        }
+
+        // Same hash as String.hashCode().
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + line.charAt(i);
+        }
+
+        int index = (hash ^ (hash >>> 16)) & (SYMBOL_TABLE_SIZE - 1);
+        for (int probe = 0; probe < MAX_SYMBOL_PROBES; probe++) {
+            String interned = symbols.get(index);
+            if (interned == null) {
+                String created = line.subSequence(start, end).toString();
+                if (symbols.compareAndSet(index, null, created)) return created;
+                interned = symbols.get(index);
+            }
+            if (interned.hashCode() == hash && matches(interned, line, start, end)) {
+                return interned;
+            }
+            index = (index + 1) & (SYMBOL_TABLE_SIZE - 1);
+        }
+
+        // Table neighbourhood is full; fall back to a fresh String.
+        return line.subSequence(start, end).toString();
+    }
+
+    private static boolean matches(String symbol, CharSequence line, int start, int end) {
+        if (symbol.length() != end - start) return false;
+        for (int i = 0; i < symbol.length(); i++) {
+            if (symbol.charAt(i) != line.charAt(start + i)) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,207 @@
+import java.sql.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ConnectionPool - keeps a fixed number of long-lived SQLite connections open so StockDB
+ * does not pay for opening the database file on every call. Each pooled connection also
+ * caches its prepared statements, so a repeated query only binds parameters and executes.
+ */
+public class ConnectionPool {
+
+    private final String url;
+    private final int maxSize;
+    private final int statementCacheSize;
+    private final String[] setup;
+    private final BlockingQueue<PooledConnection> idle;
+    private final AtomicInteger created = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    // Pool counters: a hit reuses an idle connection, a miss opens a new one.
+    private final LongAdder connectionHits = new LongAdder();
+    private final LongAdder connectionMisses = new LongAdder();
+    private final LongAdder connectionWaits = new LongAdder();
+
+    // Statement cache counters across all pooled connections.
+    private final LongAdder statementHits = new LongAdder();
+    private final LongAdder statementMisses = new LongAdder();
+
+    /**
+     * @param setup Statements run once on every new connection, such as per-connection PRAGMAs
+     */
+    public ConnectionPool(String url, int maxSize, int statementCacheSize, String... setup) {
+        this.url = url;
+        this.maxSize = maxSize;
+        this.statementCacheSize = statementCacheSize;
+        this.setup = setup;
+        this.idle = new ArrayBlockingQueue<>(maxSize);
+    }
+
+    /**
+     * Takes a connection from the pool, opening a new one while the pool is below its maximum
+     * size, otherwise waiting for another thread to give one back.
+     * Use in a try-with-resources block so the connection is always returned.
+     */
+    public PooledConnection borrow() throws SQLException {
+        PooledConnection pooled = idle.poll();
+        if (pooled != null) {
+            connectionHits.increment();
+            return pooled;
+        }
+
+        // Open a new connection if we are still below the limit.
+        if (created.incrementAndGet() <= maxSize) {
+            connectionMisses.increment();
+            try {
+                return new PooledConnection(open());
+            } catch (SQLException e) {
+                created.decrementAndGet();
+                throw e;
+            }
+        }
+        created.decrementAndGet();
+
+        // Pool is exhausted: block until a connection is released.
+        connectionWaits.increment();
+        try {
+            return idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+    }
+
+    private Connection open() throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        try (Statement statement = connection.createStatement()) {
+            for (String sql : setup) {
+                statement.execute(sql);
+            }
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    private void release(PooledConnection pooled) {
+        try {
+            // Never hand out a connection with an open transaction or one that has died.
+            if (pooled.connection.isClosed()) {
+                created.decrementAndGet();
+                return;
+            }
+            if (closed) {
+                // The pool was closed while this was borrowed; closing also rolls back a transaction.
+                pooled.discard();
+                created.decrementAndGet();
+                return;
+            }
+            if (!pooled.connection.getAutoCommit()) {
+                pooled.connection.rollback();
+                pooled.connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            pooled.discard();
+            created.decrementAndGet();
+            return;
+        }
+        idle.offer(pooled);
+        // close() may have drained the idle queue just before the offer.
+        if (closed && idle.remove(pooled)) {
+            pooled.discard();
+            created.decrementAndGet();
+        }
+    }
+
+    /**
+     * Closes every idle connection. Connections still borrowed are closed when released.
+     */
+    public void close() {
+        closed = true;
+        PooledConnection pooled;
+        while ((pooled = idle.poll()) != null) {
+            pooled.discard();
+            created.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns a one-line summary of pool sizing and hit/miss counters.
+     */
+    public String stats() {
+        return "connections open=" + created.get() + "/" + maxSize
+                + " idle=" + idle.size()
+                + " hits=" + connectionHits.sum()
+                + " misses=" + connectionMisses.sum()
+                + " waits=" + connectionWaits.sum()
+                + "; statements hits=" + statementHits.sum()
+                + " misses=" + statementMisses.sum();
+    }
+
+    /**
+     * A database connection on loan from the pool together with its prepared statement cache.
+     * close() returns it to the pool instead of closing the underlying connection.
+     */
+    public class PooledConnection implements AutoCloseable {
+
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+
+            // Least recently used statements are closed once the cache is full.
+            this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= statementCacheSize) return false;
+                    try {
+                        eldest.getValue().close();
+                    } catch (SQLException e) {
+                        // Statement is being dropped anyway.
+                    }
+                    return true;
+                }
+            };
+        }
+
+        /**
+         * Returns a cached prepared statement for the SQL, preparing it on first use.
+         * Parameters from any previous use are cleared.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement != null) {
+                statementHits.increment();
+                statement.clearParameters();
+                return statement;
+            }
+            statementMisses.increment();
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+            return statement;
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+
+        private void discard() {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                // Already unusable.
+            }
+        }
+    }
+}
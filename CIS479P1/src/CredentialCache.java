@@ -0,0 +1,120 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CredentialCache - checks LOGIN user names and passwords, remembering the ones it has verified.
+ *
+ * A first LOGIN reads the user from StockDB and checks the password against its PasswordHash
+ * (replacing a plain text or outdated hash on success), which costs a database read and a
+ * deliberately slow PBKDF2 run. Later LOGINs with the same user name and password, from any
+ * connection, are answered from memory for ServerConfig.AUTH_CACHE_SECONDS. An entry keeps the
+ * user ID and a SHA-256 digest of the password under a random key of this process, never the
+ * password itself. At most ServerConfig.AUTH_CACHE_SIZE entries are held; the least recently
+ * used one is dropped when the cache is full.
+ */
+public class CredentialCache {
+
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > ServerConfig.AUTH_CACHE_SIZE;
+        }
+    };
+
+    // Mixed into every digest, so a digest is worthless outside this process.
+    private static final byte[] key = new byte[32];
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder failures = new LongAdder();
+    private static final LongAdder rehashed = new LongAdder();
+
+    static {
+        new SecureRandom().nextBytes(key);
+    }
+
+    /**
+     * Checks a user name and password.
+     *
+     * @return the user's ID, or -1 if there is no such user or the password is wrong
+     */
+    public static int authenticate(String userName, String password) {
+        byte[] digest = digest(password);
+        long now = System.nanoTime();
+
+        synchronized (entries) {
+            Entry entry = entries.get(userName);
+            if (entry != null && now - entry.expires < 0 && MessageDigest.isEqual(entry.digest, digest)) {
+                hits.increment();
+                return entry.userId;
+            }
+        }
+        misses.increment();
+
+        // A wrong password never matches an entry, so it always pays for the database and PBKDF2.
+        User user = StockDB.getUserByName(userName);
+        if (user == null || !PasswordHash.verify(password, user.getPassword())) {
+            failures.increment();
+            return -1;
+        }
+        if (PasswordHash.needsRehash(user.getPassword())) {
+            StockDB.updatePassword(user.getId(), PasswordHash.hash(password));
+            rehashed.increment();
+        }
+
+        long expires = now + TimeUnit.SECONDS.toNanos(ServerConfig.AUTH_CACHE_SECONDS);
+        synchronized (entries) {
+            entries.put(userName, new Entry(user.getId(), digest, expires));
+        }
+        return user.getId();
+    }
+
+    /**
+     * Returns a one-line summary of cache size and login counters.
+     */
+    public static String stats() {
+        synchronized (entries) {
+            return "entries=" + entries.size() + "/" + ServerConfig.AUTH_CACHE_SIZE
+                    + " hits=" + hits.sum()
+                    + " misses=" + misses.sum()
+                    + " failed=" + failures.sum()
+                    + " rehashed=" + rehashed.sum();
+        }
+    }
+
+    //SHA-256 of the process key followed by the password.
+    private static byte[] digest(String password) {
+        MessageDigest sha256 = SHA256.get();
+        sha256.update(key);
+        return sha256.digest(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A verified login: whose it is, the digest of its password and when it stops being trusted.
+     */
+    private static final class Entry {
+        private final int userId;
+        private final byte[] digest;
+        private final long expires;
+
+        private Entry(int userId, byte[] digest, long expires) {
+            this.userId = userId;
+            this.digest = digest;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * EventBus - pushes balance and position changes to the connections that sent SUBSCRIBE.
+ *
+ * Publishing never blocks the trade that caused it: the event is put on the bounded queue of every
+ * Subscriber watching the user, and each connection pushes its queue when it gets to it (see
+ * Subscriber for what happens to a connection that falls behind). Subscribers are kept per user
+ * in copy-on-write arrays, so publishing takes no lock, and nothing is formatted for a user
+ * nobody watches. Events are single lines:
+ *
+ *   EVENT BALANCE <user_id> <usd_balance>
+ *   EVENT POSITION <user_id> <symbol> <stock_balance>
+ *   EVENT FILL <user_id> <BUY|SELL> <symbol> <amount> <price> <order_id>
+ *   EVENT DROPPED <count>
+ *
+ * FILL comes from the matching engine, with order ID 0 for the part of an incoming order that
+ * filled at once and so never rested in the book. The resting side of a fill only gets FILL;
+ * its settled USD balance is read with BALANCE.
+ */
+public class EventBus {
+
+    private static final ConcurrentHashMap<Integer, Subscriber[]> watchers = new ConcurrentHashMap<>();
+
+    // Runs the pushes of blocking connections, whose own thread is busy reading commands.
+    private static final ExecutorService pushers = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "event-push");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final LongAdder published = new LongAdder();
+    private static final LongAdder delivered = new LongAdder();
+    private static final LongAdder dropped = new LongAdder();
+
+    /**
+     * Starts sending the user's events to the subscriber.
+     *
+     * @return false if the connection already watches ServerConfig.EVENT_MAX_SUBSCRIPTIONS users
+     */
+    public static boolean subscribe(int userId, Subscriber subscriber) {
+        if (!subscriber.watch(userId)) return false;
+        watchers.compute(userId, (id, current) -> {
+            if (current == null) return new Subscriber[]{subscriber};
+            for (Subscriber s : current) {
+                if (s == subscriber) return current;
+            }
+            Subscriber[] added = Arrays.copyOf(current, current.length + 1);
+            added[current.length] = subscriber;
+            return added;
+        });
+        return true;
+    }
+
+    public static void unsubscribe(int userId, Subscriber subscriber) {
+        if (!subscriber.unwatch(userId)) return;
+        watchers.computeIfPresent(userId, (id, current) -> {
+            Subscriber[] kept = new Subscriber[current.length];
+            int n = 0;
+            for (Subscriber s : current) {
+                if (s != subscriber) kept[n++] = s;
+            }
+            return n == 0 ? null : Arrays.copyOf(kept, n);
+        });
+    }
+
+    /**
+     * Drops every subscription of a connection. Called when it closes.
+     */
+    public static void unsubscribeAll(Subscriber subscriber) {
+        for (int userId : subscriber.watched()) {
+            unsubscribe(userId, subscriber);
+        }
+    }
+
+    /**
+     * Runs a blocking connection's push on the pusher threads.
+     */
+    public static void push(Runnable task) {
+        pushers.execute(task);
+    }
+
+    /**
+     * Publishes the balance and position a committed BUY or SELL left the user with.
+     */
+    public static void tradeCommitted(TradeRequest trade, TradeResult result) {
+        if (!result.isOk()) return;
+        Subscriber[] subscribers = watchers.get(trade.getUserID());
+        if (subscribers == null) return;
+
+        StringBuilder sb = new StringBuilder(64).append("EVENT BALANCE ").append(trade.getUserID()).append(' ');
+        publish(subscribers, Money.appendUsd(sb, result.getUsdBalance()).toString());
+
+        Stock position = result.getPosition();
+        if (position != null) {
+            sb.setLength(0);
+            sb.append("EVENT POSITION ").append(trade.getUserID()).append(' ')
+                    .append(position.getStockSymbol()).append(' ');
+            publish(subscribers, Money.appendQuantity(sb, position.getStockBalance()).toString());
+        }
+    }
+
+    /**
+     * Publishes the USD balance of a user, for changes that only report that.
+     */
+    public static void balanceChanged(int userId, long usdBalance) {
+        Subscriber[] subscribers = watchers.get(userId);
+        if (subscribers == null) return;
+        StringBuilder sb = new StringBuilder(48).append("EVENT BALANCE ").append(userId).append(' ');
+        publish(subscribers, Money.appendUsd(sb, usdBalance).toString());
+    }
+
+    /**
+     * Publishes one fill of a matched order.
+     */
+    public static void orderFilled(int userId, boolean buy, String symbol, long amount, long price, long orderId) {
+        Subscriber[] subscribers = watchers.get(userId);
+        if (subscribers == null) return;
+        StringBuilder sb = new StringBuilder(80).append("EVENT FILL ").append(userId)
+                .append(buy ? " BUY " : " SELL ").append(symbol).append(' ');
+        Money.appendQuantity(sb, amount);
+        Money.appendUsd(sb.append(' '), price);
+        publish(subscribers, sb.append(' ').append(orderId).toString());
+    }
+
+    /**
+     * Returns a one-line summary of subscriptions and event counters.
+     */
+    public static String stats() {
+        return "watched users=" + watchers.size()
+                + " published=" + published.sum()
+                + " delivered=" + delivered.sum()
+                + " dropped=" + dropped.sum();
+    }
+
+    static void countDelivered() {
+        delivered.increment();
+    }
+
+    static void countDropped() {
+        dropped.increment();
+    }
+
+    private static void publish(Subscriber[] subscribers, String event) {
+        published.increment();
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(event);
+        }
+    }
+}
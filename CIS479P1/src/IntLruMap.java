@@ -0,0 +1,191 @@
+import java.util.Arrays;
+
+/**
+ * IntLruMap - a fixed-capacity map from int keys to values with least-recently-used eviction.
+ * Keys are stored as primitives (no Integer boxing) in parallel arrays; buckets chain through
+ * slot indexes and a doubly linked list of slot indexes keeps the access order.
+ * Not thread-safe: callers synchronize around it.
+ */
+public class IntLruMap<V> {
+
+    private static final int NONE = -1;
+
+    private final int capacity;
+    private final int mask;
+    private final int[] buckets;
+
+    // Per-slot entry data.
+    private final int[] keys;
+    private final Object[] values;
+    private final int[] chain;
+    private final int[] prev;
+    private final int[] next;
+
+    private int size;
+    private int head = NONE;   // most recently used
+    private int tail = NONE;   // least recently used
+
+    public IntLruMap(int capacity) {
+        this.capacity = capacity;
+
+        int bucketCount = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+        this.mask = bucketCount - 1;
+        this.buckets = new int[bucketCount];
+        Arrays.fill(buckets, NONE);
+
+        this.keys = new int[capacity];
+        this.values = new Object[capacity];
+        this.chain = new int[capacity];
+        this.prev = new int[capacity];
+        this.next = new int[capacity];
+    }
+
+    /**
+     * Returns the value for the key and marks it as most recently used, or null if absent.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int slot = find(key);
+        if (slot == NONE) return null;
+        moveToFront(slot);
+        return (V) values[slot];
+    }
+
+    public boolean containsKey(int key) {
+        return find(key) != NONE;
+    }
+
+    /**
+     * Stores the value, evicting the least recently used entry when the map is full.
+     *
+     * @return the evicted value, or null if nothing was evicted
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        int slot = find(key);
+        if (slot != NONE) {
+            values[slot] = value;
+            moveToFront(slot);
+            return null;
+        }
+
+        V evicted = null;
+        if (size < capacity) {
+            slot = size++;
+        } else {
+            slot = tail;
+            evicted = (V) values[slot];
+            unlinkBucket(slot);
+            unlinkList(slot);
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+
+        int bucket = bucket(key);
+        chain[slot] = buckets[bucket];
+        buckets[bucket] = slot;
+
+        linkFront(slot);
+        return evicted;
+    }
+
+    /**
+     * Removes the key if present.
+     */
+    public void remove(int key) {
+        int slot = find(key);
+        if (slot == NONE) return;
+
+        unlinkBucket(slot);
+        unlinkList(slot);
+        values[slot] = null;
+
+        // Keep the used slots packed at 0..size-1 by moving the last slot into the hole.
+        int last = --size;
+        if (slot != last) {
+            relocate(last, slot);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    private int bucket(int key) {
+        // Spread the bits so sequential user IDs do not all land in neighbouring buckets.
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int find(int key) {
+        for (int slot = buckets[bucket(key)]; slot != NONE; slot = chain[slot]) {
+            if (keys[slot] == key) return slot;
+        }
+        return NONE;
+    }
+
+    private void unlinkBucket(int slot) {
+        int bucket = bucket(keys[slot]);
+        if (buckets[bucket] == slot) {
+            buckets[bucket] = chain[slot];
+            return;
+        }
+        for (int s = buckets[bucket]; s != NONE; s = chain[s]) {
+            if (chain[s] == slot) {
+                chain[s] = chain[slot];
+                return;
+            }
+        }
+    }
+
+    //Moves the entry in slot "from" into the empty slot "to", fixing every link that pointed at it.
+    private void relocate(int from, int to) {
+        keys[to] = keys[from];
+        values[to] = values[from];
+        chain[to] = chain[from];
+        prev[to] = prev[from];
+        next[to] = next[from];
+        values[from] = null;
+
+        int bucket = bucket(keys[to]);
+        if (buckets[bucket] == from) {
+            buckets[bucket] = to;
+        } else {
+            for (int s = buckets[bucket]; s != NONE; s = chain[s]) {
+                if (chain[s] == from) {
+                    chain[s] = to;
+                    break;
+                }
+            }
+        }
+
+        if (prev[to] != NONE) next[prev[to]] = to; else head = to;
+        if (next[to] != NONE) prev[next[to]] = to; else tail = to;
+    }
+
+    private void moveToFront(int slot) {
+        if (slot == head) return;
+        unlinkList(slot);
+        linkFront(slot);
+    }
+
+    private void linkFront(int slot) {
+        prev[slot] = NONE;
+        next[slot] = head;
+        if (head != NONE) prev[head] = slot;
+        head = slot;
+        if (tail == NONE) tail = slot;
+    }
+
+    private void unlinkList(int slot) {
+        if (prev[slot] != NONE) next[prev[slot]] = next[slot]; else head = next[slot];
+        if (next[slot] != NONE) prev[next[slot]] = prev[slot]; else tail = prev[slot];
+        prev[slot] = NONE;
+        next[slot] = NONE;
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Journal - append-only, memory-mapped log of the changes made by MemoryStorage.
+ *
+ * Each entry is [int length][int CRC32 of the body][body]. The file is mapped in regions of
+ * ServerConfig.JOURNAL_REGION_MB, so appending is a sequential copy into memory: the entry
+ * survives a crash of the server at once, and a crash of the machine once the page cache is
+ * written back, or before append returns with -Dstorage.journalForce=true. The mapping leaves
+ * zeros after the last entry; replay stops at the first zero length or damaged entry.
+ */
+public class Journal implements AutoCloseable {
+
+    private static final int HEADER_SIZE = 8;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+
+    private MappedByteBuffer region;
+    private long regionStart = 0;
+    private long size = 0;
+    private long entries = 0;
+
+    private Journal(Path file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * Creates an empty journal, replacing any file of that name.
+     */
+    public static Journal create(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new Journal(file, channel);
+    }
+
+    /**
+     * Appends the remaining bytes of body as one entry. Not thread-safe; MemoryStorage appends
+     * under its own lock.
+     */
+    public void append(ByteBuffer body) throws IOException {
+        int length = body.remaining();
+        if (region == null || region.remaining() < HEADER_SIZE + length) {
+            // Map the next region right where this entry starts, so entries stay contiguous.
+            long regionSize = Math.max((long) ServerConfig.JOURNAL_REGION_MB << 20, HEADER_SIZE + length);
+            region = channel.map(FileChannel.MapMode.READ_WRITE, size, regionSize);
+            regionStart = size;
+        }
+
+        crc.reset();
+        crc.update(body.duplicate());
+        int start = region.position();
+        region.putInt(length).putInt((int) crc.getValue()).put(body);
+        if (ServerConfig.JOURNAL_FORCE) {
+            region.force(start, HEADER_SIZE + length);
+        }
+        size += HEADER_SIZE + length;
+        entries++;
+    }
+
+    /**
+     * @return bytes appended since the journal was created
+     */
+    public long size() {
+        return size;
+    }
+
+    public long entries() {
+        return entries;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (region != null) {
+            region.force(0, (int) (size - regionStart));
+        }
+        channel.close();
+    }
+
+    /**
+     * Passes the body of every intact entry of a journal file to apply, in order.
+     *
+     * @return the number of entries replayed
+     */
+    public static long replay(Path file, Consumer<ByteBuffer> apply) throws IOException {
+        long replayed = 0;
+        long offset = 0;
+        long fileSize = Files.size(file);
+        CRC32 check = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            while (true) {
+                int length = in.readInt();
+                if (length <= 0 || offset + HEADER_SIZE + length > fileSize) break;
+                int expected = in.readInt();
+                byte[] body = new byte[length];
+                in.readFully(body);
+
+                check.reset();
+                check.update(body);
+                if ((int) check.getValue() != expected) {
+                    System.out.println("Journal " + file + ": damaged entry at offset " + offset + ", replay stops there");
+                    break;
+                }
+                apply.accept(ByteBuffer.wrap(body));
+                replayed++;
+                offset += HEADER_SIZE + length;
+            }
+        } catch (EOFException e) {
+            // Last entry cut short by a crash.
+        }
+        return replayed;
+    }
+}
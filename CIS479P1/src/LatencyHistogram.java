@@ -0,0 +1,156 @@
+import java.io.PrintStream;
+
+/**
+ * LatencyHistogram - fixed-memory latency histogram in the style of HdrHistogram.
+ *
+ * Values (microseconds) are counted in log-linear buckets: every power-of-two range is split
+ * into 1024 equal sub-buckets, so any recorded value is reported to within 0.1% (three
+ * significant digits) however long the run. Recording is a couple of shifts and an array
+ * increment and never allocates. A histogram is not thread-safe; LatencyRecorder is the
+ * lock-free variant for values recorded from many threads, and snapshots into this class.
+ */
+public class LatencyHistogram {
+
+    // 2^SUB_BUCKET_BITS sub-buckets in the first range, half of them in every later range.
+    private static final int SUB_BUCKET_BITS = 11;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+    // Largest value tracked exactly (about 4.6 minutes); larger values are counted at this value.
+    public static final long HIGHEST_TRACKABLE_VALUE = (1L << 38) / 1000;
+
+    private static final int BUCKET_COUNT = bucketIndex(HIGHEST_TRACKABLE_VALUE) + 1;
+
+    static final int LENGTH = (BUCKET_COUNT + 1) * SUB_BUCKET_HALF;
+
+    private final long[] counts = new long[LENGTH];
+    private long totalCount = 0;
+    private long total = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+
+    /**
+     * Records one value; negative values are counted as 0.
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        if (value > HIGHEST_TRACKABLE_VALUE) value = HIGHEST_TRACKABLE_VALUE;
+        counts[countsIndex(value)]++;
+        totalCount++;
+        total += value;
+        if (value < min) min = value;
+        if (value > max) max = value;
+    }
+
+    /**
+     * Adds every value recorded in the other histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        total += other.total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Adds count values at the given counts index without touching the sum, min or max;
+     * used by LatencyRecorder snapshots, which then call addStats().
+     */
+    void addAtIndex(int index, long count) {
+        counts[index] += count;
+        totalCount += count;
+    }
+
+    void addStats(long total, long min, long max) {
+        this.total += total;
+        this.min = Math.min(this.min, min);
+        this.max = Math.max(this.max, max);
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMin() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return totalCount == 0 ? 0 : (double) total / totalCount;
+    }
+
+    /**
+     * Returns the value below which the given percentage of recorded values fall.
+     * The result is the highest value equivalent to the bucket that holds that rank.
+     *
+     * @param percentile 0 to 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) return 0;
+
+        long rank = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * totalCount);
+        if (rank < 1) rank = 1;
+
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestEquivalentValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Prints the percentile distribution (value at each percentile and the count below it),
+     * the same shape as HdrHistogram's outputPercentileDistribution.
+     */
+    public void printDistribution(PrintStream out) {
+        out.printf("%12s %12s %12s%n", "Value(us)", "Percentile", "TotalCount");
+        double[] percentiles = {0, 10, 20, 30, 40, 50, 60, 70, 75, 80, 85, 90, 95, 97.5, 99, 99.5, 99.9, 99.95, 99.99, 100};
+        for (double percentile : percentiles) {
+            long value = getValueAtPercentile(percentile);
+            out.printf("%12d %12.6f %12d%n", value, percentile / 100.0, countAtOrBelow(value));
+        }
+        out.printf("#[Mean = %.1f, Max = %d, TotalCount = %d]%n", getMean(), getMax(), getTotalCount());
+    }
+
+    private long countAtOrBelow(long value) {
+        long count = 0;
+        int last = countsIndex(Math.min(value, HIGHEST_TRACKABLE_VALUE));
+        for (int i = 0; i <= last; i++) {
+            count += counts[i];
+        }
+        return count;
+    }
+
+
+    //Power-of-two range of the value: 0 for values below SUB_BUCKET_COUNT.
+    private static int bucketIndex(long value) {
+        int bucket = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return Math.max(bucket, 0);
+    }
+
+    //Index into the counts of a value between 0 and HIGHEST_TRACKABLE_VALUE.
+    static int countsIndex(long value) {
+        int bucket = bucketIndex(value);
+        int subBucket = (int) (value >>> bucket);
+        // The first range fills indexes [0, SUB_BUCKET_COUNT); each later range only uses its upper half.
+        return bucket * SUB_BUCKET_HALF + subBucket;
+    }
+
+    private static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) return index;
+        int bucket = index / SUB_BUCKET_HALF - 1;
+        long subBucket = index - (long) bucket * SUB_BUCKET_HALF;
+        return ((subBucket + 1) << bucket) - 1;
+    }
+}
@@ -0,0 +1,60 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyRecorder - lock-free counterpart of LatencyHistogram for values recorded by many
+ * threads at once. Recording is one atomic increment in the same log-linear bucket layout plus
+ * a LongAdder for the sum; the maximum is only written when it grows. snapshot() copies the
+ * counts into a LatencyHistogram for percentiles and reporting, without stopping the recorders.
+ */
+public class LatencyRecorder {
+
+    private final AtomicLongArray counts = new AtomicLongArray(LatencyHistogram.LENGTH);
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(0);
+
+
+    /**
+     * Records one value (microseconds); negative values are counted as 0.
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        if (value > LatencyHistogram.HIGHEST_TRACKABLE_VALUE) value = LatencyHistogram.HIGHEST_TRACKABLE_VALUE;
+        counts.incrementAndGet(LatencyHistogram.countsIndex(value));
+        total.add(value);
+
+        // Only contended while the extremes are still moving, which settles quickly.
+        long current;
+        while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+            // Retry against the newer minimum.
+        }
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry against the newer maximum.
+        }
+    }
+
+    /**
+     * Records the time elapsed since startNanos, a System.nanoTime() reading.
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * Returns a copy of everything recorded so far. Values recorded while the copy is taken
+     * may or may not be included.
+     */
+    public LatencyHistogram snapshot() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < LatencyHistogram.LENGTH; i++) {
+            long count = counts.get(i);
+            if (count != 0) histogram.addAtIndex(i, count);
+        }
+        if (histogram.getTotalCount() > 0) {
+            histogram.addStats(total.sum(), min.get(), max.get());
+        }
+        return histogram;
+    }
+}
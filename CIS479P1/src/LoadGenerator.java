@@ -0,0 +1,437 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LoadGenerator - closed-loop load for the server, started with "java Client <server_ip> --load".
+ *
+ * Each connection runs on its own thread and keeps exactly one command in flight: it sends a
+ * BUY, SELL, LIST or BALANCE picked from a weighted mix for a random user, waits for the framed
+ * response and records the latency. With a target rate each connection sends on a fixed
+ * schedule and latency is measured from the scheduled send time, so a stalled server shows up
+ * in the percentiles instead of silently lowering the request rate (coordinated omission).
+ *
+ * With --protocol=binary the same mix is sent as BinaryProtocol frames.
+ *
+ * The report lists throughput, response codes and p50/p99/p999 per command, the overall
+ * percentile distribution, and one RESULT line of key=value pairs for comparing server builds.
+ * Users 1 to --users must exist on the server, or their commands are answered with 400.
+ */
+public class LoadGenerator {
+
+    private static final String[] VERBS = {"BUY", "SELL", "LIST", "BALANCE"};
+    private static final int BUY = 0, SELL = 1, LIST = 2, BALANCE = 3;
+
+    // Options and their defaults; "--name=value" on the command line.
+    private int connections = 16;
+    private double rate = 0;               // commands per second over all connections, 0 = as fast as possible
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private int users = 1000;
+    private int[] weights = {40, 30, 10, 20};  // BUY, SELL, LIST, BALANCE
+    private String[] symbols = {"MSFT", "AAPL", "AMD", "NVDA", "INTC"};
+    private int maxAmount = 10;
+    private long seed = 42;
+    private String label = "";
+    private boolean binary = false;
+
+    private final String host;
+
+    // Results of all connections, recorded without locks.
+    private final LatencyRecorder[] latencies = new LatencyRecorder[VERBS.length];
+    private final LongAdder[] ok = new LongAdder[VERBS.length];
+    private final LongAdder[] failed = new LongAdder[VERBS.length];
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+
+    private LoadGenerator(String host) {
+        this.host = host;
+        for (int v = 0; v < VERBS.length; v++) {
+            latencies[v] = new LatencyRecorder();
+            ok[v] = new LongAdder();
+            failed[v] = new LongAdder();
+        }
+    }
+
+    static void usage() {
+        System.err.println("Usage: java Client <server_ip> --load [--connections=16] [--rate=<commands/s>]"
+                + " [--duration=30] [--warmup=5] [--users=1000] [--mix=BUY:40,SELL:30,LIST:10,BALANCE:20]"
+                + " [--symbols=MSFT,AAPL,AMD,NVDA,INTC] [--maxAmount=10] [--seed=42] [--label=<name>]"
+                + " [--protocol=text|binary]");
+    }
+
+    /**
+     * Parses the options that follow "--load" and runs the load.
+     *
+     * @param host Server address
+     * @param options Arguments after "--load"
+     */
+    static void run(String host, String[] options) {
+        LoadGenerator generator = new LoadGenerator(host);
+        try {
+            for (String option : options) {
+                generator.parseOption(option);
+            }
+            generator.checkSymbols();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(1);
+        }
+        generator.run();
+    }
+
+    private void parseOption(String option) {
+        int equals = option.indexOf('=');
+        if (!option.startsWith("--") || equals < 0) {
+            throw new IllegalArgumentException("Unknown option: " + option);
+        }
+        String name = option.substring(2, equals);
+        String value = option.substring(equals + 1);
+
+        switch (name) {
+            case "connections": connections = positive(name, Integer.parseInt(value)); break;
+            case "rate": rate = Double.parseDouble(value); break;
+            case "duration": durationSeconds = positive(name, Integer.parseInt(value)); break;
+            case "warmup": warmupSeconds = Math.max(0, Integer.parseInt(value)); break;
+            case "users": users = positive(name, Integer.parseInt(value)); break;
+            case "mix": weights = parseMix(value); break;
+            case "symbols": symbols = value.split(","); break;
+            case "maxAmount": maxAmount = positive(name, Integer.parseInt(value)); break;
+            case "seed": seed = Long.parseLong(value); break;
+            case "label": label = value; break;
+            case "protocol": binary = parseProtocol(value); break;
+            default: throw new IllegalArgumentException("Unknown option: " + option);
+        }
+    }
+
+    //A binary request frame carries at most BinaryProtocol.MAX_SYMBOL_LENGTH ASCII characters.
+    private void checkSymbols() {
+        if (!binary) return;
+        for (String symbol : symbols) {
+            if (symbol.isEmpty() || symbol.length() > BinaryProtocol.MAX_SYMBOL_LENGTH) {
+                throw new IllegalArgumentException("--protocol=binary needs symbols of 1-"
+                        + BinaryProtocol.MAX_SYMBOL_LENGTH + " characters: " + symbol);
+            }
+        }
+    }
+
+    private boolean parseProtocol(String value) {
+        if (value.equalsIgnoreCase("text")) return false;
+        if (!value.equalsIgnoreCase("binary")) {
+            throw new IllegalArgumentException("--protocol must be text or binary");
+        }
+        return true;
+    }
+
+    private static int positive(String name, int value) {
+        if (value < 1) throw new IllegalArgumentException("--" + name + " must be at least 1");
+        return value;
+    }
+
+    //"BUY:40,SELL:30,..." -> weights in VERBS order; verbs left out get weight 0.
+    private static int[] parseMix(String mix) {
+        int[] parsed = new int[VERBS.length];
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split(":");
+            int verb = -1;
+            for (int i = 0; i < VERBS.length; i++) {
+                if (VERBS[i].equalsIgnoreCase(parts[0].trim())) verb = i;
+            }
+            if (verb < 0 || parts.length != 2) throw new IllegalArgumentException("Bad --mix entry: " + entry);
+            parsed[verb] = Integer.parseInt(parts[1].trim());
+        }
+        int total = 0;
+        for (int weight : parsed) total += weight;
+        if (total <= 0) throw new IllegalArgumentException("--mix needs at least one positive weight");
+        return parsed;
+    }
+
+
+    private void run() {
+        System.out.printf("Load: %d connections, rate %s, %ds warmup + %ds, users 1-%d, mix BUY:%d SELL:%d LIST:%d BALANCE:%d%n",
+                connections, rate > 0 ? rate + "/s" : "unlimited", warmupSeconds, durationSeconds, users,
+                weights[BUY], weights[SELL], weights[LIST], weights[BALANCE]);
+
+        // Each connection sends every intervalNanos when a rate is set.
+        long intervalNanos = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * connections / rate) : 0;
+
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+        long measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+        CountDownLatch done = new CountDownLatch(connections);
+        for (int i = 0; i < connections; i++) {
+            // Spread the first sends of the connections over one interval.
+            long firstSend = start + (intervalNanos * i) / connections;
+            Worker worker = new Worker(i, firstSend, intervalNanos, measureStart, end, done);
+            Thread thread = new Thread(worker, "load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try {
+            // Connections stuck on a response are abandoned a little after the end of the run.
+            done.await(end - System.nanoTime() + TimeUnit.SECONDS.toNanos(10), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        report((end - measureStart) / 1e9);
+    }
+
+    // Abandoned connections may still be recording; their results are read as they stand.
+    private void report(double seconds) {
+        LatencyHistogram all = new LatencyHistogram();
+        long totalOk = 0;
+        long totalFailed = 0;
+        System.out.println();
+        System.out.printf("%-8s %10s %10s %8s %10s %10s %10s %10s %10s%n",
+                "Command", "Count", "Per sec", "Non-200", "Mean(us)", "p50(us)", "p99(us)", "p999(us)", "Max(us)");
+        for (int v = 0; v < VERBS.length; v++) {
+            LatencyHistogram h = latencies[v].snapshot();
+            all.add(h);
+            totalOk += ok[v].sum();
+            totalFailed += failed[v].sum();
+            if (h.getTotalCount() == 0) continue;
+            printRow(VERBS[v], h, failed[v].sum(), seconds);
+        }
+        printRow("ALL", all, totalFailed, seconds);
+
+        if (connectFailures.sum() > 0 || disconnects.sum() > 0) {
+            System.out.printf("%d connection(s) could not connect, %d closed by the server during the run%n",
+                    connectFailures.sum(), disconnects.sum());
+        }
+
+        System.out.println();
+        System.out.println("Latency distribution (all commands):");
+        all.printDistribution(System.out);
+
+        System.out.println();
+        System.out.printf("RESULT label=%s protocol=%s connections=%d target_rate=%.0f duration_s=%d ops=%d ops_per_s=%.1f"
+                        + " ok=%d non_200=%d mean_us=%.1f p50_us=%d p90_us=%d p99_us=%d p999_us=%d max_us=%d%n",
+                label.isEmpty() ? "-" : label, binary ? "binary" : "text", connections, rate, durationSeconds,
+                all.getTotalCount(),
+                all.getTotalCount() / seconds, totalOk, totalFailed, all.getMean(),
+                all.getValueAtPercentile(50), all.getValueAtPercentile(90), all.getValueAtPercentile(99),
+                all.getValueAtPercentile(99.9), all.getMax());
+    }
+
+    private static void printRow(String name, LatencyHistogram h, long failed, double seconds) {
+        System.out.printf("%-8s %10d %10.1f %8d %10.1f %10d %10d %10d %10d%n",
+                name, h.getTotalCount(), h.getTotalCount() / seconds, failed, h.getMean(),
+                h.getValueAtPercentile(50), h.getValueAtPercentile(99), h.getValueAtPercentile(99.9), h.getMax());
+    }
+
+
+    //Sends the command last picked by nextCommand and returns the response status, or -1 on close.
+    private interface Exchange {
+        int send(int verb) throws IOException;
+    }
+
+    /**
+     * One connection: sends a command, reads its response, records the latency, repeats.
+     */
+    private class Worker implements Runnable {
+
+        private final SplittableRandom random;
+        private final long firstSend;
+        private final long intervalNanos;
+        private final long measureStart;
+        private final long end;
+        private final CountDownLatch done;
+
+        private final StringBuilder command = new StringBuilder(64);
+        private final int totalWeight;
+
+        // Fields of the command last picked by nextCommand.
+        private int user;
+        private String symbol;
+        private int amount;
+        private int cents;
+
+        Worker(int index, long firstSend, long intervalNanos, long measureStart, long end, CountDownLatch done) {
+            this.random = new SplittableRandom(seed + index);
+            this.firstSend = firstSend;
+            this.intervalNanos = intervalNanos;
+            this.measureStart = measureStart;
+            this.end = end;
+            this.done = done;
+            int sum = 0;
+            for (int weight : weights) sum += weight;
+            totalWeight = sum;
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = new Socket(host, Client.SERVER_PORT)) {
+                socket.setTcpNoDelay(true);
+                if (binary) {
+                    runFrames(socket);
+                } else {
+                    runLines(socket);
+                }
+            } catch (ConnectException e) {
+                connectFailures.increment();
+                System.out.println("Connection failed: " + e.getMessage());
+            } catch (IOException e) {
+                disconnects.increment();
+            } finally {
+                done.countDown();
+            }
+        }
+
+        //Text protocol: FRAMED responses, one command line per request.
+        private void runLines(Socket socket) throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            out.write("FRAMED\n");
+            out.flush();
+            if (readStatus(in) == null) {
+                disconnects.increment();
+                return;
+            }
+
+            Exchange exchange = verb -> {
+                out.append(command);
+                out.flush();
+                String status = readStatus(in);
+                if (status == null) return -1;
+                return status.startsWith("200") ? 200 : 400;
+            };
+            if (!drive(exchange)) return;
+
+            out.write("QUIT\n");
+            out.flush();
+            readStatus(in);
+        }
+
+        //Binary protocol: one BinaryProtocol request frame per command.
+        private void runFrames(Socket socket) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            out.write("BINARY\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String answer = Client.readAsciiLine(in);
+            if (answer == null || !answer.startsWith("200")) {
+                disconnects.increment();
+                return;
+            }
+
+            ByteBuffer request = BinaryProtocol.allocate(BinaryProtocol.REQUEST_SIZE);
+            ByteBuffer[] response = {BinaryProtocol.allocate(1024)};
+            Exchange exchange = verb -> {
+                encodeCommand(request, verb);
+                out.write(request.array(), 0, BinaryProtocol.REQUEST_SIZE);
+                out.flush();
+                response[0] = Client.readFrame(in, response[0]);
+                if (response[0] == null) return -1;
+                return response[0].getShort(2) & 0xFFFF;
+            };
+            if (!drive(exchange)) return;
+
+            request.clear();
+            BinaryProtocol.encodeRequest(request, BinaryProtocol.OP_QUIT, null, 0, 0, 0);
+            out.write(request.array(), 0, BinaryProtocol.REQUEST_SIZE);
+            out.flush();
+            Client.readFrame(in, BinaryProtocol.allocate(BinaryProtocol.RESPONSE_SIZE));
+        }
+
+        /**
+         * Sends commands on schedule until the run ends and records their latencies.
+         * Returns false if the connection closed early.
+         */
+        private boolean drive(Exchange exchange) throws IOException {
+            long scheduled = firstSend;
+            while (true) {
+                if (intervalNanos > 0) {
+                    // Wait for the slot; when behind schedule, send at once and keep the schedule.
+                    long wait;
+                    while ((wait = scheduled - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                long sent = System.nanoTime();
+                if (sent >= end) return true;
+                long startedAt = intervalNanos > 0 ? scheduled : sent;
+
+                int verb = nextCommand();
+                int status = exchange.send(verb);
+                long received = System.nanoTime();
+                if (status < 0) {
+                    disconnects.increment();
+                    return false;
+                }
+
+                if (startedAt >= measureStart) {
+                    latencies[verb].record(TimeUnit.NANOSECONDS.toMicros(received - startedAt));
+                    if (status == 200) ok[verb].increment();
+                    else failed[verb].increment();
+                }
+                scheduled = intervalNanos > 0 ? scheduled + intervalNanos : received;
+            }
+        }
+
+        //Picks the next command, fills its fields and builds its text line; returns its verb.
+        private int nextCommand() {
+            int pick = random.nextInt(totalWeight);
+            int verb = 0;
+            while (pick >= weights[verb]) {
+                pick -= weights[verb];
+                verb++;
+            }
+
+            user = 1 + random.nextInt(users);
+            command.setLength(0);
+            command.append(VERBS[verb]).append(' ');
+            if (verb == BUY || verb == SELL) {
+                symbol = symbols[random.nextInt(symbols.length)];
+                amount = 1 + random.nextInt(maxAmount);
+                cents = 100 + random.nextInt(49_900);
+                command.append(symbol).append(' ')
+                        .append(amount).append(' ')
+                        .append(cents / 100).append('.').append(cents % 100 / 10).append(cents % 10).append(' ');
+            }
+            command.append(user).append('\n');
+            return verb;
+        }
+
+        //Writes the command picked by nextCommand as a request frame.
+        private void encodeCommand(ByteBuffer request, int verb) {
+            request.clear();
+            switch (verb) {
+                case BUY:
+                case SELL:
+                    BinaryProtocol.encodeRequest(request, verb == BUY ? BinaryProtocol.OP_BUY : BinaryProtocol.OP_SELL,
+                            symbol, Money.ofUnits(amount), cents * (Money.SCALE / 100), user);
+                    break;
+                case LIST:
+                    BinaryProtocol.encodeRequest(request, BinaryProtocol.OP_LIST, null, 0, 0, user);
+                    break;
+                default:
+                    BinaryProtocol.encodeRequest(request, BinaryProtocol.OP_BALANCE, null, 0, 0, user);
+                    break;
+            }
+        }
+
+        /**
+         * Reads one framed response and returns its first line (the status), or null if the
+         * connection closed. An unframed "400 Server busy" is followed by a close, so it ends as null too.
+         */
+        private String readStatus(BufferedReader in) throws IOException {
+            String status = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.equals(".")) return status == null ? "" : status;
+                if (status == null) status = line;
+            }
+            return null;
+        }
+    }
+}
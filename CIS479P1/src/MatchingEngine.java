@@ -0,0 +1,290 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MatchingEngine - turns BUY and SELL into limit orders that trade between users.
+ *
+ * An order first has what it may spend held in escrow by StockDB (USD for a BUY, stock for a
+ * SELL), so it can never be filled beyond the account's means. It is then matched against the
+ * symbol's OrderBook by price-time priority; the unfilled rest waits in the book at its limit
+ * price until it is matched by a later order or cancelled. The fills are settled through StockDB
+ * in one transaction and the accounts involved are dropped from AccountCache so the next
+ * BALANCE or LIST reads the settled values.
+ *
+ * StockDB stores every order together with its escrow and takes fills and releases off it, so
+ * an order still open when the server dies is known at the next start. The books themselves
+ * are not restored: releaseStoredOrders gives such orders' escrow back instead.
+ *
+ * Matching holds only the lock of one symbol's book, so different symbols match in parallel.
+ * Enabled with -Dtrade.matching=true.
+ */
+public class MatchingEngine {
+
+    private final ConcurrentHashMap<String, OrderBook> books = new ConcurrentHashMap<>();
+    // Books by index, for finding the book of an order ID. Replaced, never modified, when a book is added.
+    private volatile OrderBook[] booksByIndex = new OrderBook[0];
+
+    private final LongAdder orders = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder fills = new LongAdder();
+    private final LongAdder cancels = new LongAdder();
+
+    /**
+     * Submits a limit order. Returns once its fills are settled and any unfilled rest is in the book.
+     */
+    public OrderResult submit(TradeRequest order) {
+        String symbol = order.getStockSymbol();
+        OrderBook book = book(symbol);
+        long reserved;
+        try {
+            synchronized (book) {
+                reserved = book.reserve();
+            }
+        } catch (IllegalStateException e) {
+            // Nothing has been escrowed yet, so there is nothing to give back.
+            AsyncLog.error(e.getMessage());
+            rejected.increment();
+            return new OrderResult(TradeResult.Status.ERROR, order, 0, 0, 0, 0, 0);
+        }
+
+        TradeResult escrow = StockDB.escrowOrder(reserved, order.isBuy(), order.getUserID(), symbol,
+                order.getAmount(), order.getPrice());
+        if (!escrow.isOk()) {
+            synchronized (book) {
+                book.unreserve(reserved);
+            }
+            rejected.increment();
+            return new OrderResult(escrow.getStatus(), order, 0, 0, 0, 0, 0);
+        }
+        orders.increment();
+
+        long limit = order.getPrice();
+        OrderBook.Fills matched = new OrderBook.Fills();
+        long unfilled;
+        synchronized (book) {
+            unfilled = book.match(order.isBuy(), limit, order.getAmount(), matched);
+            if (unfilled > 0) {
+                book.add(reserved, order.isBuy(), limit, unfilled, order.getUserID());
+            } else {
+                book.unreserve(reserved);
+            }
+        }
+        long orderId = unfilled > 0 ? reserved : 0;
+
+        long usdBalance = escrow.getUsdBalance();
+        long filled = order.getAmount() - unfilled;
+        long value = 0;
+        for (int i = 0; i < matched.size(); i++) {
+            value += Money.multiply(matched.getAmount(i), matched.getPrice(i));
+        }
+
+        if (matched.size() > 0) {
+            fills.add(matched.size());
+            PriceCache.trade(symbol, matched.getPrice(matched.size() - 1));
+            Long settled = StockDB.settleFills(reserved, symbol, order.isBuy(), order.getUserID(), order.getPrice(),
+                    matched);
+            for (int i = 0; i < matched.size(); i++) {
+                AccountCache.invalidate(matched.getUser(i));
+            }
+            if (settled == null) {
+                releaseUnsettled(book, order, reserved, unfilled, matched);
+                AccountCache.invalidate(order.getUserID());
+                return new OrderResult(TradeResult.Status.ERROR, order, 0, 0, 0, 0, 0);
+            }
+            usdBalance = settled;
+
+            // Formatted only for users somebody has subscribed to.
+            for (int i = 0; i < matched.size(); i++) {
+                EventBus.orderFilled(matched.getUser(i), !order.isBuy(), symbol,
+                        matched.getAmount(i), matched.getPrice(i), matched.getOrderId(i));
+                EventBus.orderFilled(order.getUserID(), order.isBuy(), symbol,
+                        matched.getAmount(i), matched.getPrice(i), orderId);
+            }
+        }
+        AccountCache.invalidate(order.getUserID());
+        EventBus.balanceChanged(order.getUserID(), usdBalance);
+
+        long averagePrice = filled > 0 ? Money.divide(value, filled) : 0;
+        return new OrderResult(TradeResult.Status.OK, order, orderId, filled, averagePrice, unfilled, usdBalance);
+    }
+
+    /**
+     * Cancels a resting order of the user and returns its unfilled part to the account.
+     *
+     * @return the cancelled order, or null if the user has no open order with that ID
+     */
+    public OrderBook.Order cancel(long orderId, int userId) {
+        int index = (int) (orderId >>> OrderBook.BOOK_SHIFT);
+        OrderBook[] byIndex = booksByIndex;
+        if (index >= byIndex.length) return null;
+
+        OrderBook book = byIndex[index];
+        OrderBook.Order order;
+        synchronized (book) {
+            order = book.cancel(orderId, userId);
+        }
+        if (order == null) return null;
+
+        cancels.increment();
+        StockDB.releaseOrders(order);
+        AccountCache.invalidate(userId);
+        return order;
+    }
+
+    /**
+     * Cancels every resting order and releases its escrow. Called once when the server stops,
+     * since the books are held only in memory.
+     */
+    public void close() {
+        List<OrderBook.Order> open = new ArrayList<>();
+        for (OrderBook book : booksByIndex) {
+            synchronized (book) {
+                open.addAll(Arrays.asList(book.removeAll()));
+            }
+        }
+        if (!open.isEmpty()) {
+            StockDB.releaseOrders(open.toArray(new OrderBook.Order[0]));
+            System.out.println("Released " + open.size() + " resting orders");
+        }
+    }
+
+    /**
+     * Releases the escrow of orders StockDB still stores as open, left by a server that stopped
+     * without closing its books. Called once at startup, before any order is taken.
+     */
+    public static void releaseStoredOrders() {
+        List<OrderBook.Order> stored = StockDB.getOpenOrders();
+        if (stored.isEmpty()) return;
+        if (StockDB.releaseOrders(stored.toArray(new OrderBook.Order[0]))) {
+            System.out.println("Released " + stored.size() + " orders left open by the last run");
+        } else {
+            System.out.println("Could not release " + stored.size() + " orders left open by the last run");
+        }
+    }
+
+    /**
+     * Gives back the escrow of an order whose settlement was rolled back. The makers get what
+     * the fills took from their orders, and the taker is withdrawn: its rest leaves the book and
+     * its filled part and whatever is still open are released. A rest that a later order has
+     * meanwhile matched stays with that order's settlement.
+     */
+    private void releaseUnsettled(OrderBook book, TradeRequest order, long orderId, long unfilled,
+                                  OrderBook.Fills matched) {
+        String symbol = order.getStockSymbol();
+        long taken = order.getAmount() - unfilled;
+        if (unfilled > 0) {
+            OrderBook.Order rest;
+            synchronized (book) {
+                rest = book.cancel(orderId, order.getUserID());
+            }
+            if (rest != null) taken += rest.getOpen();
+        }
+
+        OrderBook.Order[] held = new OrderBook.Order[matched.size() + 1];
+        for (int i = 0; i < matched.size(); i++) {
+            held[i] = new OrderBook.Order(matched.getOrderId(i), symbol, matched.getUser(i), !order.isBuy(),
+                    matched.getPrice(i), matched.getAmount(i));
+        }
+        held[matched.size()] = new OrderBook.Order(orderId, symbol, order.getUserID(), order.isBuy(),
+                order.getPrice(), taken);
+        if (!StockDB.releaseOrders(held)) {
+            AsyncLog.error("Could not release the escrow of unsettled order " + orderId);
+        }
+    }
+
+    /**
+     * Returns a one-line summary of order, fill and book counters.
+     */
+    public String stats() {
+        int resting = 0;
+        for (OrderBook book : booksByIndex) {
+            synchronized (book) {
+                resting += book.getRestingOrders();
+            }
+        }
+        return "books=" + booksByIndex.length
+                + " orders=" + orders.sum()
+                + " rejected=" + rejected.sum()
+                + " fills=" + fills.sum()
+                + " cancels=" + cancels.sum()
+                + " resting=" + resting;
+    }
+
+    //Returns the symbol's book, creating it on first use.
+    private OrderBook book(String symbol) {
+        OrderBook book = books.get(symbol);
+        if (book != null) return book;
+
+        synchronized (books) {
+            book = books.get(symbol);
+            if (book == null) {
+                OrderBook[] byIndex = Arrays.copyOf(booksByIndex, booksByIndex.length + 1);
+                book = new OrderBook(symbol, byIndex.length - 1);
+                byIndex[byIndex.length - 1] = book;
+                booksByIndex = byIndex;
+                books.put(symbol, book);
+            }
+            return book;
+        }
+    }
+
+    /**
+     * Outcome of one submitted order. Amounts, prices and the balance are in micros.
+     */
+    public static final class OrderResult {
+        private final TradeResult.Status status;
+        private final TradeRequest order;
+        private final long orderId;
+        private final long filled;
+        private final long averagePrice;
+        private final long open;
+        private final long usdBalance;
+
+        OrderResult(TradeResult.Status status, TradeRequest order, long orderId, long filled,
+                    long averagePrice, long open, long usdBalance) {
+            this.status = status;
+            this.order = order;
+            this.orderId = orderId;
+            this.filled = filled;
+            this.averagePrice = averagePrice;
+            this.open = open;
+            this.usdBalance = usdBalance;
+        }
+
+        public TradeResult.Status getStatus() {
+            return status;
+        }
+
+        public boolean isOk() {
+            return status == TradeResult.Status.OK;
+        }
+
+        public TradeRequest getOrder() {
+            return order;
+        }
+
+        // ID of the resting rest of the order, or 0 if it was filled completely.
+        public long getOrderId() {
+            return orderId;
+        }
+
+        public long getFilled() {
+            return filled;
+        }
+
+        public long getAveragePrice() {
+            return averagePrice;
+        }
+
+        public long getOpen() {
+            return open;
+        }
+
+        public long getUsdBalance() {
+            return usdBalance;
+        }
+    }
+}
@@ -0,0 +1,1133 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * MemoryStorage - a StorageEngine that keeps every user and position in memory.
+ *
+ * Changes are made under one lock and each transaction is appended to a Journal as a single
+ * entry, so a trade costs a few map lookups and a sequential copy into a memory-mapped file
+ * instead of SQLite page writes. If the append fails the transaction is undone in memory and
+ * reported as an error. Every ServerConfig.SNAPSHOT_SECONDS, and at startup and shutdown, the
+ * whole state is written to a compact snapshot and a new journal is started.
+ *
+ * Files in ServerConfig.STORAGE_DIR: snapshot-<n>.snap holds the state at the start of
+ * journal-<n>.log. On startup the newest intact snapshot is loaded and the journals from its
+ * generation on are replayed. A directory with neither is seeded from the SQLite database at
+ * ServerConfig.DB_URL, so switching engines keeps the existing accounts.
+ * Enabled with -Dstorage.engine=memory.
+ */
+public class MemoryStorage implements StorageEngine {
+
+    // Journal operations; one entry holds every operation of a transaction.
+    private static final byte OP_USER = 1;      // int id, long balance, email, first, last, user name, password
+    private static final byte OP_BALANCE = 2;   // int id, long balance
+    private static final byte OP_POSITION = 3;  // int id, int user id, long balance, symbol, name
+    private static final byte OP_PASSWORD = 4;  // int id, password
+    private static final byte OP_ORDER = 5;     // long id, int user id, byte buy, long price, long open, symbol; open 0 removes it
+
+    private static final long SNAPSHOT_MAGIC = 0x53544F434B534E50L; // "STOCKSNP"
+    // Version 2 added the open orders; version 1 snapshots are still read.
+    private static final int SNAPSHOT_VERSION = 2;
+
+    private final Path dir;
+
+    // Guarded by this.
+    private final TreeMap<Integer, Account> accounts = new TreeMap<>();
+    private final HashMap<Integer, Stock> positionsById = new HashMap<>();
+    // Lowest user ID with each user name, for LOGIN.
+    private final HashMap<String, Integer> idsByName = new HashMap<>();
+    // Orders of the matching engine holding escrow, by order ID.
+    private final TreeMap<Long, OpenOrder> openOrders = new TreeMap<>();
+    private int nextUserId = 1;
+    private int nextStockId = 1;
+    private long generation = 0;
+    private Journal journal;
+
+    // The transaction being built, guarded by this: its journal entry and how to undo it.
+    private ByteBuffer entry = ByteBuffer.allocate(4096);
+    private final ArrayList<Undo> undo = new ArrayList<>();
+
+    // Serializes snapshots, which take the main lock only while copying the state.
+    private final Object snapshotLock = new Object();
+    private final ScheduledExecutorService snapshotter;
+    private volatile long snapshots = 0;
+    private volatile long lastSnapshotBytes = 0;
+    private volatile long lastSnapshotMillis = 0;
+
+    public MemoryStorage(Path dir) {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+            recover();
+            snapshot();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open the storage directory " + dir + ": " + e.getMessage(), e);
+        }
+
+        if (ServerConfig.SNAPSHOT_SECONDS > 0) {
+            snapshotter = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "storage-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotter.scheduleWithFixedDelay(this::periodicSnapshot,
+                    ServerConfig.SNAPSHOT_SECONDS, ServerConfig.SNAPSHOT_SECONDS, TimeUnit.SECONDS);
+        } else {
+            snapshotter = null;
+        }
+    }
+
+    @Override
+    public void addUser(User user) {
+        long started = System.nanoTime();
+        synchronized (this) {
+            begin();
+            try {
+                Account account = putAccount(new User(nextUserId++, user.getEmail(), user.getFirstName(),
+                        user.getLastName(), user.getUserName(), user.getPassword(), user.getBalance()));
+                undo.add(new Undo(Undo.USER_CREATED, account.user, null, 0));
+                writeUser(account.user);
+                commit(Metrics.DbOp.ADD_USER);
+            } catch (RuntimeException e) {
+                abort(Metrics.DbOp.ADD_USER, e);
+            }
+        }
+        Metrics.recordDb(Metrics.DbOp.ADD_USER, started);
+    }
+
+    @Override
+    public ArrayList<User> getUsers() {
+        long started = System.nanoTime();
+        ArrayList<User> users = new ArrayList<>();
+        synchronized (this) {
+            for (Account account : accounts.values()) {
+                users.add(copy(account.user));
+            }
+        }
+        Metrics.recordDb(Metrics.DbOp.GET_USERS, started);
+        return users;
+    }
+
+    @Override
+    public User getUserByID(int id) {
+        long started = System.nanoTime();
+        User user;
+        synchronized (this) {
+            Account account = accounts.get(id);
+            user = account == null ? null : copy(account.user);
+        }
+        Metrics.recordDb(Metrics.DbOp.GET_USER, started);
+        return user;
+    }
+
+    @Override
+    public User getUserByName(String userName) {
+        long started = System.nanoTime();
+        User user;
+        synchronized (this) {
+            Integer id = idsByName.get(userName);
+            user = id == null ? null : copy(accounts.get(id).user);
+        }
+        Metrics.recordDb(Metrics.DbOp.GET_USER_BY_NAME, started);
+        return user;
+    }
+
+    @Override
+    public void updatePassword(int id, String password) {
+        long started = System.nanoTime();
+        synchronized (this) {
+            Account account = accounts.get(id);
+            if (account != null) {
+                begin();
+                try {
+                    undo.add(new Undo(account.user, account.user.getPassword()));
+                    account.user.setPassword(password);
+                    reserve(5);
+                    entry.put(OP_PASSWORD).putInt(id);
+                    putString(password);
+                    commit(Metrics.DbOp.UPDATE_PASSWORD);
+                } catch (RuntimeException e) {
+                    abort(Metrics.DbOp.UPDATE_PASSWORD, e);
+                }
+            }
+        }
+        Metrics.recordDb(Metrics.DbOp.UPDATE_PASSWORD, started);
+    }
+
+    @Override
+    public void updateUserBalance(int id, long newBalance) {
+        long started = System.nanoTime();
+        synchronized (this) {
+            Account account = accounts.get(id);
+            if (account != null) {
+                begin();
+                try {
+                    setBalance(account.user, newBalance);
+                    commit(Metrics.DbOp.UPDATE_USER_BALANCE);
+                } catch (RuntimeException e) {
+                    abort(Metrics.DbOp.UPDATE_USER_BALANCE, e);
+                }
+            }
+        }
+        Metrics.recordDb(Metrics.DbOp.UPDATE_USER_BALANCE, started);
+    }
+
+    @Override
+    public void addStock(Stock stock) {
+        long started = System.nanoTime();
+        synchronized (this) {
+            // Same rules as the Stocks table: one position per user and symbol.
+            Account account = accounts.get(stock.getUserID());
+            if (account == null || account.positions.containsKey(stock.getStockSymbol())) {
+                AsyncLog.error("Cannot add " + stock.getStockSymbol() + " position for user " + stock.getUserID()
+                        + (account == null ? ": no such user" : ": position exists"));
+                Metrics.dbError(Metrics.DbOp.ADD_STOCK);
+            } else {
+                begin();
+                try {
+                    newPosition(account, stock.getStockSymbol(), stock.getStockName(), stock.getStockBalance());
+                    commit(Metrics.DbOp.ADD_STOCK);
+                } catch (RuntimeException e) {
+                    abort(Metrics.DbOp.ADD_STOCK, e);
+                }
+            }
+        }
+        Metrics.recordDb(Metrics.DbOp.ADD_STOCK, started);
+    }
+
+    @Override
+    public ArrayList<Stock> getStockByUserAndSymbol(int userId, String stockSymbol) {
+        long started = System.nanoTime();
+        ArrayList<Stock> stocks = new ArrayList<>();
+        synchronized (this) {
+            Account account = accounts.get(userId);
+            if (account != null) {
+                if (stockSymbol == null) {
+                    for (Stock position : account.positions.values()) {
+                        stocks.add(copy(position));
+                    }
+                } else if (account.positions.containsKey(stockSymbol)) {
+                    stocks.add(copy(account.positions.get(stockSymbol)));
+                }
+            }
+        }
+        Metrics.recordDb(Metrics.DbOp.GET_USER_STOCKS, started);
+        return stocks;
+    }
+
+    @Override
+    public ArrayList<Stock> getStocks() {
+        long started = System.nanoTime();
+        ArrayList<Stock> stocks = new ArrayList<>();
+        synchronized (this) {
+            // Accounts are sorted by user ID and positions kept in creation, so ID, order.
+            for (Account account : accounts.values()) {
+                for (Stock position : account.positions.values()) {
+                    stocks.add(copy(position));
+                }
+            }
+        }
+        Metrics.recordDb(Metrics.DbOp.GET_STOCKS, started);
+        return stocks;
+    }
+
+    @Override
+    public void updateStock(Stock stock) {
+        long started = System.nanoTime();
+        synchronized (this) {
+            Stock position = positionsById.get(stock.getId());
+            if (position != null) {
+                begin();
+                try {
+                    setPosition(position, stock.getStockBalance());
+                    commit(Metrics.DbOp.UPDATE_STOCK);
+                } catch (RuntimeException e) {
+                    abort(Metrics.DbOp.UPDATE_STOCK, e);
+                }
+            }
+        }
+        Metrics.recordDb(Metrics.DbOp.UPDATE_STOCK, started);
+    }
+
+    @Override
+    public TradeResult buyStock(int userId, String stockSymbol, long amount, long price) {
+        return trade(true, userId, stockSymbol, amount, price);
+    }
+
+    @Override
+    public TradeResult sellStock(int userId, String stockSymbol, long amount, long price) {
+        return trade(false, userId, stockSymbol, amount, price);
+    }
+
+    private TradeResult trade(boolean buy, int userId, String stockSymbol, long amount, long price) {
+        Metrics.DbOp op = buy ? Metrics.DbOp.BUY : Metrics.DbOp.SELL;
+        long started = System.nanoTime();
+        TradeResult result;
+        synchronized (this) {
+            begin();
+            try {
+                result = buy ? executeBuy(userId, stockSymbol, amount, price) : executeSell(userId, stockSymbol, amount, price);
+                if (!commit(op)) {
+                    result = TradeResult.failed(TradeResult.Status.ERROR);
+                }
+            } catch (RuntimeException e) {
+                abort(op, e);
+                result = TradeResult.failed(TradeResult.Status.ERROR);
+            }
+        }
+        Metrics.recordDb(op, started);
+        return result;
+    }
+
+    @Override
+    public TradeResult[] executeTrades(List<TradeRequest> trades) {
+        TradeResult[] results = new TradeResult[trades.size()];
+        long started = System.nanoTime();
+        synchronized (this) {
+            // One journal entry for the batch: if it cannot be written, none of the trades happened.
+            begin();
+            for (int i = 0; i < results.length; i++) {
+                TradeRequest trade = trades.get(i);
+                int undoMark = undo.size();
+                int entryMark = entry.position();
+                try {
+                    results[i] = trade.isBuy()
+                            ? executeBuy(trade.getUserID(), trade.getStockSymbol(), trade.getAmount(), trade.getPrice())
+                            : executeSell(trade.getUserID(), trade.getStockSymbol(), trade.getAmount(), trade.getPrice());
+                } catch (RuntimeException e) {
+                    // Only this trade fails; the ones before it stay in the entry.
+                    revertTo(undoMark);
+                    entry.position(entryMark);
+                    AsyncLog.error("Trade failed: " + e);
+                    Metrics.dbError(Metrics.DbOp.TRADE_BATCH);
+                    results[i] = TradeResult.failed(TradeResult.Status.ERROR);
+                }
+            }
+            try {
+                if (!commit(Metrics.DbOp.TRADE_BATCH)) {
+                    Arrays.fill(results, TradeResult.failed(TradeResult.Status.ERROR));
+                }
+            } catch (RuntimeException e) {
+                abort(Metrics.DbOp.TRADE_BATCH, e);
+                Arrays.fill(results, TradeResult.failed(TradeResult.Status.ERROR));
+            }
+        }
+        Metrics.recordDb(Metrics.DbOp.TRADE_BATCH, started);
+        return results;
+    }
+
+    //Applies a BUY to the open transaction. Nothing is changed when the trade is rejected.
+    private TradeResult executeBuy(int userId, String stockSymbol, long amount, long price) {
+        Account account = accounts.get(userId);
+        if (account == null) return TradeResult.failed(TradeResult.Status.USER_NOT_FOUND);
+
+        long totalCost = Money.multiply(amount, price);
+        if (account.user.getBalance() < totalCost) return TradeResult.failed(TradeResult.Status.NOT_ENOUGH_USD);
+
+        setBalance(account.user, account.user.getBalance() - totalCost);
+        Stock position = addToPosition(account, stockSymbol, amount);
+        return new TradeResult(TradeResult.Status.OK, account.user.getBalance(), copy(position));
+    }
+
+    //Applies a SELL to the open transaction. Nothing is changed when the trade is rejected.
+    private TradeResult executeSell(int userId, String stockSymbol, long amount, long price) {
+        Account account = accounts.get(userId);
+        if (account == null) return TradeResult.failed(TradeResult.Status.USER_NOT_FOUND);
+
+        Stock position = account.positions.get(stockSymbol);
+        if (position == null || position.getStockBalance() < amount) {
+            return TradeResult.failed(TradeResult.Status.NOT_ENOUGH_STOCK);
+        }
+
+        setPosition(position, position.getStockBalance() - amount);
+        setBalance(account.user, Math.addExact(account.user.getBalance(), Money.multiply(amount, price)));
+        return new TradeResult(TradeResult.Status.OK, account.user.getBalance(), copy(position));
+    }
+
+    @Override
+    public TradeResult escrowOrder(long orderId, boolean buy, int userId, String stockSymbol,
+                                   long amount, long price) {
+        long started = System.nanoTime();
+        TradeResult result;
+        synchronized (this) {
+            begin();
+            try {
+                Account account = accounts.get(userId);
+                Stock position = account == null ? null : account.positions.get(stockSymbol);
+                if (account == null) {
+                    result = TradeResult.failed(TradeResult.Status.USER_NOT_FOUND);
+                } else if (buy) {
+                    long totalCost = Money.multiply(amount, price);
+                    if (account.user.getBalance() < totalCost) {
+                        result = TradeResult.failed(TradeResult.Status.NOT_ENOUGH_USD);
+                    } else {
+                        setBalance(account.user, account.user.getBalance() - totalCost);
+                        result = new TradeResult(TradeResult.Status.OK, account.user.getBalance(), null);
+                    }
+                } else if (position == null || position.getStockBalance() < amount) {
+                    result = TradeResult.failed(TradeResult.Status.NOT_ENOUGH_STOCK);
+                } else {
+                    setPosition(position, position.getStockBalance() - amount);
+                    result = new TradeResult(TradeResult.Status.OK, account.user.getBalance(), copy(position));
+                }
+                if (result.isOk()) {
+                    setOpen(new OpenOrder(orderId, userId, stockSymbol, buy, price), amount);
+                }
+                if (!commit(Metrics.DbOp.ORDER_ESCROW)) {
+                    result = TradeResult.failed(TradeResult.Status.ERROR);
+                }
+            } catch (RuntimeException e) {
+                abort(Metrics.DbOp.ORDER_ESCROW, e);
+                result = TradeResult.failed(TradeResult.Status.ERROR);
+            }
+        }
+        Metrics.recordDb(Metrics.DbOp.ORDER_ESCROW, started);
+        return result;
+    }
+
+    @Override
+    public Long settleFills(long takerOrderId, String stockSymbol, boolean takerBuy, int takerId,
+                            long takerLimit, OrderBook.Fills fills) {
+        long started = System.nanoTime();
+        Long balance;
+        synchronized (this) {
+            begin();
+            try {
+                // Same bookkeeping as SqliteStorage.settleFills.
+                long filled = 0;
+                long cost = 0;
+                for (int i = 0; i < fills.size(); i++) {
+                    long amount = fills.getAmount(i);
+                    long price = fills.getPrice(i);
+                    Account buyer = accounts.get(takerBuy ? takerId : fills.getUser(i));
+                    int seller = takerBuy ? fills.getUser(i) : takerId;
+
+                    if (buyer != null) {
+                        addToPosition(buyer, stockSymbol, amount);
+                    }
+                    long value = Money.multiply(amount, price);
+                    credit(seller, value);
+                    long held = reduceOpenOrder(fills.getOrderId(i), amount, takerBuy ? 0 : price);
+                    if (!takerBuy && held != value) {
+                        credit(fills.getUser(i), held - value);
+                    }
+                    filled += amount;
+                    cost += value;
+                }
+                long held = reduceOpenOrder(takerOrderId, filled, takerBuy ? takerLimit : 0);
+                if (takerBuy && held != cost) {
+                    credit(takerId, held - cost);
+                }
+                Account taker = accounts.get(takerId);
+                balance = commit(Metrics.DbOp.ORDER_SETTLE) && taker != null ? taker.user.getBalance() : null;
+            } catch (RuntimeException e) {
+                abort(Metrics.DbOp.ORDER_SETTLE, e);
+                balance = null;
+            }
+        }
+        Metrics.recordDb(Metrics.DbOp.ORDER_SETTLE, started);
+        return balance;
+    }
+
+    @Override
+    public boolean releaseOrders(OrderBook.Order... orders) {
+        long started = System.nanoTime();
+        boolean released;
+        synchronized (this) {
+            begin();
+            try {
+                for (OrderBook.Order order : orders) {
+                    long held = reduceOpenOrder(order.getId(), order.getOpen(), order.isBuy() ? order.getPrice() : 0);
+                    if (order.isBuy()) {
+                        credit(order.getUserId(), held);
+                    } else {
+                        Account account = accounts.get(order.getUserId());
+                        if (account != null) addToPosition(account, order.getSymbol(), order.getOpen());
+                    }
+                }
+                released = commit(Metrics.DbOp.ORDER_RELEASE);
+            } catch (RuntimeException e) {
+                abort(Metrics.DbOp.ORDER_RELEASE, e);
+                released = false;
+            }
+        }
+        Metrics.recordDb(Metrics.DbOp.ORDER_RELEASE, started);
+        return released;
+    }
+
+    @Override
+    public ArrayList<OrderBook.Order> getOpenOrders() {
+        long started = System.nanoTime();
+        ArrayList<OrderBook.Order> orders = new ArrayList<>();
+        synchronized (this) {
+            for (OpenOrder order : openOrders.values()) {
+                orders.add(new OrderBook.Order(order.id, order.symbol, order.userId, order.buy, order.price, order.open));
+            }
+        }
+        Metrics.recordDb(Metrics.DbOp.GET_OPEN_ORDERS, started);
+        return orders;
+    }
+
+    @Override
+    public String stats() {
+        synchronized (this) {
+            return "memory users=" + accounts.size()
+                    + " positions=" + positionsById.size()
+                    + " openOrders=" + openOrders.size()
+                    + " generation=" + generation
+                    + " journalEntries=" + journal.entries()
+                    + " journalKb=" + journal.size() / 1024
+                    + " snapshots=" + snapshots
+                    + " lastSnapshotKb=" + lastSnapshotBytes / 1024
+                    + " lastSnapshotMs=" + lastSnapshotMillis;
+        }
+    }
+
+    /**
+     * Stops the snapshot thread and takes a last snapshot, so the next start replays nothing.
+     */
+    @Override
+    public void close() {
+        if (snapshotter != null) {
+            snapshotter.shutdownNow();
+        }
+        try {
+            snapshot();
+            synchronized (this) {
+                journal.close();
+            }
+        } catch (IOException e) {
+            AsyncLog.error("Could not write the final snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the whole state to a new snapshot and continues in a new journal, then deletes the
+     * files of older generations. The lock is held while the state is copied, not while it is written.
+     */
+    public void snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            long started = System.nanoTime();
+            byte[] state;
+            long snapshotGeneration;
+            Journal previous;
+            synchronized (this) {
+                state = serialize();
+                snapshotGeneration = generation + 1;
+                previous = journal;
+                journal = Journal.create(journalFile(snapshotGeneration));
+                generation = snapshotGeneration;
+            }
+            if (previous != null) {
+                previous.close();
+            }
+
+            // Written aside and renamed, so a snapshot file is always complete.
+            Path target = snapshotFile(snapshotGeneration);
+            Path temporary = dir.resolve(target.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer bytes = ByteBuffer.wrap(state);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                channel.force(true);
+            }
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            deleteBefore(snapshotGeneration);
+
+            snapshots++;
+            lastSnapshotBytes = state.length;
+            lastSnapshotMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        }
+    }
+
+    private void periodicSnapshot() {
+        try {
+            long entries;
+            synchronized (this) {
+                entries = journal.entries();
+            }
+            // Nothing changed since the last snapshot: keep it.
+            if (entries > 0) snapshot();
+        } catch (IOException e) {
+            AsyncLog.error("Snapshot failed: " + e.getMessage());
+        }
+    }
+
+    /** /////////////////////////////////////////////////////////////////////////////////////
+     * Transactions
+     * A change is made in memory, written to the open entry and remembered in undo; commit
+     * appends the entry to the journal, or undoes the changes if that fails. A transaction that
+     * throws before its commit, for instance on a balance overflow, is undone with abort.
+     *///////////////////////////////////////////////////////////////////////////////////////
+
+    private void begin() {
+        entry.clear();
+        undo.clear();
+    }
+
+    private boolean commit(Metrics.DbOp op) {
+        if (undo.isEmpty()) return true;
+        entry.flip();
+        try {
+            journal.append(entry);
+            undo.clear();
+            return true;
+        } catch (IOException e) {
+            revertTo(0);
+            AsyncLog.error("Journal write failed: " + e.getMessage());
+            Metrics.dbError(op);
+            return false;
+        }
+    }
+
+    //Undoes the open transaction after it threw; nothing of it reaches the journal.
+    private void abort(Metrics.DbOp op, RuntimeException e) {
+        revertTo(0);
+        entry.clear();
+        AsyncLog.error("Transaction failed: " + e);
+        Metrics.dbError(op);
+    }
+
+    //Undoes the changes of the open transaction made after the first mark of them, newest first.
+    private void revertTo(int mark) {
+        for (int i = undo.size() - 1; i >= mark; i--) {
+            undo.remove(i).revert(this);
+        }
+    }
+
+    private void setBalance(User user, long balance) {
+        undo.add(new Undo(Undo.BALANCE, user, null, user.getBalance()));
+        user.setBalance(balance);
+        reserve(13);
+        entry.put(OP_BALANCE).putInt(user.getId()).putLong(balance);
+    }
+
+    private void credit(int userId, long usd) {
+        Account account = accounts.get(userId);
+        if (account != null) {
+            setBalance(account.user, Math.addExact(account.user.getBalance(), usd));
+        }
+    }
+
+    private void setPosition(Stock position, long balance) {
+        undo.add(new Undo(Undo.POSITION, null, position, position.getStockBalance()));
+        position.setStockBalance(balance);
+        writePosition(position);
+    }
+
+    //Adds stock to the user's position in the symbol, creating the position if there is none.
+    private Stock addToPosition(Account account, String stockSymbol, long amount) {
+        Stock position = account.positions.get(stockSymbol);
+        if (position == null) {
+            return newPosition(account, stockSymbol, stockSymbol, amount);
+        }
+        setPosition(position, Math.addExact(position.getStockBalance(), amount));
+        return position;
+    }
+
+    private Stock newPosition(Account account, String stockSymbol, String stockName, long balance) {
+        Stock position = new Stock(nextStockId++, stockSymbol, stockName, balance, account.user.getId());
+        account.positions.put(stockSymbol, position);
+        positionsById.put(position.getId(), position);
+        undo.add(new Undo(Undo.POSITION_CREATED, account.user, position, 0));
+        writePosition(position);
+        return position;
+    }
+
+    //Sets the open amount of an order, storing it if it is new and dropping it at 0.
+    private void setOpen(OpenOrder order, long open) {
+        undo.add(new Undo(order, order.open));
+        order.open = open;
+        if (open > 0) openOrders.put(order.id, order);
+        else openOrders.remove(order.id);
+        writeOrder(order);
+    }
+
+    //Takes an amount off an open order; returns what its escrow no longer needs, as in SqliteStorage.reduceOpenOrder.
+    private long reduceOpenOrder(long orderId, long amount, long price) {
+        OpenOrder order = openOrders.get(orderId);
+        if (order == null) return Money.multiply(amount, price);
+
+        long rest = Math.max(order.open - amount, 0);
+        setOpen(order, rest);
+        return Money.multiply(rest + amount, price) - Money.multiply(rest, price);
+    }
+
+    private void writeUser(User user) {
+        reserve(13);
+        entry.put(OP_USER).putInt(user.getId()).putLong(user.getBalance());
+        putString(user.getEmail());
+        putString(user.getFirstName());
+        putString(user.getLastName());
+        putString(user.getUserName());
+        putString(user.getPassword());
+    }
+
+    private void writePosition(Stock position) {
+        reserve(17);
+        entry.put(OP_POSITION).putInt(position.getId()).putInt(position.getUserID()).putLong(position.getStockBalance());
+        putString(position.getStockSymbol());
+        putString(position.getStockName());
+    }
+
+    private void writeOrder(OpenOrder order) {
+        reserve(30);
+        entry.put(OP_ORDER).putLong(order.id).putInt(order.userId).put((byte) (order.buy ? 1 : 0))
+                .putLong(order.price).putLong(order.open);
+        putString(order.symbol);
+    }
+
+    private void putString(String value) {
+        if (value == null) {
+            reserve(4);
+            entry.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        reserve(4 + bytes.length);
+        entry.putInt(bytes.length).put(bytes);
+    }
+
+    private void reserve(int bytes) {
+        if (entry.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(entry.capacity() * 2, entry.position() + bytes));
+            entry.flip();
+            entry = larger.put(entry);
+        }
+    }
+
+    /** /////////////////////////////////////////////////////////////////////////////////////
+     * Recovery
+     *///////////////////////////////////////////////////////////////////////////////////////
+
+    //Loads the newest intact snapshot and replays the journals written after it.
+    private void recover() throws IOException {
+        List<Long> snapshotGenerations = new ArrayList<>();
+        List<Long> journalGenerations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long snapshot = generationOf(name, "snapshot-", ".snap");
+                long journal = generationOf(name, "journal-", ".log");
+                if (snapshot >= 0) snapshotGenerations.add(snapshot);
+                if (journal >= 0) journalGenerations.add(journal);
+            }
+        }
+        snapshotGenerations.sort(Collections.reverseOrder());
+        Collections.sort(journalGenerations);
+
+        long loaded = -1;
+        for (long snapshot : snapshotGenerations) {
+            if (loadSnapshot(snapshotFile(snapshot))) {
+                loaded = snapshot;
+                break;
+            }
+            System.out.println("Skipping damaged snapshot " + snapshotFile(snapshot));
+        }
+
+        long replayed = 0;
+        for (long journal : journalGenerations) {
+            if (journal < loaded) continue;
+            replayed += Journal.replay(journalFile(journal), this::apply);
+            generation = Math.max(generation, journal);
+        }
+        generation = Math.max(generation, loaded);
+
+        if (loaded < 0 && journalGenerations.isEmpty()) {
+            seed();
+        } else {
+            System.out.println("Memory storage recovered " + accounts.size() + " users and " + positionsById.size()
+                    + " positions from " + dir + " (snapshot " + loaded + ", " + replayed + " journal entries)");
+        }
+    }
+
+    //Copies the accounts of the SQLite database into an empty storage directory.
+    private void seed() {
+        SqliteStorage sqlite = new SqliteStorage(ServerConfig.DB_URL);
+        try {
+            for (User user : sqlite.getUsers()) {
+                putAccount(user);
+                nextUserId = Math.max(nextUserId, user.getId() + 1);
+            }
+            for (Stock stock : sqlite.getStocks()) {
+                Account account = accounts.get(stock.getUserID());
+                if (account == null) continue;
+                account.positions.put(stock.getStockSymbol(), stock);
+                positionsById.put(stock.getId(), stock);
+                nextStockId = Math.max(nextStockId, stock.getId() + 1);
+            }
+            // Their escrow is already out of the balances copied above; the server releases them.
+            for (OrderBook.Order stored : sqlite.getOpenOrders()) {
+                OpenOrder order = new OpenOrder(stored.getId(), stored.getUserId(), stored.getSymbol(),
+                        stored.isBuy(), stored.getPrice());
+                order.open = stored.getOpen();
+                openOrders.put(order.id, order);
+            }
+        } finally {
+            sqlite.close();
+        }
+        System.out.println("Memory storage seeded " + accounts.size() + " users and " + positionsById.size()
+                + " positions from " + ServerConfig.DB_URL);
+    }
+
+    //Applies one journal entry during recovery.
+    private void apply(ByteBuffer body) {
+        while (body.hasRemaining()) {
+            byte op = body.get();
+            switch (op) {
+                case OP_USER: {
+                    int id = body.getInt();
+                    long balance = body.getLong();
+                    User user = new User(id, getString(body), getString(body), getString(body),
+                            getString(body), getString(body), balance);
+                    putAccount(user);
+                    nextUserId = Math.max(nextUserId, id + 1);
+                    break;
+                }
+                case OP_BALANCE: {
+                    Account account = accounts.get(body.getInt());
+                    long balance = body.getLong();
+                    if (account != null) account.user.setBalance(balance);
+                    break;
+                }
+                case OP_PASSWORD: {
+                    Account account = accounts.get(body.getInt());
+                    String password = getString(body);
+                    if (account != null) account.user.setPassword(password);
+                    break;
+                }
+                case OP_POSITION: {
+                    int id = body.getInt();
+                    int userId = body.getInt();
+                    long balance = body.getLong();
+                    String symbol = getString(body);
+                    String name = getString(body);
+                    Stock position = positionsById.get(id);
+                    if (position != null) {
+                        position.setStockBalance(balance);
+                    } else if (accounts.containsKey(userId)) {
+                        position = new Stock(id, symbol, name, balance, userId);
+                        accounts.get(userId).positions.put(symbol, position);
+                        positionsById.put(id, position);
+                        nextStockId = Math.max(nextStockId, id + 1);
+                    }
+                    break;
+                }
+                case OP_ORDER: {
+                    long id = body.getLong();
+                    int userId = body.getInt();
+                    boolean buy = body.get() != 0;
+                    long price = body.getLong();
+                    long open = body.getLong();
+                    OpenOrder order = new OpenOrder(id, userId, getString(body), buy, price);
+                    order.open = open;
+                    if (open > 0) openOrders.put(id, order);
+                    else openOrders.remove(id);
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown journal operation " + op);
+            }
+        }
+    }
+
+    //Snapshot layout: magic, version, next user ID, next stock ID, users, positions, open orders, then a CRC32 of it all.
+    private byte[] serialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 64 * accounts.size() + 48 * positionsById.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+        out.writeInt(nextUserId);
+        out.writeInt(nextStockId);
+
+        out.writeInt(accounts.size());
+        for (Account account : accounts.values()) {
+            User user = account.user;
+            out.writeInt(user.getId());
+            out.writeLong(user.getBalance());
+            writeString(out, user.getEmail());
+            writeString(out, user.getFirstName());
+            writeString(out, user.getLastName());
+            writeString(out, user.getUserName());
+            writeString(out, user.getPassword());
+        }
+
+        out.writeInt(positionsById.size());
+        for (Account account : accounts.values()) {
+            for (Stock position : account.positions.values()) {
+                out.writeInt(position.getId());
+                out.writeInt(position.getUserID());
+                out.writeLong(position.getStockBalance());
+                writeString(out, position.getStockSymbol());
+                writeString(out, position.getStockName());
+            }
+        }
+
+        out.writeInt(openOrders.size());
+        for (OpenOrder order : openOrders.values()) {
+            out.writeLong(order.id);
+            out.writeInt(order.userId);
+            out.writeBoolean(order.buy);
+            out.writeLong(order.price);
+            out.writeLong(order.open);
+            writeString(out, order.symbol);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        return bytes.toByteArray();
+    }
+
+    //Replaces the state with a snapshot's; false if the file is damaged.
+    private boolean loadSnapshot(Path file) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (bytes.limit() < 32) return false;
+        CRC32 crc = new CRC32();
+        crc.update(bytes.array(), 0, bytes.limit() - 8);
+        if (crc.getValue() != bytes.getLong(bytes.limit() - 8) || bytes.getLong() != SNAPSHOT_MAGIC) {
+            return false;
+        }
+        int version = bytes.getInt();
+        if (version < 1 || version > SNAPSHOT_VERSION) return false;
+
+        accounts.clear();
+        positionsById.clear();
+        idsByName.clear();
+        openOrders.clear();
+        nextUserId = bytes.getInt();
+        nextStockId = bytes.getInt();
+
+        int users = bytes.getInt();
+        for (int i = 0; i < users; i++) {
+            int id = bytes.getInt();
+            long balance = bytes.getLong();
+            User user = new User(id, getString(bytes), getString(bytes), getString(bytes),
+                    getString(bytes), getString(bytes), balance);
+            putAccount(user);
+        }
+
+        int positions = bytes.getInt();
+        for (int i = 0; i < positions; i++) {
+            int id = bytes.getInt();
+            int userId = bytes.getInt();
+            long balance = bytes.getLong();
+            Stock position = new Stock(id, getString(bytes), getString(bytes), balance, userId);
+            accounts.get(userId).positions.put(position.getStockSymbol(), position);
+            positionsById.put(position.getId(), position);
+        }
+
+        int orders = version >= 2 ? bytes.getInt() : 0;
+        for (int i = 0; i < orders; i++) {
+            long id = bytes.getLong();
+            int userId = bytes.getInt();
+            boolean buy = bytes.get() != 0;
+            long price = bytes.getLong();
+            long open = bytes.getLong();
+            OpenOrder order = new OpenOrder(id, userId, getString(bytes), buy, price);
+            order.open = open;
+            openOrders.put(id, order);
+        }
+        return true;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    //Reads a string written by putString or writeString.
+    private static String getString(ByteBuffer bytes) {
+        int length = bytes.getInt();
+        if (length < 0) return null;
+        String value = new String(bytes.array(), bytes.arrayOffset() + bytes.position(), length, StandardCharsets.UTF_8);
+        bytes.position(bytes.position() + length);
+        return value;
+    }
+
+    //Deletes the snapshots and journals before the given generation.
+    private void deleteBefore(long keep) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long snapshot = generationOf(name, "snapshot-", ".snap");
+                long journal = generationOf(name, "journal-", ".log");
+                if ((snapshot >= 0 && snapshot < keep) || (journal >= 0 && journal < keep)) {
+                    try {
+                        Files.delete(file);
+                    } catch (IOException e) {
+                        // Left behind; recovery ignores generations before the newest snapshot.
+                    }
+                }
+            }
+        }
+    }
+
+    private Path snapshotFile(long generation) {
+        return dir.resolve("snapshot-" + generation + ".snap");
+    }
+
+    private Path journalFile(long generation) {
+        return dir.resolve("journal-" + generation + ".log");
+    }
+
+    //Returns the generation in a file name like prefix + n + suffix, or -1 for any other name.
+    private static long generationOf(String name, String prefix, String suffix) {
+        if (!name.startsWith(prefix) || !name.endsWith(suffix)) return -1;
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    //Adds a new account; users are added in ID order, so the first of a user name keeps the name.
+    private Account putAccount(User user) {
+        Account account = new Account(user);
+        accounts.put(user.getId(), account);
+        idsByName.putIfAbsent(user.getUserName(), user.getId());
+        return account;
+    }
+
+    private static User copy(User user) {
+        return new User(user.getId(), user.getEmail(), user.getFirstName(), user.getLastName(),
+                user.getUserName(), user.getPassword(), user.getBalance());
+    }
+
+    private static Stock copy(Stock stock) {
+        return new Stock(stock.getId(), stock.getStockSymbol(), stock.getStockName(),
+                stock.getStockBalance(), stock.getUserID());
+    }
+
+    /**
+     * A user and its positions by symbol, in creation (and so ID) order.
+     */
+    private static final class Account {
+        private final User user;
+        private final LinkedHashMap<String, Stock> positions = new LinkedHashMap<>();
+
+        private Account(User user) {
+            this.user = user;
+        }
+    }
+
+    /**
+     * An order of the matching engine holding escrow, with its open amount.
+     */
+    private static final class OpenOrder {
+        private final long id;
+        private final int userId;
+        private final String symbol;
+        private final boolean buy;
+        private final long price;
+        private long open;
+
+        private OpenOrder(long id, int userId, String symbol, boolean buy, long price) {
+            this.id = id;
+            this.userId = userId;
+            this.symbol = symbol;
+            this.buy = buy;
+            this.price = price;
+        }
+    }
+
+    /**
+     * One change of the open transaction and the value it replaced.
+     */
+    private static final class Undo {
+        private static final int USER_CREATED = 0;
+        private static final int BALANCE = 1;
+        private static final int POSITION = 2;
+        private static final int POSITION_CREATED = 3;
+        private static final int PASSWORD = 4;
+        private static final int ORDER = 5;
+
+        private final int kind;
+        private final User user;
+        private final Stock position;
+        private final long previous;
+        private final String previousPassword;
+        private final OpenOrder order;
+
+        private Undo(int kind, User user, Stock position, long previous) {
+            this.kind = kind;
+            this.user = user;
+            this.position = position;
+            this.previous = previous;
+            this.previousPassword = null;
+            this.order = null;
+        }
+
+        private Undo(User user, String previousPassword) {
+            this.kind = PASSWORD;
+            this.user = user;
+            this.position = null;
+            this.previous = 0;
+            this.previousPassword = previousPassword;
+            this.order = null;
+        }
+
+        private Undo(OpenOrder order, long previousOpen) {
+            this.kind = ORDER;
+            this.user = null;
+            this.position = null;
+            this.previous = previousOpen;
+            this.previousPassword = null;
+            this.order = order;
+        }
+
+        private void revert(MemoryStorage storage) {
+            switch (kind) {
+                case USER_CREATED:
+                    storage.accounts.remove(user.getId());
+                    storage.idsByName.remove(user.getUserName(), user.getId());
+                    break;
+                case PASSWORD:
+                    user.setPassword(previousPassword);
+                    break;
+                case BALANCE:
+                    user.setBalance(previous);
+                    break;
+                case POSITION:
+                    position.setStockBalance(previous);
+                    break;
+                case POSITION_CREATED:
+                    storage.accounts.get(user.getId()).positions.remove(position.getStockSymbol());
+                    storage.positionsById.remove(position.getId());
+                    break;
+                case ORDER:
+                    order.open = previous;
+                    if (previous > 0) storage.openOrders.put(order.id, order);
+                    else storage.openOrders.remove(order.id);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics - server-wide counters and latency histograms.
+ *
+ * Every command is timed by verb in Server.processCommand and every database call by operation
+ * in StockDB. Recording uses LongAdders and LatencyRecorders only, so the many client threads
+ * never wait on each other to count. The numbers are returned by the STATS command and, every
+ * ServerConfig.METRICS_DUMP_SECONDS, printed to the console.
+ */
+public class Metrics {
+
+    // Database calls timed in StockDB.
+    public enum DbOp {
+        ADD_USER,
+        GET_USERS,
+        GET_USER,
+        GET_USER_BY_NAME,
+        UPDATE_USER_BALANCE,
+        UPDATE_PASSWORD,
+        ADD_STOCK,
+        GET_USER_STOCKS,
+        GET_STOCKS,
+        UPDATE_STOCK,
+        BUY,
+        SELL,
+        TRADE_BATCH,
+        ORDER_ESCROW,
+        ORDER_SETTLE,
+        ORDER_RELEASE,
+        GET_OPEN_ORDERS
+    }
+
+    private static final Command.Verb[] VERBS = Command.Verb.values();
+    private static final DbOp[] DB_OPS = DbOp.values();
+
+    private static final LatencyRecorder[] commandLatency = new LatencyRecorder[VERBS.length];
+    private static final LongAdder[] commandErrors = new LongAdder[VERBS.length];
+    private static final LatencyRecorder[] dbLatency = new LatencyRecorder[DB_OPS.length];
+    private static final LongAdder[] dbErrors = new LongAdder[DB_OPS.length];
+
+    // Responses by status code.
+    private static final LongAdder responsesOk = new LongAdder();
+    private static final LongAdder responsesInvalid = new LongAdder();
+    private static final LongAdder responsesUnauthorized = new LongAdder();
+    private static final LongAdder responsesThrottled = new LongAdder();
+    private static final LongAdder responsesFormatError = new LongAdder();
+    private static final LongAdder responsesOther = new LongAdder();
+
+    private static final LongAdder connectionsOpened = new LongAdder();
+    private static final LongAdder connectionsClosed = new LongAdder();
+    private static final LongAdder connectionsRejected = new LongAdder();
+
+    private static final long startNanos = System.nanoTime();
+    private static ScheduledExecutorService dumper;
+
+    static {
+        for (int i = 0; i < VERBS.length; i++) {
+            commandLatency[i] = new LatencyRecorder();
+            commandErrors[i] = new LongAdder();
+        }
+        for (int i = 0; i < DB_OPS.length; i++) {
+            dbLatency[i] = new LatencyRecorder();
+            dbErrors[i] = new LongAdder();
+        }
+    }
+
+
+    /**
+     * Records a processed command.
+     *
+     * @param verb Parsed verb, UNKNOWN if the line was not a command
+     * @param startNanos System.nanoTime() when processing started
+     * @param response The response; its leading status code is counted
+     */
+    public static void recordCommand(Command.Verb verb, long startNanos, String response) {
+        int status;
+        if (response.startsWith("200") || !Character.isDigit(response.charAt(0))) {
+            // QUIT and SHUTDOWN are answered "200 OK" by the connection itself.
+            status = 200;
+        } else if (response.startsWith("400")) {
+            status = 400;
+        } else if (response.startsWith("401")) {
+            status = 401;
+        } else if (response.startsWith("403")) {
+            status = 403;
+        } else if (response.startsWith("429")) {
+            status = 429;
+        } else {
+            status = 0;
+        }
+        recordCommand(verb, startNanos, status);
+    }
+
+    /**
+     * Records a processed command answered with the given status code, as in BinaryProtocol.
+     */
+    public static void recordCommand(Command.Verb verb, long startNanos, int status) {
+        commandLatency[verb.ordinal()].recordSince(startNanos);
+
+        if (status == 200) {
+            responsesOk.increment();
+            return;
+        }
+        commandErrors[verb.ordinal()].increment();
+        if (status == 400) {
+            responsesInvalid.increment();
+        } else if (status == 401) {
+            responsesUnauthorized.increment();
+        } else if (status == 403) {
+            responsesFormatError.increment();
+        } else if (status == 429) {
+            responsesThrottled.increment();
+        } else {
+            responsesOther.increment();
+        }
+    }
+
+    public static void recordDb(DbOp op, long startNanos) {
+        dbLatency[op.ordinal()].recordSince(startNanos);
+    }
+
+    public static void dbError(DbOp op) {
+        dbErrors[op.ordinal()].increment();
+    }
+
+    public static void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    public static void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    public static void connectionRejected() {
+        connectionsRejected.increment();
+    }
+
+
+    /**
+     * Prints report() to the console every given number of seconds on a daemon thread.
+     * Does nothing when seconds is 0 or less.
+     */
+    public static synchronized void startDump(int seconds) {
+        if (seconds <= 0 || dumper != null) return;
+        dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> System.out.println("Metrics\n" + report()),
+                seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    public static synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+    }
+
+    /**
+     * Formats every metric as text: uptime, connections, response codes, then one line per
+     * command verb and per database operation that has been used (count, rate, errors and
+     * latency percentiles in microseconds).
+     */
+    public static String report() {
+        double uptime = (System.nanoTime() - startNanos) / 1e9;
+        long opened = connectionsOpened.sum();
+        long closed = connectionsClosed.sum();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Uptime %.0fs. Connections: %d active, %d total, %d rejected%n",
+                uptime, opened - closed, opened, connectionsRejected.sum()));
+        sb.append(String.format("Responses: 200=%d 400=%d 401=%d 403=%d 429=%d other=%d%n",
+                responsesOk.sum(), responsesInvalid.sum(), responsesUnauthorized.sum(), responsesFormatError.sum(),
+                responsesThrottled.sum(), responsesOther.sum()));
+        sb.append("Audit log: ").append(AsyncLog.stats()).append(System.lineSeparator());
+
+        sb.append(String.format("%-20s %10s %9s %7s %9s %8s %8s %8s %8s%n",
+                "Command", "Count", "Per sec", "Errors", "Mean(us)", "p50", "p99", "p999", "Max"));
+        for (int i = 0; i < VERBS.length; i++) {
+            appendRow(sb, VERBS[i].name(), commandLatency[i], commandErrors[i], uptime);
+        }
+
+        sb.append(String.format("%-20s %10s %9s %7s %9s %8s %8s %8s %8s%n",
+                "Database", "Count", "Per sec", "Errors", "Mean(us)", "p50", "p99", "p999", "Max"));
+        for (int i = 0; i < DB_OPS.length; i++) {
+            appendRow(sb, DB_OPS[i].name(), dbLatency[i], dbErrors[i], uptime);
+        }
+        return sb.toString();
+    }
+
+    private static void appendRow(StringBuilder sb, String name, LatencyRecorder recorder,
+                                  LongAdder errors, double uptime) {
+        LatencyHistogram h = recorder.snapshot();
+        if (h.getTotalCount() == 0) return;
+        sb.append(String.format("%-20s %10d %9.1f %7d %9.1f %8d %8d %8d %8d%n",
+                name, h.getTotalCount(), h.getTotalCount() / uptime, errors.sum(), h.getMean(),
+                h.getValueAtPercentile(50), h.getValueAtPercentile(99), h.getValueAtPercentile(99.9),
+                h.getMax()));
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Money - fixed-point arithmetic and formatting for USD amounts and stock quantities.
+ *
+ * Both are held as longs counting millionths ("micros"): $12.50 is 12_500_000 and 0.5 shares
+ * is 500_000. Sums and comparisons are exact, and the database stores the same integers, so a
+ * balance never drifts the way repeated double arithmetic does. Values are appended straight
+ * into a caller's StringBuilder instead of going through String.format.
+ */
+public final class Money {
+
+    public static final long SCALE = 1_000_000;
+    public static final int DECIMALS = 6;
+
+    // Largest amount or price one order may carry: 1,000,000.000000. Keeps amount * price in a long.
+    public static final long MAX_ORDER_VALUE = 1_000_000 * SCALE;
+
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000};
+
+    private Money() {
+    }
+
+    /**
+     * Converts whole units (dollars or shares) to micros.
+     */
+    public static long ofUnits(long units) {
+        return Math.multiplyExact(units, SCALE);
+    }
+
+    /**
+     * Returns amount * price in micros, rounded half up to the nearest micro.
+     * Both factors are in micros; throws ArithmeticException if the result does not fit.
+     */
+    public static long multiply(long amount, long price) {
+        // Split the amount into whole units and the fraction so no intermediate product overflows
+        // while both factors are within MAX_ORDER_VALUE.
+        long whole = Math.multiplyExact(amount / SCALE, price);
+        long fraction = Math.multiplyExact(amount % SCALE, price);
+        return Math.addExact(whole, (fraction + SCALE / 2) / SCALE);
+    }
+
+    /**
+     * Returns value / quantity in micros, rounded half up; for example an average price from
+     * a total value and the quantity traded. Both arguments are in micros and quantity is positive.
+     */
+    public static long divide(long value, long quantity) {
+        long whole = value / quantity;
+        long remainder = value % quantity;
+        // remainder < quantity, so remainder * SCALE fits for any quantity up to MAX_ORDER_VALUE.
+        return whole * SCALE + (remainder * SCALE + quantity / 2) / quantity;
+    }
+
+    /**
+     * Parses a balance as written by appendQuantity, such as "12", "0.5" or "-2500000.25", into
+     * micros. Unlike an order's amount or price (see CommandParser.parseMicros) it may be negative
+     * or above MAX_ORDER_VALUE; it only has to fit in a long. Digits beyond the sixth decimal must
+     * be zeros, since they cannot be represented.
+     *
+     * @throws NumberFormatException if the text is malformed, too precise or does not fit
+     */
+    public static long parse(CharSequence text) {
+        int length = text.length();
+        int start = length > 0 && text.charAt(0) == '-' ? 1 : 0;
+        // Empty, a lone sign or a lone "." is not a number.
+        if (length == start || (length - start == 1 && text.charAt(start) == '.')) {
+            throw new NumberFormatException("Not a decimal: \"" + text + "\"");
+        }
+
+        long value = 0;
+        int fractionDigits = 0;
+        boolean seenPoint = false;
+        try {
+            for (int i = start; i < length; i++) {
+                char c = text.charAt(i);
+                if (c == '.' && !seenPoint) {
+                    seenPoint = true;
+                    continue;
+                }
+                if (c < '0' || c > '9') throw new NumberFormatException("Not a decimal: \"" + text + "\"");
+
+                if (seenPoint && ++fractionDigits > DECIMALS) {
+                    if (c != '0') throw new NumberFormatException("More than " + DECIMALS + " decimals: \"" + text + "\"");
+                    continue;
+                }
+                value = Math.addExact(Math.multiplyExact(value, 10), c - '0');
+            }
+            value = Math.multiplyExact(value, POWERS_OF_TEN[DECIMALS - Math.min(fractionDigits, DECIMALS)]);
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Out of range: \"" + text + "\"");
+        }
+        return start == 1 ? -value : value;
+    }
+
+    /**
+     * Appends a USD amount with two decimals, rounded half up like "%.2f": 12_345_000 as "12.35".
+     */
+    public static StringBuilder appendUsd(StringBuilder sb, long micros) {
+        if (micros < 0) {
+            sb.append('-');
+            micros = -micros;
+        }
+        long cents = (micros + 5_000) / 10_000;
+        sb.append(cents / 100).append('.');
+        long fraction = cents % 100;
+        if (fraction < 10) sb.append('0');
+        return sb.append(fraction);
+    }
+
+    /**
+     * Appends a quantity with as many decimals as it needs but at least one, the way a double
+     * prints: 10_000_000 as "10.0" and 2_250_000 as "2.25".
+     */
+    public static StringBuilder appendQuantity(StringBuilder sb, long micros) {
+        if (micros < 0) {
+            sb.append('-');
+            micros = -micros;
+        }
+        sb.append(micros / SCALE).append('.');
+        long fraction = micros % SCALE;
+        if (fraction == 0) return sb.append('0');
+
+        // Drop the trailing zeros of the six fraction digits.
+        int digits = DECIMALS;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            digits--;
+        }
+        // Leading zeros of the fraction, e.g. the 0 of ".05".
+        for (long bound = POWERS_OF_TEN[digits - 1]; fraction < bound; bound /= 10) {
+            sb.append('0');
+        }
+        return sb.append(fraction);
+    }
+
+    public static String formatUsd(long micros) {
+        return appendUsd(new StringBuilder(16), micros).toString();
+    }
+
+    public static String formatQuantity(long micros) {
+        return appendQuantity(new StringBuilder(16), micros).toString();
+    }
+}
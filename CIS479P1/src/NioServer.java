@@ -0,0 +1,649 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NioServer - non-blocking front end for the same line-based protocol served by ClientHandler.
+ * One selector thread accepts connections, reads bytes into a shared direct buffer and splits
+ * them into lines; complete commands are handed to the worker executor, which queues the
+ * response for the selector thread to write. Idle connections cost no thread at all.
+ * Commands from one connection are always processed one at a time and answered in order.
+ *
+ * A response that comes in chunks (a long LIST) keeps the connection's worker slot: the next
+ * chunk is only produced once the selector has written the previous one, so a slow reader
+ * never has more than one chunk queued.
+ *
+ * After a BINARY line the connection is not read and its remaining input is held back until a
+ * worker has run that command, then split into BinaryProtocol frames if the session switched, or into lines if it did not.
+ *
+ * Reading from a connection stops, so that TCP holds the client back instead of this server
+ * queueing its commands, while ServerConfig.NIO_MAX_QUEUED_REQUESTS requests wait for a worker
+ * (until half of them are done), and after a request was refused by RateLimiter until the
+ * client may send again. A throttled connection's queued requests wait as well.
+ *
+ * Events for SUBSCRIBE are queued by the selector thread, and only while no worker holds the
+ * connection, so they always land between two complete responses.
+ */
+public class NioServer {
+
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService workers;
+
+    // Reused for every read; bytes are copied out line by line.
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(ServerConfig.NIO_BUFFER_SIZE);
+
+    // Connections with responses waiting to be written, filled by worker threads.
+    private final Queue<Connection> writeReady = new ConcurrentLinkedQueue<>();
+
+    // Connections whose BINARY line has been run, so their held input can be split again.
+    private final Queue<Connection> resumeReady = new ConcurrentLinkedQueue<>();
+
+    // Connections whose reading may have to stop or resume: throttled, or their request queue drained.
+    private final Queue<Connection> readChanged = new ConcurrentLinkedQueue<>();
+
+    // Touched by the selector thread only.
+    private final Set<Connection> connections = new HashSet<>();
+    // Throttled connections by the time they may be read from again.
+    private final PriorityQueue<Connection> throttled =
+            new PriorityQueue<>((a, b) -> Long.compare(a.resumeAt - b.resumeAt, 0));
+    private final StringBuilder eventText = new StringBuilder();
+
+    private volatile boolean stopping = false;
+
+    public NioServer(int port, ExecutorService workers) throws IOException {
+        this.workers = workers;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Runs the selector loop until stop() is called and the connected clients have drained.
+     */
+    public void run() throws IOException {
+        long drainDeadline = 0;
+
+        while (true) {
+            selector.select(selectTimeout());
+            flushReady();
+            resumeReady();
+            readChanged();
+            resumeThrottled();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (!key.isValid()) continue;
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+
+                Connection connection = (Connection) key.attachment();
+                if (key.isReadable()) read(connection);
+                if (key.isValid() && key.isWritable()) write(connection);
+            }
+
+            if (stopping) {
+                if (drainDeadline == 0) {
+                    drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(ServerConfig.DRAIN_SECONDS);
+                    beginDrain();
+                }
+                if (drained() || System.nanoTime() > drainDeadline) break;
+            }
+        }
+
+        for (Connection connection : new HashSet<>(connections)) {
+            close(connection);
+        }
+        selector.close();
+    }
+
+    /**
+     * Stops accepting clients. Commands already received are still answered before run() returns.
+     */
+    public void stop() {
+        stopping = true;
+        selector.wakeup();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+
+        // Turn the client away if the connection limit has been reached.
+        if (connections.size() >= ServerConfig.MAX_CONNECTIONS) {
+            channel.write(ByteBuffer.wrap("400 Server busy. Too many connections.\n"
+                    .getBytes(StandardCharsets.UTF_8)));
+            channel.close();
+            Metrics.connectionRejected();
+            return;
+        }
+
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connection.session.setEventSignal(() -> {
+            writeReady.add(connection);
+            selector.wakeup();
+        });
+        connections.add(connection);
+        Metrics.connectionOpened();
+        AsyncLog.connected(connection.remote);
+    }
+
+    //Reads what is available and splits it into lines. Runs on the selector thread.
+    private void read(Connection connection) {
+        int count;
+        readBuffer.clear();
+        try {
+            count = connection.channel.read(readBuffer);
+        } catch (IOException e) {
+            count = -1;
+        }
+        if (count < 0) {
+            close(connection);
+            return;
+        }
+
+        readBuffer.flip();
+        consume(connection, readBuffer);
+
+        // Enough work queued: leave further input in the socket until the worker catches up.
+        boolean full;
+        synchronized (connection) {
+            full = connection.requests.size() >= ServerConfig.NIO_MAX_QUEUED_REQUESTS;
+            if (full) connection.readBlocked = true;
+        }
+        if (full || connection.paused) updateReadInterest(connection);
+        dispatch(connection);
+    }
+
+    //Reads from the connection only while nothing holds it back. Runs on the selector thread.
+    private void updateReadInterest(Connection connection) {
+        if (!connection.key.isValid()) return;
+        boolean reading;
+        synchronized (connection) {
+            // While paused only the rest of the last read is held; more input waits in the socket.
+            reading = !stopping && !connection.paused && !connection.throttled && !connection.readBlocked;
+        }
+        int ops = connection.key.interestOps();
+        connection.key.interestOps(reading ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+    }
+
+    //Applies the changes workers made: throttled connections start waiting, drained ones read again.
+    private void readChanged() {
+        Connection connection;
+        while ((connection = readChanged.poll()) != null) {
+            if (!connections.contains(connection)) continue;
+            boolean sleeping;
+            synchronized (connection) {
+                sleeping = connection.throttled;
+            }
+            if (sleeping && !throttled.contains(connection)) throttled.add(connection);
+            updateReadInterest(connection);
+        }
+    }
+
+    //Lets the throttled connections whose time has come read and run their queued requests again.
+    private void resumeThrottled() {
+        long now = System.nanoTime();
+        Connection connection;
+        while ((connection = throttled.peek()) != null && connection.resumeAt - now <= 0) {
+            throttled.poll();
+            if (!connections.contains(connection)) continue;
+            synchronized (connection) {
+                connection.throttled = false;
+            }
+            updateReadInterest(connection);
+            dispatch(connection);
+        }
+    }
+
+    //Blocks until the next throttled connection is due, or indefinitely if there is none.
+    private long selectTimeout() {
+        Connection next = throttled.peek();
+        long timeout = stopping ? 100 : 0;
+        if (next != null) {
+            long due = Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.resumeAt - System.nanoTime() + 999_999));
+            timeout = timeout == 0 ? due : Math.min(timeout, due);
+        }
+        return timeout;
+    }
+
+    //Splits bytes into lines or frames, or holds them while the connection is paused.
+    private void consume(Connection connection, ByteBuffer bytes) {
+        while (bytes.hasRemaining()) {
+            if (connection.paused) {
+                connection.hold(bytes);
+                return;
+            }
+            byte b = bytes.get();
+            if (connection.binary) {
+                connection.appendFrameByte(b);
+            } else if (b == '\n') {
+                connection.completeLine();
+            } else {
+                connection.appendByte(b);
+            }
+        }
+    }
+
+    //Continues splitting the input of connections whose BINARY line has been run.
+    private void resumeReady() {
+        Connection connection;
+        while ((connection = resumeReady.poll()) != null) {
+            connection.paused = false;
+            if (!connections.contains(connection)) continue;
+
+            ByteBuffer held = ByteBuffer.wrap(Arrays.copyOf(connection.held, connection.heldLength));
+            connection.heldLength = 0;
+            consume(connection, held);
+            updateReadInterest(connection);
+            dispatch(connection);
+        }
+    }
+
+    //Hands the connection's queued requests to a worker unless one is already working on it.
+    private void dispatch(Connection connection) {
+        synchronized (connection) {
+            if (connection.busy || connection.throttled || connection.requests.isEmpty()) return;
+            connection.busy = true;
+        }
+        workers.execute(() -> process(connection));
+    }
+
+    //Worker side: answers queued requests in order until none are left.
+    private void process(Connection connection) {
+        // Resumed by write() after a chunk went out: finish that response first.
+        if (connection.session.hasMoreOutput()
+                && send(connection, Server.nextChunk(connection.session), false)) {
+            return;
+        }
+
+        while (true) {
+            Object request;
+            boolean pausedHere;
+            synchronized (connection) {
+                request = connection.requests.poll();
+                if (request == null || connection.closeAfterFlush) {
+                    release(connection);
+                    return;
+                }
+                pausedHere = request == connection.pauseLine;
+
+                // Half the queue is done: the selector may read from the client again.
+                if (connection.readBlocked && connection.requests.size() <= ServerConfig.NIO_MAX_QUEUED_REQUESTS / 2) {
+                    connection.readBlocked = false;
+                    readChanged.add(connection);
+                    selector.wakeup();
+                }
+            }
+
+            if (request instanceof ByteBuffer) {
+                processFrame(connection, (ByteBuffer) request);
+                if (throttle(connection)) return;
+                continue;
+            }
+            boolean streaming = processLine(connection, (String) request);
+
+            if (pausedHere) {
+                // The selector held the input back for this line; let it continue in the session's mode.
+                connection.binary = connection.session.isBinary();
+                resumeReady.add(connection);
+                selector.wakeup();
+            }
+
+            // Still busy: write() hands the connection back to a worker once the chunk is written.
+            if (streaming) return;
+
+            if (throttle(connection)) return;
+        }
+    }
+
+    /**
+     * Hands a connection whose request RateLimiter refused back to the selector, which resumes
+     * it once the client may send again. Returns true if the worker must stop processing it.
+     */
+    private boolean throttle(Connection connection) {
+        long resumeAt = connection.session.takeThrottle();
+        if (resumeAt == 0) return false;
+        synchronized (connection) {
+            connection.resumeAt = resumeAt;
+            connection.throttled = true;
+            release(connection);
+        }
+        readChanged.add(connection);
+        selector.wakeup();
+        return true;
+    }
+
+    //Ends the worker's hold on the connection. Called with the connection's monitor held.
+    private void release(Connection connection) {
+        connection.busy = false;
+        // Events that arrived while this worker held the connection can go out now.
+        Subscriber subscriber = connection.session.getSubscriber();
+        if (subscriber != null && subscriber.hasEvents()) {
+            writeReady.add(connection);
+            selector.wakeup();
+        }
+    }
+
+    //Returns true if the response continues in further chunks.
+    private boolean processLine(Connection connection, String line) {
+        if (ServerConfig.LOG_REQUESTS) {
+            AsyncLog.request(line);
+        }
+
+        String response = Server.processCommand(line, connection.session);
+
+        // Order line of a BATCH still being collected: nothing to answer yet.
+        if (response == null) return false;
+
+        // Handle QUIT
+        if (response.equals("QUIT")) {
+            send(connection, "200 OK", true);
+            return false;
+        }
+
+        // Handle SHUTDOWN: answer first, then let the server drain the other clients.
+        if (response.equals("SHUTDOWN")) {
+            send(connection, "200 OK", true);
+            Server.shutdown();
+            return false;
+        }
+
+        return send(connection, response, false);
+    }
+
+    private void processFrame(Connection connection, ByteBuffer frame) {
+        if (ServerConfig.LOG_REQUESTS) {
+            AsyncLog.request(BinaryProtocol.describeRequest(frame));
+        }
+
+        ByteBuffer response = Server.processFrame(frame, connection.session);
+        if (response == null) return;
+
+        // The response buffer belongs to this worker thread; queue a copy.
+        byte opcode = BinaryProtocol.opcode(response);
+        ByteBuffer copy = ByteBuffer.allocate(response.remaining()).put(response);
+        copy.flip();
+        queue(connection, copy, opcode == BinaryProtocol.OP_QUIT || opcode == BinaryProtocol.OP_SHUTDOWN, false);
+        if (opcode == BinaryProtocol.OP_SHUTDOWN) {
+            Server.shutdown();
+        }
+    }
+
+    /**
+     * Queues a response for the selector thread to write. Called by the worker owning the connection.
+     * A chunk of an incomplete response is queued unframed; returns true in that case.
+     */
+    private boolean send(Connection connection, String response, boolean closeAfter) {
+        boolean more = connection.session.hasMoreOutput();
+        StringBuilder framed = connection.response;
+        framed.setLength(0);
+        if (more) {
+            framed.append(response);
+        } else {
+            connection.session.appendResponse(framed, response);
+        }
+        queue(connection, ByteBuffer.wrap(framed.toString().getBytes(StandardCharsets.UTF_8)), closeAfter, more);
+        return more;
+    }
+
+    private void queue(Connection connection, ByteBuffer bytes, boolean closeAfter, boolean more) {
+        connection.out.add(bytes);
+        if (closeAfter) {
+            connection.closeAfterFlush = true;
+        }
+        // Set only once the chunk is queued, so write() cannot resume the worker before it is sent.
+        if (more) {
+            connection.moreOutput = true;
+        }
+        writeReady.add(connection);
+        selector.wakeup();
+    }
+
+    private void flushReady() {
+        Connection connection;
+        while ((connection = writeReady.poll()) != null) {
+            if (connection.key.isValid()) {
+                write(connection);
+            }
+        }
+    }
+
+    //Writes queued responses until the socket buffer is full. Runs on the selector thread.
+    private void write(Connection connection) {
+        try {
+            ByteBuffer buffer;
+            do {
+                while ((buffer = connection.out.peek()) != null) {
+                    connection.channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        // Socket is full: wait until the selector says it is writable again.
+                        connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    connection.out.poll();
+                }
+            } while (pushEvents(connection));
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+
+            // Everything is written: let a worker produce the next chunk of the response.
+            if (connection.moreOutput) {
+                connection.moreOutput = false;
+                workers.execute(() -> process(connection));
+            }
+
+            if (connection.closeAfterFlush) {
+                close(connection);
+            }
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+
+    /**
+     * Queues the connection's pending events unless a worker is answering it; the worker then
+     * hands the connection back once it is done. Returns true if anything was queued.
+     */
+    private boolean pushEvents(Connection connection) {
+        Subscriber subscriber = connection.session.getSubscriber();
+        if (subscriber == null || connection.closeAfterFlush) return false;
+
+        boolean queued = false;
+        synchronized (connection) {
+            // Holding the monitor keeps dispatch() from starting a response in between.
+            if (connection.busy) return false;
+            String event;
+            while ((event = subscriber.poll()) != null) {
+                if (connection.binary) {
+                    connection.out.add(BinaryProtocol.event(event));
+                } else {
+                    eventText.setLength(0);
+                    connection.session.appendResponse(eventText, event);
+                    connection.out.add(ByteBuffer.wrap(eventText.toString().getBytes(StandardCharsets.UTF_8)));
+                }
+                queued = true;
+            }
+        }
+        subscriber.drained();
+        return queued;
+    }
+
+    //Stops the server socket and all further reads; queued commands still complete.
+    private void beginDrain() throws IOException {
+        serverChannel.close();
+        for (Connection connection : connections) {
+            if (connection.key.isValid()) {
+                connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    private boolean drained() {
+        for (Connection connection : connections) {
+            synchronized (connection) {
+                if (connection.busy || !connection.requests.isEmpty()) return false;
+            }
+            if (!connection.out.isEmpty()) return false;
+        }
+        return true;
+    }
+
+    private void close(Connection connection) {
+        if (!connections.remove(connection)) return;
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // Already closed by the client.
+        }
+        synchronized (connection) {
+            connection.requests.clear();
+            connection.closeAfterFlush = true;
+        }
+        if (connection.session.getSubscriber() != null) {
+            EventBus.unsubscribeAll(connection.session.getSubscriber());
+        }
+        Metrics.connectionClosed();
+        AsyncLog.disconnected(connection.remote);
+    }
+
+    /**
+     * Per-client state: the partial line or frame being read, complete requests not yet
+     * processed, and responses not yet written.
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        // Used only by the worker currently processing this connection.
+        private final Session session = new Session();
+        private final StringBuilder response = new StringBuilder();
+
+        // Selector thread only.
+        private byte[] lineBytes = new byte[128];
+        private int lineLength = 0;
+        private boolean lineTooLong = false;
+        private int frameLength = 0;
+
+        // Selector thread only: input received after a BINARY line, until a worker has run it.
+        // Reading stops meanwhile, so held never grows beyond one read buffer.
+        private boolean paused = false;
+        private byte[] held = new byte[0];
+        private int heldLength = 0;
+
+        // Set by the worker that ran the BINARY line, read by the selector thread after that.
+        private volatile boolean binary = false;
+
+        // Guarded by the Connection monitor: lines (String) or frames (ByteBuffer) in arrival order,
+        // and the BINARY line the input is paused at.
+        private final ArrayDeque<Object> requests = new ArrayDeque<>();
+        private String pauseLine = null;
+        private boolean busy = false;
+
+        // Guarded by the Connection monitor: reading stopped for a full request queue, or for
+        // RateLimiter until resumeAt (a System.nanoTime(), read by the selector thread).
+        private boolean readBlocked = false;
+        private boolean throttled = false;
+        private long resumeAt = 0;
+
+        private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+        private volatile boolean closeAfterFlush = false;
+
+        // Set by the worker after queueing a chunk of an incomplete response, cleared by the selector.
+        private volatile boolean moreOutput = false;
+
+        // Peer address for the audit log, captured while the channel is open.
+        private final SocketAddress remote;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.remote = channel.socket().getRemoteSocketAddress();
+        }
+
+        private void appendByte(byte b) {
+            if (lineLength == lineBytes.length) {
+                if (lineLength >= MAX_LINE_LENGTH) {
+                    // Drop the rest of an oversized line; it is answered as a format error.
+                    lineTooLong = true;
+                    return;
+                }
+                lineBytes = Arrays.copyOf(lineBytes, lineLength * 2);
+            }
+            lineBytes[lineLength++] = b;
+        }
+
+        private void completeLine() {
+            int length = lineLength;
+            if (length > 0 && lineBytes[length - 1] == '\r') length--;
+
+            String line = lineTooLong ? "" : new String(lineBytes, 0, length, StandardCharsets.UTF_8);
+            lineLength = 0;
+            lineTooLong = false;
+
+            // The bytes after BINARY may already be frames; wait until the worker has run it.
+            boolean pause = line.trim().equalsIgnoreCase(Command.Verb.BINARY.name());
+            synchronized (this) {
+                if (pause) pauseLine = line;
+                requests.add(line);
+            }
+            paused = pause;
+        }
+
+        private void appendFrameByte(byte b) {
+            if (lineLength == lineBytes.length) {
+                lineBytes = Arrays.copyOf(lineBytes, lineLength * 2);
+            }
+            lineBytes[lineLength++] = b;
+
+            if (lineLength == BinaryProtocol.REQUEST_SIZE) {
+                int payload = (lineBytes[2] & 0xFF) | (lineBytes[3] & 0xFF) << 8;
+                frameLength = BinaryProtocol.REQUEST_SIZE + payload;
+            }
+            if (lineLength >= BinaryProtocol.REQUEST_SIZE && lineLength == frameLength) {
+                ByteBuffer frame = BinaryProtocol.allocate(lineLength).put(lineBytes, 0, lineLength);
+                frame.flip();
+                lineLength = 0;
+                synchronized (this) {
+                    requests.add(frame);
+                }
+            }
+        }
+
+        //Keeps the rest of the buffer until the connection is resumed.
+        private void hold(ByteBuffer bytes) {
+            int count = bytes.remaining();
+            if (heldLength + count > held.length) {
+                held = Arrays.copyOf(held, Math.max(held.length * 2, heldLength + count));
+            }
+            bytes.get(held, heldLength, count);
+            heldLength += count;
+        }
+    }
+}
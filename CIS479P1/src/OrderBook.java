@@ -0,0 +1,397 @@
+import java.util.Arrays;
+
+/**
+ * OrderBook - resting limit orders for one stock symbol, matched by price-time priority.
+ *
+ * Everything is kept in primitive arrays so a busy book creates no garbage: each order lives in
+ * a slot of parallel arrays (price, open amount, user, links), free slots are reused, and each
+ * side keeps its price levels in one sorted array with the best price last, so taking or
+ * emptying the best level never shifts the array. Orders at one price form a FIFO list through
+ * the slots. Prices and amounts are in micros (see Money).
+ *
+ * An order ID encodes the book, the slot and a per-slot generation, so a cancel finds its order
+ * without a lookup table and an ID from a filled or cancelled order never matches a new one.
+ *
+ * Not thread-safe; MatchingEngine synchronizes on the book.
+ */
+public class OrderBook {
+
+    private static final int SLOT_BITS = 24;
+    private static final int GENERATION_BITS = 20;
+    static final int BOOK_SHIFT = SLOT_BITS + GENERATION_BITS;
+    private static final int MAX_SLOTS = 1 << SLOT_BITS;
+
+    private static final int NONE = -1;
+
+    private final String symbol;
+    private final int bookIndex;
+
+    // Order slots.
+    private long[] price = new long[1024];
+    private long[] open = new long[1024];
+    private int[] user = new int[1024];
+    private boolean[] buy = new boolean[1024];
+    private int[] next = new int[1024];
+    private int[] prev = new int[1024];
+    private int[] generation = new int[1024];
+    private int used = 0;
+    private int freeSlot = NONE;
+
+    private final Side bids = new Side(true);
+    private final Side asks = new Side(false);
+
+    private int restingOrders = 0;
+
+    public OrderBook(String symbol, int bookIndex) {
+        this.symbol = symbol;
+        this.bookIndex = bookIndex;
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    public int getRestingOrders() {
+        return restingOrders;
+    }
+
+    /**
+     * Matches an incoming order against the opposite side, best price first and oldest order
+     * first within a price. Fills are at the resting order's price.
+     *
+     * @param isBuy Side of the incoming order
+     * @param limit Worst acceptable price, in micros
+     * @param amount Amount wanted, in micros
+     * @param fills Receives one entry per resting order traded against
+     * @return the amount left unfilled
+     */
+    public long match(boolean isBuy, long limit, long amount, Fills fills) {
+        Side opposite = isBuy ? asks : bids;
+
+        while (amount > 0 && opposite.count > 0) {
+            int level = opposite.count - 1;
+            long levelPrice = opposite.prices[level];
+            if (isBuy ? levelPrice > limit : levelPrice < limit) break;
+
+            int slot = opposite.head[level];
+            while (slot != NONE && amount > 0) {
+                long traded = Math.min(amount, open[slot]);
+                fills.add(orderId(slot), user[slot], levelPrice, traded);
+                amount -= traded;
+                open[slot] -= traded;
+
+                int following = next[slot];
+                if (open[slot] <= 0) {
+                    freeSlot(slot);
+                    restingOrders--;
+                    slot = following;
+                }
+            }
+
+            if (slot == NONE) {
+                // Level emptied; it is the last entry, so dropping it shifts nothing.
+                opposite.count--;
+            } else {
+                opposite.head[level] = slot;
+                prev[slot] = NONE;
+            }
+        }
+        return amount;
+    }
+
+    /**
+     * Takes a slot for an incoming order before it is matched, so the order has its ID from the
+     * start and adding its unfilled rest cannot fail. The slot holds nothing until add.
+     *
+     * @return the ID the order rests under
+     * @throws IllegalStateException if the book already holds the most orders it can
+     */
+    public long reserve() {
+        int slot = allocateSlot();
+        open[slot] = 0;
+        return orderId(slot);
+    }
+
+    /**
+     * Gives back the slot of a reserved order that does not rest after all.
+     */
+    public void unreserve(long orderId) {
+        freeSlot((int) (orderId & (MAX_SLOTS - 1)));
+    }
+
+    /**
+     * Adds the unfilled rest of a reserved order behind the orders already waiting at its price.
+     */
+    public void add(long orderId, boolean isBuy, long limit, long amount, int userId) {
+        int slot = (int) (orderId & (MAX_SLOTS - 1));
+        price[slot] = limit;
+        open[slot] = amount;
+        user[slot] = userId;
+        buy[slot] = isBuy;
+        next[slot] = NONE;
+
+        Side side = isBuy ? bids : asks;
+        int level = side.levelFor(limit);
+        int tail = side.tail[level];
+        prev[slot] = tail;
+        if (tail == NONE) {
+            side.head[level] = slot;
+        } else {
+            next[tail] = slot;
+        }
+        side.tail[level] = slot;
+
+        restingOrders++;
+    }
+
+    /**
+     * Removes a resting order if it belongs to the user.
+     *
+     * @return the removed order with its unfilled amount, or null if there is no such open order
+     */
+    public Order cancel(long orderId, int userId) {
+        if ((orderId >>> BOOK_SHIFT) != bookIndex) return null;
+        int slot = (int) (orderId & (MAX_SLOTS - 1));
+        int gen = (int) ((orderId >>> SLOT_BITS) & ((1 << GENERATION_BITS) - 1));
+        if (slot >= used || generation[slot] != gen || open[slot] <= 0 || user[slot] != userId) {
+            return null;
+        }
+
+        Order order = new Order(orderId, symbol, user[slot], buy[slot], price[slot], open[slot]);
+        unlink(slot);
+        freeSlot(slot);
+        restingOrders--;
+        return order;
+    }
+
+    /**
+     * Removes every resting order from the book and returns them; used when the server stops.
+     */
+    public Order[] removeAll() {
+        Order[] orders = new Order[restingOrders];
+        int n = 0;
+        for (Side side : new Side[]{bids, asks}) {
+            for (int level = 0; level < side.count; level++) {
+                for (int slot = side.head[level]; slot != NONE; ) {
+                    int following = next[slot];
+                    orders[n++] = new Order(orderId(slot), symbol, user[slot], buy[slot], price[slot], open[slot]);
+                    freeSlot(slot);
+                    slot = following;
+                }
+            }
+            side.count = 0;
+        }
+        restingOrders = 0;
+        return orders;
+    }
+
+    /**
+     * Best bid and ask in micros, or -1 when that side is empty.
+     */
+    public long bestBid() {
+        return bids.count == 0 ? -1 : bids.prices[bids.count - 1];
+    }
+
+    public long bestAsk() {
+        return asks.count == 0 ? -1 : asks.prices[asks.count - 1];
+    }
+
+
+    private long orderId(int slot) {
+        return ((long) bookIndex << BOOK_SHIFT)
+                | ((long) generation[slot] << SLOT_BITS)
+                | slot;
+    }
+
+    //Takes an order out of the middle of its level's FIFO list, dropping the level if it empties.
+    private void unlink(int slot) {
+        Side side = buy[slot] ? bids : asks;
+        int level = side.find(price[slot]);
+
+        if (prev[slot] == NONE) side.head[level] = next[slot];
+        else next[prev[slot]] = next[slot];
+        if (next[slot] == NONE) side.tail[level] = prev[slot];
+        else prev[next[slot]] = prev[slot];
+
+        if (side.head[level] == NONE) side.removeLevel(level);
+    }
+
+    private int allocateSlot() {
+        if (freeSlot != NONE) {
+            int slot = freeSlot;
+            freeSlot = next[slot];
+            return slot;
+        }
+        if (used == price.length) {
+            if (used == MAX_SLOTS) throw new IllegalStateException("Order book " + symbol + " is full");
+            int size = Math.min(used * 2, MAX_SLOTS);
+            price = Arrays.copyOf(price, size);
+            open = Arrays.copyOf(open, size);
+            user = Arrays.copyOf(user, size);
+            buy = Arrays.copyOf(buy, size);
+            next = Arrays.copyOf(next, size);
+            prev = Arrays.copyOf(prev, size);
+            generation = Arrays.copyOf(generation, size);
+        }
+        // Generations start at 1 so no order ID is ever 0.
+        generation[used] = 1;
+        return used++;
+    }
+
+    private void freeSlot(int slot) {
+        open[slot] = 0;
+        int nextGeneration = (generation[slot] + 1) & ((1 << GENERATION_BITS) - 1);
+        generation[slot] = nextGeneration == 0 ? 1 : nextGeneration;
+        next[slot] = freeSlot;
+        freeSlot = slot;
+    }
+
+
+    /**
+     * Price levels of one side, sorted so the best price is the last entry:
+     * bids ascending (highest last), asks descending (lowest last).
+     */
+    private static final class Side {
+        private final boolean bids;
+        private long[] prices = new long[64];
+        private int[] head = new int[64];
+        private int[] tail = new int[64];
+        private int count = 0;
+
+        private Side(boolean bids) {
+            this.bids = bids;
+        }
+
+        //Index of the level with this price, or -(insertion point) - 1.
+        private int find(long price) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long midPrice = prices[mid];
+                if (midPrice == price) return mid;
+                if (bids ? midPrice < price : midPrice > price) low = mid + 1;
+                else high = mid - 1;
+            }
+            return -(low + 1);
+        }
+
+        //Returns the level for the price, inserting an empty one if needed.
+        private int levelFor(long price) {
+            int level = find(price);
+            if (level >= 0) return level;
+
+            level = -(level + 1);
+            if (count == prices.length) {
+                prices = Arrays.copyOf(prices, count * 2);
+                head = Arrays.copyOf(head, count * 2);
+                tail = Arrays.copyOf(tail, count * 2);
+            }
+            System.arraycopy(prices, level, prices, level + 1, count - level);
+            System.arraycopy(head, level, head, level + 1, count - level);
+            System.arraycopy(tail, level, tail, level + 1, count - level);
+            prices[level] = price;
+            head[level] = NONE;
+            tail[level] = NONE;
+            count++;
+            return level;
+        }
+
+        private void removeLevel(int level) {
+            System.arraycopy(prices, level + 1, prices, level, count - level - 1);
+            System.arraycopy(head, level + 1, head, level, count - level - 1);
+            System.arraycopy(tail, level + 1, tail, level, count - level - 1);
+            count--;
+        }
+    }
+
+    /**
+     * Resting orders traded against by one incoming order, in fill order, held in primitive arrays.
+     */
+    public static final class Fills {
+        private int count = 0;
+        private long[] orderIds = new long[8];
+        private int[] users = new int[8];
+        private long[] prices = new long[8];
+        private long[] amounts = new long[8];
+
+        void add(long orderId, int userId, long price, long amount) {
+            if (count == orderIds.length) {
+                orderIds = Arrays.copyOf(orderIds, count * 2);
+                users = Arrays.copyOf(users, count * 2);
+                prices = Arrays.copyOf(prices, count * 2);
+                amounts = Arrays.copyOf(amounts, count * 2);
+            }
+            orderIds[count] = orderId;
+            users[count] = userId;
+            prices[count] = price;
+            amounts[count] = amount;
+            count++;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public long getOrderId(int i) {
+            return orderIds[i];
+        }
+
+        public int getUser(int i) {
+            return users[i];
+        }
+
+        public long getPrice(int i) {
+            return prices[i];
+        }
+
+        public long getAmount(int i) {
+            return amounts[i];
+        }
+    }
+
+    /**
+     * A resting order taken out of the book, with the amount that was still open.
+     */
+    public static final class Order {
+        private final long id;
+        private final String symbol;
+        private final int userId;
+        private final boolean buy;
+        private final long price;
+        private final long open;
+
+        Order(long id, String symbol, int userId, boolean buy, long price, long open) {
+            this.id = id;
+            this.symbol = symbol;
+            this.userId = userId;
+            this.buy = buy;
+            this.price = price;
+            this.open = open;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getSymbol() {
+            return symbol;
+        }
+
+        public int getUserId() {
+            return userId;
+        }
+
+        public boolean isBuy() {
+            return buy;
+        }
+
+        public long getPrice() {
+            return price;
+        }
+
+        public long getOpen() {
+            return open;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * PasswordHash - salted password hashes as kept in the password column of Users.
+ *
+ * A hash reads "pbkdf2-sha256$<iterations>$<salt>$<hash>": PBKDF2 with HMAC-SHA256 over a random
+ * 16-byte salt, both salt and hash in Base64. Passwords stored before LOGIN existed are plain
+ * text; verify still accepts them and needsRehash reports them, so LOGIN replaces them with a
+ * hash the first time they are used. The same goes for hashes with fewer iterations than
+ * ServerConfig.AUTH_HASH_ITERATIONS.
+ */
+public final class PasswordHash {
+
+    private static final String PREFIX = "pbkdf2-sha256$";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private PasswordHash() {
+    }
+
+    /**
+     * Hashes a password with a new salt and ServerConfig.AUTH_HASH_ITERATIONS iterations.
+     */
+    public static String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        int iterations = ServerConfig.AUTH_HASH_ITERATIONS;
+        Base64.Encoder base64 = Base64.getEncoder();
+        return PREFIX + iterations + '$' + base64.encodeToString(salt) + '$'
+                + base64.encodeToString(pbkdf2(password, salt, iterations));
+    }
+
+    /**
+     * Checks a password against a stored hash, or against a plain text password stored before
+     * hashing was introduced. Takes the same time whichever character differs.
+     *
+     * @return false also if stored is null or a malformed hash
+     */
+    public static boolean verify(String password, String stored) {
+        if (stored == null) return false;
+        if (!stored.startsWith(PREFIX)) {
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8),
+                    stored.getBytes(StandardCharsets.UTF_8));
+        }
+
+        String[] parts = stored.substring(PREFIX.length()).split("\\$");
+        if (parts.length != 3) return false;
+        try {
+            int iterations = Integer.parseInt(parts[0]);
+            byte[] salt = Base64.getDecoder().decode(parts[1]);
+            byte[] expected = Base64.getDecoder().decode(parts[2]);
+            if (iterations < 1) return false;
+            return MessageDigest.isEqual(pbkdf2(password, salt, iterations), expected);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the stored password is plain text or hashed with fewer iterations than
+     *         ServerConfig.AUTH_HASH_ITERATIONS
+     */
+    public static boolean needsRehash(String stored) {
+        if (stored == null || !stored.startsWith(PREFIX)) return true;
+        int end = stored.indexOf('$', PREFIX.length());
+        try {
+            return end < 0 || Integer.parseInt(stored.substring(PREFIX.length(), end)) < ServerConfig.AUTH_HASH_ITERATIONS;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            // Every Java runtime provides PBKDF2WithHmacSHA256.
+            throw new IllegalStateException("PBKDF2 is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PriceCache - latest market price of every symbol, in micros (see Money).
+ *
+ * Prices arrive from the configured PriceFeed and, unless -Dprice.fromTrades=false, from executed
+ * trades. Both readers and writers are lock-free: symbols are placed in an open-addressing table
+ * of Quote slots claimed with compareAndSet, and a slot's price is a volatile field, so VALUE
+ * never waits for a feed update and a feed never waits for VALUE.
+ */
+public class PriceCache {
+
+    private static final int MAX_PROBES = 16;
+
+    private static final AtomicReferenceArray<Quote> quotes =
+            new AtomicReferenceArray<>(tableSize(ServerConfig.PRICE_MAX_SYMBOLS));
+    private static final int mask = quotes.length() - 1;
+
+    private static final LongAdder symbols = new LongAdder();
+    private static final LongAdder updates = new LongAdder();
+    private static final LongAdder dropped = new LongAdder();
+
+    /**
+     * Sets the latest price of the symbol. The update is dropped (and counted) if the table
+     * has no room for a new symbol.
+     */
+    public static void update(String symbol, long price) {
+        int slot = hash(symbol);
+        for (int probe = 0; probe < MAX_PROBES; probe++, slot = (slot + 1) & mask) {
+            Quote quote = quotes.get(slot);
+            if (quote == null) {
+                // Publish the symbol together with its first price.
+                if (quotes.compareAndSet(slot, null, new Quote(symbol, price))) {
+                    symbols.increment();
+                    updates.increment();
+                    return;
+                }
+                quote = quotes.get(slot);
+            }
+            if (quote.symbol.equals(symbol)) {
+                quote.price = price;
+                updates.increment();
+                return;
+            }
+        }
+        dropped.increment();
+    }
+
+    /**
+     * Records the price of an executed trade, if trades set prices.
+     */
+    public static void trade(String symbol, long price) {
+        if (ServerConfig.PRICE_FROM_TRADES) {
+            update(symbol, price);
+        }
+    }
+
+    /**
+     * @return the latest price of the symbol in micros, or -1 if it has none yet
+     */
+    public static long getPrice(String symbol) {
+        int slot = hash(symbol);
+        for (int probe = 0; probe < MAX_PROBES; probe++, slot = (slot + 1) & mask) {
+            Quote quote = quotes.get(slot);
+            if (quote == null) return -1;
+            if (quote.symbol.equals(symbol)) return quote.price;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a one-line summary of the cache size and update counters.
+     */
+    public static String stats() {
+        return "symbols=" + symbols.sum() + "/" + quotes.length()
+                + " updates=" + updates.sum()
+                + " dropped=" + dropped.sum();
+    }
+
+    private static int hash(String symbol) {
+        int h = symbol.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    //Smallest power of two that holds the given number of symbols at a load factor of one half.
+    private static int tableSize(int maxSymbols) {
+        int size = 16;
+        while (size < 2 * maxSymbols && size < (1 << 30)) size <<= 1;
+        return size;
+    }
+
+    /**
+     * One symbol's slot; the symbol never changes once the slot is claimed.
+     */
+    private static final class Quote {
+        private final String symbol;
+        private volatile long price;
+
+        private Quote(String symbol, long price) {
+            this.symbol = symbol;
+            this.price = price;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+import java.nio.file.Paths;
+
+/**
+ * PriceFeed - a source of market prices, published to PriceCache.
+ *
+ * Chosen with -Dprice.feed: "none" (the default; only executed trades set prices), "replay" for
+ * ReplayPriceFeed, or the name of any class implementing this interface that has a public
+ * no-argument constructor.
+ */
+public interface PriceFeed {
+
+    /**
+     * Starts publishing prices, normally on a thread of its own. Called once at server startup.
+     */
+    void start();
+
+    /**
+     * Stops publishing. Called once when the server shuts down.
+     */
+    void stop();
+
+    /**
+     * Creates the feed named by ServerConfig.PRICE_FEED.
+     *
+     * @return the feed, or null for "none"
+     */
+    static PriceFeed create(String name) {
+        if (name.equalsIgnoreCase("none")) return null;
+        if (name.equalsIgnoreCase("replay")) {
+            return new ReplayPriceFeed(Paths.get(ServerConfig.PRICE_FILE), ServerConfig.PRICE_REPLAY_LOOP);
+        }
+        try {
+            return (PriceFeed) Class.forName(name).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Unknown price feed: " + name, e);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RateLimiter - token bucket limits on how fast one connection, and one user, may send commands.
+ *
+ * Every line or frame costs its connection a token of the Session's bucket
+ * (ServerConfig.RATE_CONNECTION_PER_SECOND); a command naming a User_ID also costs a token of
+ * that user's bucket, shared by all connections (ServerConfig.RATE_USER_PER_SECOND). A refused
+ * request is answered with 429 and the session records when the refusing bucket has a token
+ * again; until then the connection handlers read nothing more from that client, so its further
+ * commands wait in the socket and TCP flow control slows the client down.
+ *
+ * User buckets are created on first use. Beyond ServerConfig.RATE_MAX_USERS of them the ones
+ * that have refilled completely are dropped, which changes nothing for their users.
+ */
+public class RateLimiter {
+
+    private static final boolean connectionLimited = ServerConfig.RATE_CONNECTION_PER_SECOND > 0;
+    private static final boolean userLimited = ServerConfig.RATE_USER_PER_SECOND > 0;
+
+    private static final ConcurrentHashMap<Integer, TokenBucket> users = new ConcurrentHashMap<>();
+    private static final AtomicBoolean purging = new AtomicBoolean();
+    private static volatile int purgeAbove = ServerConfig.RATE_MAX_USERS;
+
+    private static final LongAdder connectionRefused = new LongAdder();
+    private static final LongAdder userRefused = new LongAdder();
+    private static final LongAdder purged = new LongAdder();
+
+    /**
+     * @return a bucket for a new connection, or null when connections are not limited
+     */
+    public static TokenBucket connectionBucket() {
+        return connectionLimited
+                ? new TokenBucket(ServerConfig.RATE_CONNECTION_PER_SECOND, ServerConfig.RATE_CONNECTION_BURST)
+                : null;
+    }
+
+    /**
+     * Takes a token from the session's connection bucket.
+     *
+     * @return false if there was none; the session is then throttled until the next one
+     */
+    public static boolean allowConnection(Session session) {
+        TokenBucket bucket = session.getRateBucket();
+        if (bucket == null || bucket.tryAcquire(System.nanoTime())) return true;
+        connectionRefused.increment();
+        session.throttle(bucket.nextTokenAt());
+        return false;
+    }
+
+    /**
+     * Takes a token from the user's bucket for a command the session sent.
+     *
+     * @return false if there was none; the session is then throttled until the next one
+     */
+    public static boolean allowUser(int userId, Session session) {
+        if (!userLimited) return true;
+        TokenBucket bucket = users.get(userId);
+        if (bucket == null) {
+            if (users.size() > purgeAbove) purge();
+            bucket = users.computeIfAbsent(userId,
+                    id -> new TokenBucket(ServerConfig.RATE_USER_PER_SECOND, ServerConfig.RATE_USER_BURST));
+        }
+        if (bucket.tryAcquire(System.nanoTime())) return true;
+        userRefused.increment();
+        session.throttle(bucket.nextTokenAt());
+        return false;
+    }
+
+    /**
+     * Returns a one-line summary of refused requests and user buckets.
+     */
+    public static String stats() {
+        return "refused connection=" + connectionRefused.sum()
+                + " user=" + userRefused.sum()
+                + " userBuckets=" + users.size()
+                + " purged=" + purged.sum();
+    }
+
+    //Drops the user buckets that are full again. One thread at a time; the others go on meanwhile.
+    private static void purge() {
+        if (!purging.compareAndSet(false, true)) return;
+        try {
+            long now = System.nanoTime();
+            for (Iterator<TokenBucket> it = users.values().iterator(); it.hasNext(); ) {
+                if (it.next().isFull(now)) {
+                    it.remove();
+                    purged.increment();
+                }
+            }
+            // If most users are still active, let the map grow before scanning it again.
+            purgeAbove = Math.max(ServerConfig.RATE_MAX_USERS, users.size() * 2);
+        } finally {
+            purging.set(false);
+        }
+    }
+}
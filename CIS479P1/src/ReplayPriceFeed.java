@@ -0,0 +1,78 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * ReplayPriceFeed - replays prices from a text file, for testing without a market data source.
+ *
+ * Each line is "<delay_ms> <symbol> <price>": wait delay_ms milliseconds after the previous line,
+ * then publish the price. Blank lines and lines starting with '#' are skipped, malformed lines are
+ * reported to the audit log and skipped. With loop set, the file starts over at its end.
+ */
+public class ReplayPriceFeed implements PriceFeed {
+
+    private final Path file;
+    private final boolean loop;
+    private volatile boolean running = false;
+    private Thread thread;
+
+    public ReplayPriceFeed(Path file, boolean loop) {
+        this.file = file;
+        this.loop = loop;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        thread = new Thread(this::run, "price-replay");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Replaying prices from " + file.toAbsolutePath());
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            do {
+                replay();
+            } while (loop && running);
+        } catch (IOException e) {
+            AsyncLog.error("Price replay stopped: " + e.getMessage());
+        } catch (InterruptedException e) {
+            // Stopped.
+        }
+    }
+
+    //Publishes every price of the file once.
+    private void replay() throws IOException, InterruptedException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.US_ASCII)) {
+            String line;
+            int lineNumber = 0;
+            while (running && (line = reader.readLine()) != null) {
+                lineNumber++;
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+
+                String[] parts = trimmed.split("\\s+");
+                long delay = parts.length == 3 ? CommandParser.parseInt(parts[0], 0, parts[0].length()) : -1;
+                long price = parts.length == 3 ? CommandParser.parseMicros(parts[2], 0, parts[2].length()) : -1;
+                if (delay < 0 || price < 0) {
+                    AsyncLog.error("Skipping malformed price line " + lineNumber + " of " + file + ": " + line);
+                    continue;
+                }
+
+                if (delay > 0) Thread.sleep(delay);
+                PriceCache.update(CommandParser.symbol(parts[1], 0, parts[1].length()), price);
+            }
+        }
+    }
+}
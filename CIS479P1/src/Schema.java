@@ -0,0 +1,116 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Schema - creates and upgrades the database layout when the server starts, so StockDB can rely
+ * on its tables, column types and indexes instead of assuming whatever the file happens to hold.
+ *
+ * PRAGMA user_version counts the migrations a database has had. Each migration runs in its own
+ * transaction together with the user_version bump, so an interrupted upgrade is simply repeated
+ * on the next start. A new database is first given the original table layout and then goes
+ * through the same migrations as an existing one.
+ */
+public final class Schema {
+
+    // The layout stock_exchange.db was shipped with (user_version 0).
+    private static final String[] CREATE_TABLES = {
+            "CREATE TABLE IF NOT EXISTS Users (ID INTEGER PRIMARY KEY AUTOINCREMENT, email TEXT, " +
+                    "first_name TEXT, last_name TEXT, user_name TEXT NOT NULL, password TEXT, " +
+                    "usd_balance DOUBLE NOT NULL)",
+            "CREATE TABLE IF NOT EXISTS Stocks (ID INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "stock_symbol VARCHAR(4) NOT NULL, stock_name VARCHAR(20) NOT NULL, " +
+                    "stock_balance DOUBLE, user_id INTEGER, FOREIGN KEY (user_id) REFERENCES Users (ID))"
+    };
+
+    // MIGRATIONS[i] takes a database from user_version i to i + 1.
+    private static final String[][] MIGRATIONS = {
+            // 1: USD and stock balances as INTEGER micros (see Money) instead of DOUBLE.
+            {
+                    "CREATE TABLE Stocks_micros (ID INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "stock_symbol VARCHAR(4) NOT NULL, stock_name VARCHAR(20) NOT NULL, " +
+                            "stock_balance INTEGER, user_id INTEGER, FOREIGN KEY (user_id) REFERENCES Users (ID))",
+                    "INSERT INTO Stocks_micros SELECT ID, stock_symbol, stock_name, " +
+                            "CAST(ROUND(stock_balance * 1000000) AS INTEGER), user_id FROM Stocks",
+                    "DROP TABLE Stocks",
+                    "ALTER TABLE Stocks_micros RENAME TO Stocks",
+                    "CREATE TABLE Users_micros (ID INTEGER PRIMARY KEY AUTOINCREMENT, email TEXT, " +
+                            "first_name TEXT, last_name TEXT, user_name TEXT NOT NULL, password TEXT, " +
+                            "usd_balance INTEGER NOT NULL)",
+                    "INSERT INTO Users_micros SELECT ID, email, first_name, last_name, user_name, password, " +
+                            "CAST(ROUND(usd_balance * 1000000) AS INTEGER) FROM Users",
+                    "DROP TABLE Users",
+                    "ALTER TABLE Users_micros RENAME TO Users"
+            },
+            // 2: one position per user and symbol, found through an index. Duplicate positions are
+            // merged into the oldest one first.
+            {
+                    "UPDATE Stocks SET stock_balance = (SELECT SUM(s.stock_balance) FROM Stocks s " +
+                            "WHERE s.user_id = Stocks.user_id AND s.stock_symbol = Stocks.stock_symbol) " +
+                            "WHERE ID IN (SELECT MIN(ID) FROM Stocks GROUP BY user_id, stock_symbol HAVING COUNT(*) > 1)",
+                    "DELETE FROM Stocks WHERE ID NOT IN (SELECT MIN(ID) FROM Stocks GROUP BY user_id, stock_symbol)",
+                    "CREATE UNIQUE INDEX Stocks_user_symbol ON Stocks (user_id, stock_symbol)"
+            },
+            // 3: LOGIN finds users by user name.
+            {
+                    "CREATE INDEX Users_user_name ON Users (user_name)"
+            },
+            // 4: orders of the matching engine that hold escrow, so a restart can give it back.
+            {
+                    "CREATE TABLE OpenOrders (ID INTEGER PRIMARY KEY, user_id INTEGER NOT NULL, " +
+                            "stock_symbol VARCHAR(4) NOT NULL, buy INTEGER NOT NULL, price INTEGER NOT NULL, " +
+                            "open_amount INTEGER NOT NULL, FOREIGN KEY (user_id) REFERENCES Users (ID))"
+            }
+    };
+
+    public static final int VERSION = MIGRATIONS.length;
+
+    private Schema() {
+    }
+
+    /**
+     * Statements run on every new database connection: ServerConfig.DB_SYNCHRONOUS and
+     * ServerConfig.DB_CACHE_KB only last as long as the connection.
+     */
+    public static String[] connectionSetup() {
+        return new String[]{
+                "PRAGMA synchronous = " + ServerConfig.DB_SYNCHRONOUS,
+                "PRAGMA cache_size = -" + ServerConfig.DB_CACHE_KB
+        };
+    }
+
+    /**
+     * Sets the journal mode, creates missing tables and applies the migrations the database has
+     * not had yet. The server cannot run on an older layout, so a failure stops it.
+     */
+    public static void migrate(Connection db) {
+        try (Statement statement = db.createStatement()) {
+            // Persistent in the database file; cannot change inside a transaction.
+            statement.execute("PRAGMA journal_mode = " + ServerConfig.DB_JOURNAL_MODE);
+
+            int version;
+            try (ResultSet result = statement.executeQuery("PRAGMA user_version")) {
+                version = result.next() ? result.getInt(1) : 0;
+            }
+            if (version == 0) {
+                for (String sql : CREATE_TABLES) {
+                    statement.executeUpdate(sql);
+                }
+            }
+
+            for (; version < VERSION; version++) {
+                db.setAutoCommit(false);
+                for (String sql : MIGRATIONS[version]) {
+                    statement.executeUpdate(sql);
+                }
+                statement.executeUpdate("PRAGMA user_version = " + (version + 1));
+                db.commit();
+                db.setAutoCommit(true);
+                System.out.println("Database schema migrated to version " + (version + 1));
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not migrate the database schema: " + e.getMessage(), e);
+        }
+    }
+}
@@ -1,20 +1,77 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Server class that listens for incoming socket connections on a predefined port
- * and processes commands received from connected client.
+ * and processes commands received from connected clients.
+ * Each client is served on its own thread (or, with -Dserver.io=nio, multiplexed by NioServer)
+ * so an idle client never blocks the others.
  */
 public class Server {
 
     public static final int SERVER_PORT = 4080;
 
-    public static void main(String[] args) {
+    private static ServerSocket serverSocket;
+    private static NioServer nioServer;
+    private static ExecutorService clientExecutor;
+    private static final Semaphore connectionSlots = new Semaphore(connectionLimit());
+    private static final Set<ClientHandler> activeClients = ConcurrentHashMap.newKeySet();
+    private static volatile boolean shuttingDown = false;
+
+    // Each client thread parses into its own reusable Command and builds binary responses in its own buffer.
+    private static final ThreadLocal<Command> COMMAND = ThreadLocal.withInitial(Command::new);
+    private static final ThreadLocal<BinaryProtocol.Response> RESPONSE =
+            ThreadLocal.withInitial(BinaryProtocol.Response::new);
+
+    // Responses to commands a session may not run (see unauthorized).
+    private static final String LOGIN_REQUIRED = "401 Login required.";
+    private static final String NOT_LOGGED_IN_AS_USER = "401 Not logged in as this user.";
+
+    // Response to a request refused by RateLimiter.
+    private static final String THROTTLED = "429 Too many requests.";
+
+    // Stand in a BATCH for an order naming another user than the session's LOGIN (answered with
+    // 401) and for one refused by RateLimiter (answered with 429).
+    private static final TradeRequest UNAUTHORIZED_ORDER = new TradeRequest(true, "", 0, 0, -1);
+    private static final TradeRequest THROTTLED_ORDER = new TradeRequest(true, "", 0, 0, -1);
+
+    // Group commit pipeline for BUY/SELL, or null when trades commit one by one.
+    private static TradeBatcher tradeBatcher;
+
+    // Order book matching for BUY/SELL, or null when trades fill at the stated price.
+    private static MatchingEngine matchingEngine;
+
+    // Per-user ordering of BUY/SELL, or null when trades run on the client thread.
+    private static ShardedExecutor tradeShards;
+
+    // Source of market prices for PriceCache, or null when only trades set prices.
+    private static PriceFeed priceFeed;
 
-        try (ServerSocket serverSocket = new ServerSocket(SERVER_PORT)) {
+    public static void main(String[] args) {
 
-            System.out.println("Server listening on port " + SERVER_PORT);
+        try {
+            clientExecutor = createClientExecutor();
+            if (ServerConfig.GROUP_COMMIT) {
+                tradeBatcher = new TradeBatcher(ServerConfig.GROUP_COMMIT_BATCH_SIZE,
+                        ServerConfig.GROUP_COMMIT_WINDOW_MICROS);
+            }
+            if (ServerConfig.MATCHING) {
+                matchingEngine = new MatchingEngine();
+            }
+            if (ServerConfig.TRADE_SHARDS > 0) {
+                tradeShards = new ShardedExecutor(ServerConfig.TRADE_SHARDS, "trade-shard");
+            }
 
             // Ensure at least one user exists if the table is initially empty
             ArrayList<User> users = StockDB.getUsers();
@@ -25,126 +82,271 @@ public class Server {
                         "John",
                         "Doe",
                         "johndoe",
-                        "12345",
-                        100.0);
+                        PasswordHash.hash("12345"),
+                        Money.ofUnits(100));
                 StockDB.addUser(defaultUser);
             }
 
-            // Run indefinitely to accept and handle incoming client connections.
-            while (true) {
+            // Before the cache is loaded, so it sees the released balances.
+            MatchingEngine.releaseStoredOrders();
 
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Client connected");
+            // Warm the account cache so BALANCE and LIST do not need the database.
+            AccountCache.load();
+            Metrics.startDump(ServerConfig.METRICS_DUMP_SECONDS);
 
-                BufferedReader in = new BufferedReader(
-                        new InputStreamReader(clientSocket.getInputStream()));
-                PrintWriter out = new PrintWriter(
-                        clientSocket.getOutputStream(), true);
-
-                String line;
+            priceFeed = PriceFeed.create(ServerConfig.PRICE_FEED);
+            if (priceFeed != null) {
+                priceFeed.start();
+            }
 
-                // Process each line of input from the connected client.
-                while ((line = in.readLine()) != null) {
+            if (ServerConfig.IO.equalsIgnoreCase("nio")) {
+                nioServer = new NioServer(SERVER_PORT, clientExecutor);
+                System.out.println("Server listening on port " + SERVER_PORT + " (nio)");
+                nioServer.run();
+            } else {
+                serverSocket = new ServerSocket(SERVER_PORT);
+                System.out.println("Server listening on port " + SERVER_PORT);
+                acceptClients();
+            }
 
-                    System.out.println("Received: " + line);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
-                    String response = processCommand(line);
+        drainClients();
+        if (priceFeed != null) {
+            priceFeed.stop();
+        }
+        if (tradeShards != null) {
+            tradeShards.close();
+        }
+        if (matchingEngine != null) {
+            matchingEngine.close();
+        }
+        if (tradeBatcher != null) {
+            tradeBatcher.close();
+        }
+        Metrics.stopDump();
+        System.out.println(statsReport());
+        AsyncLog.close();
+        System.out.println("Audit log " + AsyncLog.stats());
+        StockDB.close();
+        System.out.println("Server shutting down...");
+        System.exit(0);
+    }
 
-                    // Handle QUIT
-                    if (response.equals("QUIT")) {
-                        out.println("200 OK");
-                        break;
-                    }
+    /**
+     * Blocking mode: accepts clients until SHUTDOWN closes the server socket and runs
+     * each one on its own ClientHandler.
+     */
+    private static void acceptClients() throws IOException {
+        while (!shuttingDown) {
 
-                    // Handle SHUTDOWN
-                    if (response.equals("SHUTDOWN")) {
-                        out.println("200 OK");
-                        clientSocket.close();
-                        serverSocket.close();
-                        System.out.println("Server shutting down...");
-                        System.exit(0);
-                    }
+            Socket clientSocket;
+            try {
+                clientSocket = serverSocket.accept();
+            } catch (SocketException e) {
+                if (shuttingDown) break;
+                throw e;
+            }
 
-                    out.println(response);
+            // Turn the client away if the connection limit has been reached.
+            if (!connectionSlots.tryAcquire()) {
+                try (PrintWriter busy = new PrintWriter(clientSocket.getOutputStream(), true)) {
+                    busy.println("400 Server busy. Too many connections.");
                 }
-
                 clientSocket.close();
-                System.out.println("Client disconnected");
+                Metrics.connectionRejected();
+                continue;
+            }
+
+            Metrics.connectionOpened();
+            AsyncLog.connected(clientSocket.getRemoteSocketAddress());
+
+            ClientHandler handler = new ClientHandler(clientSocket);
+            activeClients.add(handler);
+            clientExecutor.execute(handler);
+        }
+    }
+
+    /**
+     * Creates the executor that runs client handlers, based on ServerConfig.MODE.
+     * Virtual threads need Java 21; on older runtimes every client gets a platform thread of a
+     * growing pool instead, so no client waits for another one to disconnect.
+     */
+    private static ExecutorService createClientExecutor() {
+        if (ServerConfig.MODE.equalsIgnoreCase("virtual")) {
+            try {
+                // Looked up reflectively so the server still compiles and runs on Java 17.
+                return (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor")
+                        .invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads not available. Using one platform thread per client instead.");
+                return Executors.newCachedThreadPool();
             }
+        }
+        return Executors.newFixedThreadPool(ServerConfig.POOL_THREADS);
+    }
+
+    /**
+     * How many clients may be connected at once. A blocking client handler holds its pool thread
+     * until the client disconnects, so in pool mode a client beyond the pool size would get no
+     * answer until another one left; it is turned away instead.
+     */
+    private static int connectionLimit() {
+        if (ServerConfig.MODE.equalsIgnoreCase("pool") && !ServerConfig.IO.equalsIgnoreCase("nio")
+                && ServerConfig.POOL_THREADS < ServerConfig.MAX_CONNECTIONS) {
+            System.out.println("Pool mode: at most " + ServerConfig.POOL_THREADS
+                    + " connections, one per thread (server.threads)");
+            return ServerConfig.POOL_THREADS;
+        }
+        return ServerConfig.MAX_CONNECTIONS;
+    }
 
+    /**
+     * Called by the client that sent SHUTDOWN. Stops accepting new clients;
+     * main() then drains the connected ones and exits.
+     */
+    static void shutdown() {
+        shuttingDown = true;
+        if (nioServer != null) {
+            nioServer.stop();
+            return;
+        }
+        try {
+            serverSocket.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    static void clientDisconnected(ClientHandler handler) {
+        if (activeClients.remove(handler)) {
+            connectionSlots.release();
+            Metrics.connectionClosed();
+        }
+    }
+
     /**
-     *  Processes a single textual trading command that follows a structured BUY request format.
+     * Lets every connected client finish the command it is working on, then closes it.
+     * Anything still running after ServerConfig.DRAIN_SECONDS is interrupted.
      */
+    private static void drainClients() {
+        if (clientExecutor == null) return;
 
-    private static String processCommand(String request) {
+        clientExecutor.shutdown();
+        for (ClientHandler handler : activeClients) {
+            handler.stopReading();
+        }
 
         try {
-            // Split the request by whitespace, trim any leading/trailing spaces first.
-            String[] parts = request.trim().split(" ");
-            String command = parts[0].toUpperCase();
+            if (!clientExecutor.awaitTermination(ServerConfig.DRAIN_SECONDS, TimeUnit.SECONDS)) {
+                clientExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            clientExecutor.shutdownNow();
+        }
+    }
 
-            switch (command) {
+    /**
+     *  Processes a single textual trading command that follows a structured BUY request format.
+     *  Called concurrently from every client thread; session holds the calling connection's state.
+     */
 
-                /** /////////////////////////////////////////////////////////////////////////////////////
-                 * BUY command handler
-                 * Expected format: “BUY” followed by a space,
-                 * followed by a stock_symbol, followed by a space, followed by a stock_amount, followed by
-                 * a space, followed by the price per stock, followed by a User_ID, and followed by the
-                 * newline character (i.e., '\n').
-                 *///////////////////////////////////////////////////////////////////////////////////////
-                case "BUY":
-                    if (parts.length != 5)
-                        return "403 message format error";
+    static String processCommand(String request, Session session) {
 
-                    //parse command parameters
-                    String buySymbol = parts[1];
-                    double buyAmount = Double.parseDouble(parts[2]);
-                    double buyPrice = Double.parseDouble(parts[3]);
-                    int buyUserId = Integer.parseInt(parts[4]);
+        long started = System.nanoTime();
 
-                    //Ensure User exists. return error statement if not.
-                    User buyUser = StockDB.getUserByID(buyUserId);
-                    if (buyUser == null)
-                        return "400 invalid command. User not found.";
+        // Lines following BATCH are orders to collect, not commands.
+        if (session.inBatch()) {
+            String response = addBatchOrder(request, session);
+            // Timed once, when the last order has arrived and the batch has run.
+            if (response != null) Metrics.recordCommand(Command.Verb.BATCH, started, response);
+            return response;
+        }
 
-                    double totalCost = buyAmount * buyPrice;
+        // Tokenize into this thread's reusable Command; format errors come back as codes, not exceptions.
+        Command command = COMMAND.get();
+        boolean parsed = CommandParser.parse(request, command);
+        String response;
+        if (!RateLimiter.allowConnection(session)) {
+            // Every line costs a token, malformed ones included.
+            response = THROTTLED;
+        } else if (!parsed) {
+            response = command.getError() == Command.FORMAT_ERROR
+                    ? "403 message format error"
+                    : "400 Invalid command";
+        } else {
+            String denied = unauthorized(command, session);
+            if (denied == null && command.namesUser() && !RateLimiter.allowUser(command.getUserID(), session)) {
+                denied = THROTTLED;
+            }
+            response = denied != null ? denied : executeCommand(command, session);
+        }
 
-                    // Ensure the user has sufficient funds before proceeding.
-                    if (buyUser.getBalance() < totalCost)
-                        return "400 invalid command. Not enough USD.";
+        // BATCH answers later; it is recorded above once complete.
+        if (response != null) Metrics.recordCommand(command.getVerb(), started, response);
+        return response;
+    }
 
-                    //update user balance
-                    double newBalance = buyUser.getBalance() - totalCost;
-                    StockDB.updateUserBalance(buyUserId, newBalance);
+    /**
+     * Returns the 401 response to a command the session may not run, or null if it may run it.
+     * After LOGIN, commands may only name the session's own User_ID. With ServerConfig.AUTH_REQUIRED
+     * nothing but LOGIN, QUIT, FRAMED and BINARY is accepted before LOGIN.
+     */
+    private static String unauthorized(Command command, Session session) {
+        if (session.isLoggedIn()) {
+            return command.namesUser() && command.getUserID() != session.getUserId() ? NOT_LOGGED_IN_AS_USER : null;
+        }
+        switch (command.getVerb()) {
+            case LOGIN:
+            case QUIT:
+            case FRAMED:
+            case BINARY:
+                return null;
+            default:
+                return ServerConfig.AUTH_REQUIRED ? LOGIN_REQUIRED : null;
+        }
+    }
 
-                    ArrayList<Stock> buyStocks =
-                            StockDB.getStockByUserAndSymbol(buyUserId, buySymbol);
+    /**
+     * Executes a parsed command and returns its response, or null for a BATCH whose
+     * orders are still to come.
+     */
+    private static String executeCommand(Command command, Session session) {
+        try {
+            switch (command.getVerb()) {
 
-                    Stock stock;
+                /** /////////////////////////////////////////////////////////////////////////////////////
+                 * BUY command handler
+                 * Expected format: “BUY” followed by a space,
+                 * followed by a stock_symbol, followed by a space, followed by a stock_amount, followed by
+                 * a space, followed by the price per stock, followed by a User_ID, and followed by the
+                 * newline character (i.e., '\n').
+                 *///////////////////////////////////////////////////////////////////////////////////////
+                case BUY:
+                    //command parameters
+                    String buySymbol = command.getStockSymbol();
+                    long buyAmount = command.getAmount();
+                    long buyPrice = command.getPrice();
+                    int buyUserId = command.getUserID();
 
-                    if (buyStocks.isEmpty()) {
-                        // No existing stock: create a new stock row with the purchased amount.
-                        stock = new Stock(0, buySymbol, buySymbol,
-                                buyAmount, buyUserId);
-                        StockDB.addStock(stock);
-                    } else {
-                        // Otherwise, append the amount to an existing position.
-                        stock = buyStocks.get(0);
-                        stock.setStockBalance(
-                                stock.getStockBalance() + buyAmount);
-                        StockDB.updateStock(stock);
+                    // With matching on, the BUY is a limit order against other users' SELLs.
+                    if (matchingEngine != null) {
+                        return orderResponse(submitOrder(
+                                new TradeRequest(true, buySymbol, buyAmount, buyPrice, buyUserId)));
                     }
 
+                    // Debit, position update and commit happen in one transaction.
+                    TradeResult bought = executeTrade(
+                            new TradeRequest(true, buySymbol, buyAmount, buyPrice, buyUserId));
+                    if (!bought.isOk())
+                        return tradeError(bought, buySymbol);
+
                     // Return a success response with the new USD balance
-                    return "200 OK\nBOUGHT: New balance: "
-                            + buyAmount + " " + buySymbol
-                            + ". USD balance $"
-                            + String.format("%.2f", newBalance);
+                    return appendBought(new StringBuilder(96).append("200 OK\n"), buyAmount, buySymbol, bought)
+                            .toString();
 
                 /** /////////////////////////////////////////////////////////////////////////////////////
                  * SELL command handler
@@ -154,116 +356,193 @@ public class Server {
                  * followed by the newline character (i.e., '\n').
                  *///////////////////////////////////////////////////////////////////////////////////////
 
-                case "SELL":
-                    if (parts.length != 5) {
-                        return "403 message format error";
-                    }
+                case SELL:
+                    //SELL command parameters
+                    String sellSymbol = command.getStockSymbol();
+                    long sellAmount = command.getAmount();
+                    long sellPrice = command.getPrice();
+                    int sellUserId = command.getUserID();
 
-                    //parse command SELL command parameters
-                    String sellSymbol = parts[1];
-                    double sellAmount = Double.parseDouble(parts[2]);
-                    double sellPrice = Double.parseDouble(parts[3]);
-                    int sellUserId = Integer.parseInt(parts[4]);
-
-                    User sellUser = StockDB.getUserByID(sellUserId);
-                    if (sellUser == null) {
-                        return "400 invalid command. User not found.";
+                    if (matchingEngine != null) {
+                        return orderResponse(submitOrder(
+                                new TradeRequest(false, sellSymbol, sellAmount, sellPrice, sellUserId)));
                     }
 
-                    ArrayList<Stock> sellStocks =
-                            StockDB.getStockByUserAndSymbol(sellUserId, sellSymbol);
-
-                    //Validate that user owns enough stock
-                    if (sellStocks.isEmpty() ||
-                            sellStocks.get(0).getStockBalance() < sellAmount) {
-                        return "400 invalid command. Not enough " + sellSymbol + " stock balance.";
-                    }
-
-                    Stock sellStock = sellStocks.get(0);
-
-                    //sell stock and update stock balance
-                    sellStock.setStockBalance(
-                            sellStock.getStockBalance() - sellAmount);
-                    StockDB.updateStock(sellStock);
-
-                    //calculate stock earnings and update user USD balance
-                    double totalGain = sellAmount * sellPrice;
-                    double updatedBalance = sellUser.getBalance() + totalGain;
-                    StockDB.updateUserBalance(sellUserId, updatedBalance);
+                    // Position update, credit and commit happen in one transaction.
+                    TradeResult sold = executeTrade(
+                            new TradeRequest(false, sellSymbol, sellAmount, sellPrice, sellUserId));
+                    if (!sold.isOk())
+                        return tradeError(sold, sellSymbol);
 
                     //return success statement
-                    return "200 OK\nSOLD: New balance: "
-                            + sellStock.getStockBalance() + " "
-                            + sellSymbol
-                            + ". USD balance $"
-                            + String.format("%.2f", updatedBalance);
+                    return appendSold(new StringBuilder(96).append("200 OK\n"), sellSymbol, sold).toString();
 
                 /** /////////////////////////////////////////////////////////////////////////////////////
                  * LIST command handler
+                 * Optional paging: "LIST <user_id> <offset> <limit>" returns at most limit positions,
+                 * skipping the first offset. A long list is returned in chunks of
+                 * ServerConfig.LIST_CHUNK_ROWS; the session holds the position of the next chunk.
                  *///////////////////////////////////////////////////////////////////////////////////////
-                case "LIST":
-                    //format error handling
-                    if (parts.length != 2)
-                        return "403 message format error";
-
+                case LIST:
                     //Ensure User exists. return error statement if not.
-                    int listUserId = Integer.parseInt(parts[1]);
-                    User listUser = StockDB.getUserByID(listUserId);
-                    if (listUser == null) {
+                    //Positions come from the account cache, not the database.
+                    int listUserId = command.getUserID();
+                    int listFrom = command.getOffset();
+                    int listTo = command.getLimit() > 0
+                            ? (int) Math.min((long) listFrom + command.getLimit(), Integer.MAX_VALUE)
+                            : Integer.MAX_VALUE;
+                    int chunkEnd = (int) Math.min((long) listFrom + ServerConfig.LIST_CHUNK_ROWS, listTo);
+
+                    List<Stock> stocks = new ArrayList<>(Math.min(chunkEnd - listFrom, 64));
+                    int positions = AccountCache.copyPositions(listUserId, listFrom, chunkEnd, stocks);
+                    if (positions < 0) {
                         return "400 invalid command. User not found.";
                     }
 
-                    //add stocks to array and list them
-                    ArrayList<Stock> stocks = StockDB.getStockByUserAndSymbol(listUserId, null);
-
                     StringBuilder sb = new StringBuilder();
                     sb.append("200 OK\n");
                     sb.append("The list of records in the Stocks database for user ")
                             .append(listUserId).append(":\n");
+                    appendPositions(sb, stocks);
 
-                    for (Stock s : stocks) {
-                        sb.append(s.getId())
-                                .append(" ")
-                                .append(s.getStockSymbol())
-                                .append(" ")
-                                .append(s.getStockBalance())
-                                .append(" ")
-                                .append(s.getUserID())
-                                .append("\n");
+                    // Positions added after this point are not part of the response.
+                    int listEnd = Math.min(listTo, positions);
+                    if (chunkEnd < listEnd) {
+                        session.continueList(listUserId, chunkEnd, listEnd);
                     }
-
                     return sb.toString();
 
                 /** /////////////////////////////////////////////////////////////////////////////////////
                  * BALANCE command handler
                  *///////////////////////////////////////////////////////////////////////////////////////
-                case "BALANCE":
-                    //format error handling
-                    if (parts.length != 2) {
-                        return "403 message format error";
-                    }
-
+                case BALANCE:
                     //Ensure User exists. return error statement if not.
-                    int balanceUserId = Integer.parseInt(parts[1]);
-                    User balanceUser = StockDB.getUserByID(balanceUserId);
+                    int balanceUserId = command.getUserID();
+                    User balanceUser = AccountCache.getUser(balanceUserId);
                     if (balanceUser == null) {
                         return "400 invalid command. User not found.";
                     }
 
-                    return "200 OK\nBalance for user "
-                            + balanceUser.getFirstName() + " "
-                            + balanceUser.getLastName()
-                            + ": $"
-                            + String.format("%.2f",
-                            balanceUser.getBalance());
+                    StringBuilder balance = new StringBuilder(64).append("200 OK\nBalance for user ")
+                            .append(balanceUser.getFirstName()).append(' ')
+                            .append(balanceUser.getLastName())
+                            .append(": $");
+                    return Money.appendUsd(balance, balanceUser.getBalance()).toString();
 
 
-                case "QUIT":
+                case QUIT:
                     return "QUIT";
 
-                case "SHUTDOWN":
+                case SHUTDOWN:
                     return "SHUTDOWN";
 
+                /** /////////////////////////////////////////////////////////////////////////////////////
+                 * FRAMED command handler
+                 * Switches the connection to framed responses: every response, starting with this
+                 * one, ends with a line holding a single ".". Needed for pipelined clients.
+                 *///////////////////////////////////////////////////////////////////////////////////////
+                case FRAMED:
+                    session.setFramed(true);
+                    return "200 OK";
+
+                /** /////////////////////////////////////////////////////////////////////////////////////
+                 * BATCH command handler
+                 * Expected format: "BATCH" followed by a space and the number of orders, followed by
+                 * that many BUY/SELL lines in the usual format. Nothing is answered until the last
+                 * order arrives; the valid orders are then executed in order and a single response
+                 * lists one "<order_number> <code> <message>" line per order. They share one
+                 * transaction unless trade shards or group commit are enabled; then the batch is not
+                 * atomic.
+                 *///////////////////////////////////////////////////////////////////////////////////////
+                case BATCH:
+                    session.startBatch(command.getCount());
+                    return null;
+
+                /** /////////////////////////////////////////////////////////////////////////////////////
+                 * STATS command handler
+                 * Returns the server metrics: connections, response codes and per-command and
+                 * per-database-operation counts and latency percentiles (microseconds).
+                 *///////////////////////////////////////////////////////////////////////////////////////
+                case STATS:
+                    return "200 OK\n" + statsReport();
+
+                /** /////////////////////////////////////////////////////////////////////////////////////
+                 * BINARY command handler
+                 * Switches the connection to BinaryProtocol frames once this "200 OK" has been sent.
+                 * The client must wait for it before sending its first frame.
+                 *///////////////////////////////////////////////////////////////////////////////////////
+                case BINARY:
+                    session.setBinary(true);
+                    return "200 OK";
+
+                /** /////////////////////////////////////////////////////////////////////////////////////
+                 * CANCEL command handler
+                 * Expected format: "CANCEL" followed by a space, the order ID returned for a resting
+                 * order, a space and the User_ID that placed it. The unfilled part is returned to
+                 * the user. Only available when order matching is enabled.
+                 *///////////////////////////////////////////////////////////////////////////////////////
+                case CANCEL:
+                    if (matchingEngine == null) {
+                        return "400 invalid command. Order matching is not enabled.";
+                    }
+                    OrderBook.Order cancelled = cancelOrder(command);
+                    if (cancelled == null) {
+                        return "400 invalid command. No open order " + command.getOrderId()
+                                + " for user " + command.getUserID() + ".";
+                    }
+                    return "200 OK\nCANCELLED: order " + cancelled.getId() + ", "
+                            + Money.formatQuantity(cancelled.getOpen()) + " " + cancelled.getSymbol() + " released";
+
+                /** /////////////////////////////////////////////////////////////////////////////////////
+                 * VALUE command handler
+                 * Expected format: "VALUE" followed by a space and a User_ID. Values every position
+                 * of the user at the latest price in PriceCache, one "<symbol> <balance> x $<price>
+                 * = $<value>" line each, followed by the stock, USD and total value. Positions of a
+                 * symbol without a price yet are listed but not counted. Nothing is read from the
+                 * database once the account is cached.
+                 *///////////////////////////////////////////////////////////////////////////////////////
+                case VALUE:
+                    return portfolioValue(command.getUserID());
+
+                /** /////////////////////////////////////////////////////////////////////////////////////
+                 * SUBSCRIBE / UNSUBSCRIBE command handlers
+                 * Expected format: "SUBSCRIBE" or "UNSUBSCRIBE" followed by a space and a User_ID.
+                 * While subscribed, every change a BUY or SELL makes to the user's USD balance or
+                 * positions is pushed to this connection as an "EVENT ..." line (see EventBus),
+                 * framed like a response and always between two responses.
+                 *///////////////////////////////////////////////////////////////////////////////////////
+                case SUBSCRIBE:
+                    // A user the session has logged in as is known to exist.
+                    if (session.getUserId() != command.getUserID()
+                            && AccountCache.getUser(command.getUserID()) == null) {
+                        return "400 invalid command. User not found.";
+                    }
+                    if (!EventBus.subscribe(command.getUserID(), session.subscriber())) {
+                        return "400 invalid command. Too many subscriptions.";
+                    }
+                    return "200 OK";
+
+                case UNSUBSCRIBE:
+                    if (session.getSubscriber() != null) {
+                        EventBus.unsubscribe(command.getUserID(), session.getSubscriber());
+                    }
+                    return "200 OK";
+
+                /** /////////////////////////////////////////////////////////////////////////////////////
+                 * LOGIN command handler
+                 * Expected format: "LOGIN" followed by a space, the user_name, a space and the
+                 * password. Binds the connection to that user (see Session); from then on its
+                 * commands may only name the User_ID returned here. Answered from CredentialCache
+                 * when the same login was verified recently.
+                 *///////////////////////////////////////////////////////////////////////////////////////
+                case LOGIN:
+                    int loginUserId = CredentialCache.authenticate(command.getUserName(), command.getPassword());
+                    if (loginUserId < 0) {
+                        return "401 Invalid user name or password.";
+                    }
+                    session.login(loginUserId);
+                    return "200 OK\nLogged in as " + command.getUserName() + ", user " + loginUserId;
+
                 default:
                     return "400 Invalid command";
             }
@@ -273,4 +552,517 @@ public class Server {
         }
     }
 
+    /**
+     * Processes one BinaryProtocol request frame and returns the response frame, or null for a
+     * TEXT frame holding a BATCH order that is still being collected. The returned buffer is
+     * reused by this thread's next call, so it must be written or copied before then.
+     */
+    static ByteBuffer processFrame(ByteBuffer frame, Session session) {
+        long started = System.nanoTime();
+        byte opcode = BinaryProtocol.opcode(frame);
+        BinaryProtocol.Response response = RESPONSE.get();
+
+        // TEXT frames carry a text command (STATS, BATCH, ...) and get its text response.
+        if (opcode == BinaryProtocol.OP_TEXT) {
+            String text = processCommand(BinaryProtocol.text(frame), session);
+            if (text == null) return null;
+            if (text.equals("QUIT") || text.equals("SHUTDOWN")) {
+                response.begin(text.equals("QUIT") ? BinaryProtocol.OP_QUIT : BinaryProtocol.OP_SHUTDOWN);
+                return response.finish();
+            }
+            return textResponse(response, text);
+        }
+
+        Command command = COMMAND.get();
+
+        // Orders of a BATCH may also come as BUY/SELL frames; the whole batch is answered as text.
+        if (session.inBatch()) {
+            String text = addBatchOrder(BinaryProtocol.decode(frame, command) ? command : null, session);
+            if (text == null) return null;
+            Metrics.recordCommand(Command.Verb.BATCH, started, text);
+            return textResponse(response, text);
+        }
+
+        response.begin(opcode);
+        boolean decoded = BinaryProtocol.decode(frame, command);
+        if (!RateLimiter.allowConnection(session)) {
+            response.fail(429, BinaryProtocol.REASON_THROTTLED);
+        } else if (!decoded) {
+            if (command.getError() == Command.FORMAT_ERROR) {
+                response.fail(403, BinaryProtocol.REASON_FORMAT_ERROR);
+            } else {
+                response.fail(400, BinaryProtocol.REASON_INVALID_COMMAND);
+            }
+        } else if (unauthorized(command, session) != null) {
+            response.fail(401, BinaryProtocol.REASON_NOT_LOGGED_IN);
+        } else if (command.namesUser() && !RateLimiter.allowUser(command.getUserID(), session)) {
+            response.fail(429, BinaryProtocol.REASON_THROTTLED);
+        } else {
+            executeFrame(command, response);
+        }
+
+        ByteBuffer out = response.finish();
+        Metrics.recordCommand(command.getVerb(), started, out.getShort(2) & 0xFFFF);
+        return out;
+    }
+
+    /**
+     * Formats the VALUE response from the cached account and PriceCache.
+     */
+    private static String portfolioValue(int userId) {
+        User user = AccountCache.getUser(userId);
+        if (user == null) {
+            return "400 invalid command. User not found.";
+        }
+
+        StringBuilder sb = new StringBuilder(128).append("200 OK\nPortfolio of user ")
+                .append(userId).append(" at latest prices:\n");
+        long stocksValue = 0;
+        List<Stock> stocks = new ArrayList<>();
+        for (int from = 0; ; from += ServerConfig.LIST_CHUNK_ROWS) {
+            stocks.clear();
+            int positions = AccountCache.copyPositions(userId, from, from + ServerConfig.LIST_CHUNK_ROWS, stocks);
+            for (Stock s : stocks) {
+                if (s.getStockBalance() == 0) continue;
+                Money.appendQuantity(sb.append(s.getStockSymbol()).append(' '), s.getStockBalance());
+
+                long price = PriceCache.getPrice(s.getStockSymbol());
+                if (price < 0) {
+                    sb.append(" no price\n");
+                    continue;
+                }
+                long value = Money.multiply(s.getStockBalance(), price);
+                stocksValue = Math.addExact(stocksValue, value);
+                Money.appendUsd(sb.append(" x $"), price);
+                Money.appendUsd(sb.append(" = $"), value).append('\n');
+            }
+            if (from + ServerConfig.LIST_CHUNK_ROWS >= positions) break;
+        }
+
+        long usd = user.getBalance();
+        Money.appendUsd(sb.append("Stocks $"), stocksValue);
+        Money.appendUsd(sb.append(" + USD $"), usd);
+        return Money.appendUsd(sb.append(" = $"), Math.addExact(stocksValue, usd)).toString();
+    }
+
+    /**
+     * Returns the next chunk of a LIST response that is sent in parts and moves the session past
+     * it. Called by the connection handlers while session.hasMoreOutput() is true.
+     */
+    static String nextChunk(Session session) {
+        int userId = session.getListUserId();
+        int from = session.getListNext();
+        int to = Math.min(session.getListEnd(), from + ServerConfig.LIST_CHUNK_ROWS);
+
+        List<Stock> stocks = new ArrayList<>(to - from);
+        AccountCache.copyPositions(userId, from, to, stocks);
+        session.continueList(userId, to, session.getListEnd());
+        return appendPositions(new StringBuilder(stocks.size() * 32), stocks).toString();
+    }
+
+    //One line per position: "<id> <symbol> <balance> <user_id>".
+    private static StringBuilder appendPositions(StringBuilder sb, List<Stock> stocks) {
+        for (Stock s : stocks) {
+            sb.append(s.getId())
+                    .append(" ")
+                    .append(s.getStockSymbol())
+                    .append(" ");
+            Money.appendQuantity(sb, s.getStockBalance())
+                    .append(" ")
+                    .append(s.getUserID())
+                    .append("\n");
+        }
+        return sb;
+    }
+
+    //Wraps a text protocol response in a TEXT response frame.
+    private static ByteBuffer textResponse(BinaryProtocol.Response response, String text) {
+        response.begin(BinaryProtocol.OP_TEXT);
+        if (text.startsWith("400")) response.fail(400, BinaryProtocol.REASON_OK);
+        else if (text.startsWith("401")) response.fail(401, BinaryProtocol.REASON_OK);
+        else if (text.startsWith("403")) response.fail(403, BinaryProtocol.REASON_OK);
+        else if (text.startsWith("429")) response.fail(429, BinaryProtocol.REASON_OK);
+        response.text(text);
+        return response.finish();
+    }
+
+    /**
+     * Binary counterpart of executeCommand: runs the same operations but fills in the response
+     * fields instead of formatting text.
+     */
+    private static void executeFrame(Command command, BinaryProtocol.Response response) {
+        try {
+            switch (command.getVerb()) {
+                case BUY:
+                case SELL:
+                    TradeRequest trade = new TradeRequest(command.getVerb() == Command.Verb.BUY,
+                            command.getStockSymbol(), command.getAmount(), command.getPrice(), command.getUserID());
+                    if (matchingEngine != null) {
+                        MatchingEngine.OrderResult order = submitOrder(trade);
+                        if (!order.isOk()) {
+                            response.fail(400, BinaryProtocol.reasonOf(order.getStatus()));
+                            return;
+                        }
+                        if (ServerConfig.AUDIT_TRADES) auditOrder(appendOrder(new StringBuilder(128), order), order);
+                        response.order(order.getOrderId(), order.getFilled(), order.getAveragePrice(),
+                                order.getOpen(), order.getUsdBalance());
+                        return;
+                    }
+                    TradeResult result = executeTrade(trade);
+                    if (!result.isOk()) {
+                        response.fail(400, BinaryProtocol.reasonOf(result.getStatus()));
+                        return;
+                    }
+                    response.trade(result.getUsdBalance(), result.getStockBalance());
+                    return;
+
+                case LIST:
+                    // One frame holds the whole page, copied from the cache a chunk at a time.
+                    int from = command.getOffset();
+                    int to = command.getLimit() > 0
+                            ? (int) Math.min((long) from + command.getLimit(), Integer.MAX_VALUE)
+                            : Integer.MAX_VALUE;
+                    List<Stock> stocks = new ArrayList<>();
+                    while (from < to) {
+                        int chunkEnd = (int) Math.min((long) from + ServerConfig.LIST_CHUNK_ROWS, to);
+                        stocks.clear();
+                        int positions = AccountCache.copyPositions(command.getUserID(), from, chunkEnd, stocks);
+                        if (positions < 0) {
+                            response.fail(400, BinaryProtocol.REASON_USER_NOT_FOUND);
+                            return;
+                        }
+                        for (Stock s : stocks) {
+                            response.position(s.getId(), s.getStockSymbol(), s.getStockBalance());
+                        }
+                        if (chunkEnd >= positions) break;
+                        from = chunkEnd;
+                    }
+                    return;
+
+                case BALANCE:
+                    User user = AccountCache.getUser(command.getUserID());
+                    if (user == null) {
+                        response.fail(400, BinaryProtocol.REASON_USER_NOT_FOUND);
+                        return;
+                    }
+                    response.balance(user.getBalance());
+                    return;
+
+                case CANCEL:
+                    if (matchingEngine == null) {
+                        response.fail(400, BinaryProtocol.REASON_MATCHING_DISABLED);
+                        return;
+                    }
+                    OrderBook.Order cancelled = cancelOrder(command);
+                    if (cancelled == null) {
+                        response.fail(400, BinaryProtocol.REASON_NO_SUCH_ORDER);
+                        return;
+                    }
+                    response.cancelled(cancelled.getId(), cancelled.getOpen());
+                    return;
+
+                default:
+                    // QUIT and SHUTDOWN: the connection acts on the 200 response.
+                    return;
+            }
+        } catch (Exception e) {
+            response.fail(400, BinaryProtocol.REASON_ERROR);
+        }
+    }
+
+    /**
+     * Records one order line of a BATCH. Returns null until the last order has arrived,
+     * then executes the batch and returns its response.
+     */
+    private static String addBatchOrder(String request, Session session) {
+        Command command = COMMAND.get();
+        return addBatchOrder(CommandParser.parse(request, command) ? command : null, session);
+    }
+
+    //Same for an order that is already decoded; command is null if it could not be parsed.
+    private static String addBatchOrder(Command command, Session session) {
+        TradeRequest order = null;
+        if (!RateLimiter.allowConnection(session)) {
+            order = THROTTLED_ORDER;
+        } else if (command != null
+                && (command.getVerb() == Command.Verb.BUY || command.getVerb() == Command.Verb.SELL)) {
+            if (unauthorized(command, session) != null) {
+                order = UNAUTHORIZED_ORDER;
+            } else if (!RateLimiter.allowUser(command.getUserID(), session)) {
+                order = THROTTLED_ORDER;
+            } else {
+                order = new TradeRequest(command.getVerb() == Command.Verb.BUY, command.getStockSymbol(),
+                        command.getAmount(), command.getPrice(), command.getUserID());
+            }
+        }
+
+        if (!session.addBatchOrder(order)) {
+            return null;
+        }
+        return executeBatch(session.takeBatch());
+    }
+
+    /**
+     * Executes the valid orders of a batch with executeTrades and builds the per-order response.
+     * Invalid order lines are answered with 403, orders naming another user than the session's
+     * LOGIN with 401 and orders over a rate limit with 429; none of them is executed.
+     */
+    private static String executeBatch(List<TradeRequest> orders) {
+        List<TradeRequest> valid = new ArrayList<>(orders.size());
+        for (TradeRequest order : orders) {
+            if (order != null && order != UNAUTHORIZED_ORDER && order != THROTTLED_ORDER) valid.add(order);
+        }
+
+        TradeResult[] results = valid.isEmpty() || matchingEngine != null
+                ? new TradeResult[0]
+                : executeTrades(valid);
+
+        StringBuilder sb = new StringBuilder("200 OK");
+        int next = 0;
+        for (int i = 0; i < orders.size(); i++) {
+            sb.append('\n').append(i + 1).append(' ');
+
+            TradeRequest order = orders.get(i);
+            if (order == null) {
+                sb.append("403 message format error");
+                continue;
+            }
+            if (order == UNAUTHORIZED_ORDER) {
+                sb.append(NOT_LOGGED_IN_AS_USER);
+                continue;
+            }
+            if (order == THROTTLED_ORDER) {
+                sb.append(THROTTLED);
+                continue;
+            }
+            if (matchingEngine != null) {
+                // Orders go to the book one by one; they are not executed as one transaction.
+                sb.append(orderResponse(submitOrder(order)).replace("200 OK\n", "200 "));
+                continue;
+            }
+
+            TradeResult result = results[next++];
+            if (!result.isOk()) {
+                sb.append(tradeError(result, order.getStockSymbol()));
+            } else if (order.isBuy()) {
+                appendBought(sb.append("200 "), order.getAmount(), order.getStockSymbol(), result);
+            } else {
+                appendSold(sb.append("200 "), order.getStockSymbol(), result);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static StringBuilder appendBought(StringBuilder sb, long amount, String symbol, TradeResult result) {
+        Money.appendQuantity(sb.append("BOUGHT: New balance: "), amount)
+                .append(' ').append(symbol)
+                .append(". USD balance $");
+        return Money.appendUsd(sb, result.getUsdBalance());
+    }
+
+    private static StringBuilder appendSold(StringBuilder sb, String symbol, TradeResult result) {
+        Money.appendQuantity(sb.append("SOLD: New balance: "), result.getStockBalance())
+                .append(' ').append(symbol)
+                .append(". USD balance $");
+        return Money.appendUsd(sb, result.getUsdBalance());
+    }
+
+    /**
+     * Builds the response to an order handled by the matching engine, for example
+     * "ORDER 17592202821632: BUY 10.0 AMD at $12.50. Filled 6.0 at avg $12.10, 4.0 open. USD balance $123.45".
+     * The order ID is "-" when nothing is left open.
+     */
+    private static String orderResponse(MatchingEngine.OrderResult result) {
+        if (!result.isOk()) {
+            return tradeError(TradeResult.failed(result.getStatus()), result.getOrder().getStockSymbol());
+        }
+
+        StringBuilder sb = appendOrder(new StringBuilder(128).append("200 OK\n"), result);
+        String response = sb.toString();
+        if (ServerConfig.AUDIT_TRADES) {
+            auditOrder(sb.delete(0, "200 OK\n".length()), result);
+        }
+        return response;
+    }
+
+    private static StringBuilder appendOrder(StringBuilder sb, MatchingEngine.OrderResult result) {
+        TradeRequest order = result.getOrder();
+        sb.append("ORDER ");
+        if (result.getOrderId() == 0) sb.append('-');
+        else sb.append(result.getOrderId());
+        sb.append(": ").append(order.isBuy() ? "BUY " : "SELL ");
+        Money.appendQuantity(sb, order.getAmount()).append(' ').append(order.getStockSymbol()).append(" at $");
+        Money.appendUsd(sb, order.getPrice()).append(". Filled ");
+        Money.appendQuantity(sb, result.getFilled());
+        if (result.getFilled() > 0) {
+            Money.appendUsd(sb.append(" at avg $"), result.getAveragePrice());
+        }
+        Money.appendQuantity(sb.append(", "), result.getOpen()).append(" open. USD balance $");
+        return Money.appendUsd(sb, result.getUsdBalance());
+    }
+
+    private static void auditOrder(StringBuilder order, MatchingEngine.OrderResult result) {
+        AsyncLog.info(order.append(" user=").append(result.getOrder().getUserID()).toString());
+    }
+
+    /**
+     * Cancels the command's resting order and writes it to the audit log.
+     *
+     * @return the cancelled order, or null if the user has no open order with that ID
+     */
+    private static OrderBook.Order cancelOrder(Command command) {
+        OrderBook.Order cancelled = matchingEngine.cancel(command.getOrderId(), command.getUserID());
+        if (cancelled != null && ServerConfig.AUDIT_TRADES) {
+            AsyncLog.info("CANCEL order=" + cancelled.getId() + " user=" + cancelled.getUserId()
+                    + " open=" + Money.formatQuantity(cancelled.getOpen()));
+        }
+        return cancelled;
+    }
+
+    /**
+     * Executes a trade through the group commit pipeline when it is enabled,
+     * otherwise in its own transaction. Returns once the trade is committed.
+     */
+    private static TradeResult executeTrade(TradeRequest trade) {
+        try {
+            if (tradeShards == null) {
+                return startTrade(trade).get();
+            }
+            // The shard only queues the trade in order; waiting for the commit happens here,
+            // so the shard thread is free for the next trade and group commit still fills up.
+            return tradeShards.execute(trade.getUserID(), () -> startTrade(trade)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return TradeResult.failed(TradeResult.Status.ERROR);
+        } catch (ExecutionException e) {
+            return TradeResult.failed(TradeResult.Status.ERROR);
+        }
+    }
+
+    /**
+     * Executes the orders of a BATCH in order. With trade shards or group commit every order
+     * takes the same path as a single BUY or SELL, so it is ordered with the user's other trades
+     * and reaches AccountCache in commit order; the orders are all started before the first is
+     * waited for, so group commit can often put them in one transaction. That is not
+     * guaranteed: a batch may be split across several group commits (or shards), so it is not
+     * atomic and a failed commit can leave some of its orders executed and others not.
+     * Otherwise they are executed in one StockDB transaction right here.
+     */
+    private static TradeResult[] executeTrades(List<TradeRequest> trades) {
+        TradeResult[] results = new TradeResult[trades.size()];
+        if (tradeShards == null && tradeBatcher == null) {
+            TradeResult[] committed = StockDB.executeTrades(trades);
+            for (int i = 0; i < results.length; i++) {
+                results[i] = tradeCommitted(trades.get(i), committed[i]);
+            }
+            return results;
+        }
+
+        List<CompletableFuture<TradeResult>> started = new ArrayList<>(trades.size());
+        for (TradeRequest trade : trades) {
+            try {
+                started.add(tradeShards == null
+                        ? startTrade(trade)
+                        : tradeShards.execute(trade.getUserID(), () -> startTrade(trade)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                started.add(CompletableFuture.completedFuture(TradeResult.failed(TradeResult.Status.ERROR)));
+            } catch (ExecutionException e) {
+                started.add(CompletableFuture.completedFuture(TradeResult.failed(TradeResult.Status.ERROR)));
+            }
+        }
+        for (int i = 0; i < results.length; i++) {
+            try {
+                results[i] = started.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results[i] = TradeResult.failed(TradeResult.Status.ERROR);
+            } catch (ExecutionException e) {
+                results[i] = TradeResult.failed(TradeResult.Status.ERROR);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Starts a trade and returns its result. With group commit the trade is only queued, and the
+     * cache is updated by the committer thread in commit order; otherwise it runs right here.
+     */
+    private static CompletableFuture<TradeResult> startTrade(TradeRequest trade) {
+        if (tradeBatcher != null) {
+            return tradeBatcher.submit(trade).thenApply(result -> tradeCommitted(trade, result));
+        }
+        TradeResult result = trade.isBuy()
+                ? StockDB.buyStock(trade.getUserID(), trade.getStockSymbol(), trade.getAmount(), trade.getPrice())
+                : StockDB.sellStock(trade.getUserID(), trade.getStockSymbol(), trade.getAmount(), trade.getPrice());
+        return CompletableFuture.completedFuture(tradeCommitted(trade, result));
+    }
+
+    private static TradeResult tradeCommitted(TradeRequest trade, TradeResult result) {
+        // Keep the cached account in step with what was just committed.
+        AccountCache.applyTrade(trade, result);
+        EventBus.tradeCommitted(trade, result);
+        if (result.isOk()) PriceCache.trade(trade.getStockSymbol(), trade.getPrice());
+        if (ServerConfig.AUDIT_TRADES) AsyncLog.trade(trade, result);
+        return result;
+    }
+
+    /**
+     * Submits an order to the matching engine on the user's shard, so one user's orders reach
+     * the book in the order they were sent.
+     */
+    private static MatchingEngine.OrderResult submitOrder(TradeRequest order) {
+        if (tradeShards == null) {
+            return matchingEngine.submit(order);
+        }
+        try {
+            return tradeShards.execute(order.getUserID(), () -> matchingEngine.submit(order));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Reported as a failed order below.
+        }
+        return new MatchingEngine.OrderResult(TradeResult.Status.ERROR, order, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Formats the STATS response: the Metrics report followed by the state of every
+     * trade component that is enabled.
+     */
+    private static String statsReport() {
+        StringBuilder sb = new StringBuilder(Metrics.report());
+        if (tradeBatcher != null) {
+            sb.append("Group commit ").append(tradeBatcher.stats()).append('\n');
+        }
+        if (matchingEngine != null) {
+            sb.append("Matching ").append(matchingEngine.stats()).append('\n');
+        }
+        sb.append("Account cache ").append(AccountCache.stats()).append('\n');
+        sb.append("Prices ").append(PriceCache.stats()).append('\n');
+        sb.append("Events ").append(EventBus.stats()).append('\n');
+        sb.append("Logins ").append(CredentialCache.stats()).append('\n');
+        sb.append("Rate limits ").append(RateLimiter.stats()).append('\n');
+        sb.append("Database ").append(StockDB.stats()).append('\n');
+        if (tradeShards != null) {
+            sb.append("Trade shards\n").append(tradeShards.stats());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Maps a rejected BUY or SELL to its protocol error response.
+     */
+    private static String tradeError(TradeResult result, String symbol) {
+        switch (result.getStatus()) {
+            case USER_NOT_FOUND:
+                return "400 invalid command. User not found.";
+            case NOT_ENOUGH_USD:
+                return "400 invalid command. Not enough USD.";
+            case NOT_ENOUGH_STOCK:
+                return "400 invalid command. Not enough " + symbol + " stock balance.";
+            default:
+                return "400 Invalid command or format";
+        }
+    }
+
 }
@@ -0,0 +1,144 @@
+/**
+ * ServerConfig - startup settings for the server.
+ * Every value is read once from a system property (e.g. -Dserver.mode=virtual) and
+ * falls back to the default shown here when the property is not set.
+ */
+public class ServerConfig {
+
+    // "virtual" runs one virtual thread per client (or per command in NIO mode), falling back to
+    // one platform thread each before Java 21; "pool" uses a bounded platform thread pool, which
+    // in blocking mode also bounds the clients served at once to POOL_THREADS.
+    public static final String MODE = System.getProperty("server.mode", "virtual");
+
+    // "blocking" serves each client on its own thread, "nio" uses one selector thread for all sockets.
+    public static final String IO = System.getProperty("server.io", "blocking");
+
+    // Size of the direct buffer the NIO selector thread reads into.
+    public static final int NIO_BUFFER_SIZE = Integer.getInteger("server.nioBufferSize", 64 * 1024);
+
+    // Requests one NIO connection may have waiting for a worker; beyond that the selector stops reading from it.
+    public static final int NIO_MAX_QUEUED_REQUESTS = Math.max(2, Integer.getInteger("server.nioMaxQueuedRequests", 1024));
+
+    // Number of worker threads when MODE is "pool".
+    public static final int POOL_THREADS = Integer.getInteger("server.threads", 64);
+
+    // Maximum number of clients served at the same time. Extra connections are turned away.
+    // Blocking pool mode lowers it to POOL_THREADS, since each client holds a thread.
+    public static final int MAX_CONNECTIONS = Integer.getInteger("server.maxConnections", 10000);
+
+    // How long SHUTDOWN waits for in-flight commands to finish before forcing the exit.
+    public static final int DRAIN_SECONDS = Integer.getInteger("server.drainSeconds", 10);
+
+    // SQLite database of the sqlite storage engine.
+    public static final String DB_URL = System.getProperty("db.url", "jdbc:sqlite:stock_exchange.db");
+
+    // Storage behind StockDB: "sqlite", "memory" or the class name of a StorageEngine.
+    public static final String STORAGE_ENGINE = System.getProperty("storage.engine", "sqlite");
+
+    // Directory of the memory engine's snapshots and journals. An empty one is seeded from DB_URL.
+    public static final String STORAGE_DIR = System.getProperty("storage.dir", "data");
+
+    // Memory engine journal: MiB mapped at a time, and whether each transaction is forced to disk before it is acknowledged.
+    public static final int JOURNAL_REGION_MB = Integer.getInteger("storage.journalRegionMb", 64);
+    public static final boolean JOURNAL_FORCE = Boolean.parseBoolean(System.getProperty("storage.journalForce", "false"));
+
+    // Seconds between memory engine snapshots, each starting a new journal. 0 snapshots only at startup and shutdown.
+    public static final int SNAPSHOT_SECONDS = Integer.getInteger("storage.snapshotSeconds", 300);
+
+    // Maximum number of pooled database connections kept open by StockDB.
+    public static final int DB_POOL_SIZE = Integer.getInteger("db.poolSize", 8);
+
+    // SQLite journal mode set when the server starts. WAL lets reads proceed while a trade commits.
+    public static final String DB_JOURNAL_MODE = System.getProperty("db.journalMode", "WAL");
+
+    // PRAGMA synchronous of every connection. In WAL mode NORMAL syncs at checkpoints instead of every commit.
+    public static final String DB_SYNCHRONOUS = System.getProperty("db.synchronous", "NORMAL");
+
+    // SQLite page cache per connection, in KiB.
+    public static final int DB_CACHE_KB = Integer.getInteger("db.cacheKb", 16 * 1024);
+
+    // Prepared statements cached per pooled connection.
+    public static final int DB_STATEMENT_CACHE_SIZE = Integer.getInteger("db.statementCacheSize", 32);
+
+    // Group commit: trades arriving together are committed in one transaction.
+    public static final boolean GROUP_COMMIT = Boolean.parseBoolean(System.getProperty("trade.groupCommit", "true"));
+
+    // Most trades in one group commit.
+    public static final int GROUP_COMMIT_BATCH_SIZE = Integer.getInteger("trade.batchSize", 256);
+
+    // Extra time (microseconds) to wait for more trades before committing. 0 never waits.
+    public static final int GROUP_COMMIT_WINDOW_MICROS = Integer.getInteger("trade.batchWindowMicros", 0);
+
+    // Trades run on this many single-threaded shards keyed by user ID, so one user's trades are
+    // applied in order while other users proceed in parallel. 0 runs trades on the client thread.
+    public static final int TRADE_SHARDS = Integer.getInteger("trade.shards",
+            Runtime.getRuntime().availableProcessors());
+
+    // Match BUY and SELL between users as limit orders (MatchingEngine) instead of filling them at the stated price.
+    public static final boolean MATCHING = Boolean.parseBoolean(System.getProperty("trade.matching", "false"));
+
+    // Most orders accepted in one BATCH command.
+    public static final int MAX_BATCH_ORDERS = Integer.getInteger("trade.maxBatchOrders", 10000);
+
+    // Positions formatted and written per chunk of a LIST response, so a large portfolio is never held as one string.
+    public static final int LIST_CHUNK_ROWS = Math.max(1, Integer.getInteger("list.chunkRows", 1000));
+
+    // Print the metrics report to the console every this many seconds. 0 turns the dump off.
+    public static final int METRICS_DUMP_SECONDS = Integer.getInteger("metrics.dumpSeconds", 60);
+
+    // Write every received command line to the audit log. Off by default: it costs more than most commands.
+    public static final boolean LOG_REQUESTS = Boolean.parseBoolean(System.getProperty("server.logRequests", "false"));
+
+    // Write every executed BUY and SELL, with its outcome, to the audit log.
+    public static final boolean AUDIT_TRADES = Boolean.parseBoolean(System.getProperty("audit.trades", "true"));
+
+    // Audit log file; rotated to <file>.1 ... <file>.<maxFiles> once it reaches maxFileBytes.
+    public static final String AUDIT_FILE = System.getProperty("audit.file", "audit.log");
+    public static final long AUDIT_MAX_FILE_BYTES = Long.getLong("audit.maxFileBytes", 16L * 1024 * 1024);
+    public static final int AUDIT_MAX_FILES = Integer.getInteger("audit.maxFiles", 5);
+
+    // Audit records buffered for the writer thread (rounded down to a power of two). Records beyond it are dropped.
+    public static final int AUDIT_BUFFER_SIZE = Integer.getInteger("audit.bufferSize", 64 * 1024);
+
+    // Most user accounts kept in the in-memory AccountCache before the least recently used is dropped.
+    public static final int CACHE_MAX_USERS = Integer.getInteger("cache.maxUsers", 100000);
+
+    // Market price source for PriceCache: "none", "replay" or the class name of a PriceFeed.
+    public static final String PRICE_FEED = System.getProperty("price.feed", "none");
+
+    // File replayed by the "replay" feed, one "<delay_ms> <symbol> <price>" per line; replayed again at its end if loop is set.
+    public static final String PRICE_FILE = System.getProperty("price.file", "prices.txt");
+    public static final boolean PRICE_REPLAY_LOOP = Boolean.parseBoolean(System.getProperty("price.replayLoop", "false"));
+
+    // Executed trades also set the price of their symbol (last trade price).
+    public static final boolean PRICE_FROM_TRADES = Boolean.parseBoolean(System.getProperty("price.fromTrades", "true"));
+
+    // Events queued per SUBSCRIBE connection before further events are dropped, and users one connection may watch.
+    public static final int EVENT_QUEUE_SIZE = Integer.getInteger("event.queueSize", 1024);
+    public static final int EVENT_MAX_SUBSCRIPTIONS = Integer.getInteger("event.maxSubscriptions", 64);
+
+    // Symbols PriceCache can hold. Updates for further symbols are dropped.
+    public static final int PRICE_MAX_SYMBOLS = Integer.getInteger("price.maxSymbols", 4096);
+
+    // Refuse every command but LOGIN, QUIT, FRAMED and BINARY until the connection has sent LOGIN.
+    public static final boolean AUTH_REQUIRED = Boolean.parseBoolean(System.getProperty("auth.required", "false"));
+
+    // PBKDF2 iterations of new password hashes. Passwords stored with fewer are rehashed at their next LOGIN.
+    public static final int AUTH_HASH_ITERATIONS = Integer.getInteger("auth.hashIterations", 100000);
+
+    // Verified logins CredentialCache remembers, and for how many seconds it trusts one without the database.
+    public static final int AUTH_CACHE_SIZE = Integer.getInteger("auth.cacheSize", 10000);
+    public static final int AUTH_CACHE_SECONDS = Integer.getInteger("auth.cacheSeconds", 300);
+
+    // Lines or frames one connection may send per second, and how many in a row after a pause. 0 is unlimited.
+    public static final int RATE_CONNECTION_PER_SECOND = Integer.getInteger("rate.connectionPerSecond", 0);
+    public static final int RATE_CONNECTION_BURST = Integer.getInteger("rate.connectionBurst",
+            Math.max(1, RATE_CONNECTION_PER_SECOND));
+
+    // Commands naming one User_ID per second over all connections, and the burst allowed. 0 is unlimited.
+    public static final int RATE_USER_PER_SECOND = Integer.getInteger("rate.userPerSecond", 0);
+    public static final int RATE_USER_BURST = Integer.getInteger("rate.userBurst", Math.max(1, RATE_USER_PER_SECOND));
+
+    // User rate buckets kept before the idle ones are dropped.
+    public static final int RATE_MAX_USERS = Integer.getInteger("rate.maxUsers", 100000);
+}
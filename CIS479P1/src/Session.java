@@ -0,0 +1,223 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Session - protocol state of one client connection, shared by ClientHandler and NioServer.
+ *
+ * By default every response is written followed by a newline, exactly as before. After the client
+ * sends FRAMED, each response is additionally terminated by a line holding a single ".", so a
+ * client can tell where a multi-line response ends and can keep many commands in flight
+ * (pipelining): responses always come back in the order the commands were sent.
+ *
+ * A BATCH command makes the session collect the following order lines instead of executing them
+ * one by one; once all announced orders have arrived they are executed together.
+ *
+ * A LIST of more than ServerConfig.LIST_CHUNK_ROWS positions is sent in chunks; the session keeps
+ * track of the positions still to come (see hasMoreOutput).
+ *
+ * After BINARY has been answered, the connection speaks BinaryProtocol frames instead of lines.
+ *
+ * After LOGIN the session is bound to that user: its commands may only name that User_ID.
+ *
+ * A session over its rate limit (see RateLimiter) is throttled: the connection handler reads
+ * nothing more from the client until the time given by takeThrottle.
+ *
+ * After SUBSCRIBE the connection also has a Subscriber, whose events the connection handler
+ * pushes between responses when the session's event signal fires.
+ */
+public class Session {
+
+    public static final String FRAME_END = ".";
+
+    private boolean framed = false;
+    private boolean binary = false;
+
+    // User the connection has logged in as, or -1 before LOGIN.
+    private int userId = -1;
+
+    // Commands this connection may still send (null if unlimited), and when a refused one may be retried.
+    private final TokenBucket rateBucket = RateLimiter.connectionBucket();
+    private long throttledUntil = 0;
+
+    // Orders of the BATCH being collected; a null entry is a line that was not a valid order.
+    private List<TradeRequest> batchOrders = null;
+    private int batchSize = 0;
+
+    // Set by the connection handler before any command runs; read by the threads that publish events.
+    private Runnable eventSignal = () -> { };
+    private volatile Subscriber subscriber = null;
+
+    // Positions of a chunked LIST response still to be sent: indexes listNext up to listEnd.
+    private int listUserId = 0;
+    private int listNext = 0;
+    private int listEnd = 0;
+
+
+    public boolean isFramed() {
+        return framed;
+    }
+
+    public void setFramed(boolean framed) {
+        this.framed = framed;
+    }
+
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+
+    /**
+     * Binds the session to the user a LOGIN was verified for, replacing any earlier one.
+     */
+    public void login(int userId) {
+        this.userId = userId;
+    }
+
+    public boolean isLoggedIn() {
+        return userId >= 0;
+    }
+
+    /**
+     * @return the user the session has logged in as, or -1 before LOGIN
+     */
+    public int getUserId() {
+        return userId;
+    }
+
+
+    /**
+     * @return the connection's token bucket, or null if connections are not rate limited
+     */
+    public TokenBucket getRateBucket() {
+        return rateBucket;
+    }
+
+    /**
+     * Records that a request was refused for its rate; nothing more is read before resumeAt
+     * (a System.nanoTime()).
+     */
+    public void throttle(long resumeAt) {
+        if (throttledUntil == 0 || resumeAt - throttledUntil > 0) {
+            throttledUntil = resumeAt == 0 ? 1 : resumeAt;
+        }
+    }
+
+    /**
+     * Returns the System.nanoTime() before which the handler must not read from the client,
+     * or 0 if the session is not throttled, and clears it.
+     */
+    public long takeThrottle() {
+        long resumeAt = throttledUntil;
+        throttledUntil = 0;
+        return resumeAt;
+    }
+
+
+    /**
+     * Sets what a Subscriber created for this session runs when it has events to push.
+     */
+    public void setEventSignal(Runnable eventSignal) {
+        this.eventSignal = eventSignal;
+    }
+
+    /**
+     * @return the session's Subscriber, or null if it never sent SUBSCRIBE
+     */
+    public Subscriber getSubscriber() {
+        return subscriber;
+    }
+
+    /**
+     * Returns the session's Subscriber, creating it on first use.
+     */
+    public Subscriber subscriber() {
+        if (subscriber == null) {
+            subscriber = new Subscriber(ServerConfig.EVENT_QUEUE_SIZE, eventSignal);
+        }
+        return subscriber;
+    }
+
+
+    /**
+     * Starts collecting the given number of order lines for a BATCH command.
+     */
+    public void startBatch(int size) {
+        batchOrders = new ArrayList<>(size);
+        batchSize = size;
+    }
+
+    public boolean inBatch() {
+        return batchOrders != null;
+    }
+
+    /**
+     * Adds the next order of the current batch.
+     *
+     * @param order The parsed order, or null if the line was not a valid BUY or SELL
+     * @return true once every announced order has been received
+     */
+    public boolean addBatchOrder(TradeRequest order) {
+        batchOrders.add(order);
+        return batchOrders.size() == batchSize;
+    }
+
+    /**
+     * Returns the collected orders and leaves batch mode.
+     */
+    public List<TradeRequest> takeBatch() {
+        List<TradeRequest> orders = batchOrders;
+        batchOrders = null;
+        batchSize = 0;
+        return orders;
+    }
+
+
+    /**
+     * Records that the user's positions from index next up to end are still to be sent as
+     * further chunks of the current LIST response.
+     */
+    public void continueList(int userId, int next, int end) {
+        listUserId = userId;
+        listNext = next;
+        listEnd = end;
+    }
+
+    /**
+     * True while the last response is incomplete: the handler must write what it has got unframed
+     * and ask Server.nextChunk for the rest before reading the next command.
+     */
+    public boolean hasMoreOutput() {
+        return listNext < listEnd;
+    }
+
+    public int getListUserId() {
+        return listUserId;
+    }
+
+    public int getListNext() {
+        return listNext;
+    }
+
+    public int getListEnd() {
+        return listEnd;
+    }
+
+
+    /**
+     * Appends a response to the output in this session's wire format.
+     */
+    public void appendResponse(StringBuilder out, String response) {
+        out.append(response);
+        if (framed) {
+            // LIST responses already end with a newline; do not add an empty line to the frame.
+            if (!response.endsWith("\n")) out.append('\n');
+            out.append(FRAME_END);
+        }
+        out.append('\n');
+    }
+}
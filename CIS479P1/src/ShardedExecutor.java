@@ -0,0 +1,104 @@
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ShardedExecutor - runs work for one user ID strictly in order, without a global lock.
+ *
+ * Every user ID maps to one of a fixed number of shards and every shard is a single thread with
+ * its own queue, so all trades of a user are applied one after another (and reach AccountCache
+ * in commit order) while users on different shards run in parallel on all cores. The caller
+ * waits for its task, so a client still gets its answer only after the trade is done.
+ */
+public class ShardedExecutor {
+
+    private final Shard[] shards;
+
+    /**
+     * @param shardCount Number of single-threaded shards
+     * @param name Thread name prefix; shard i runs on thread "name-i"
+     */
+    public ShardedExecutor(int shardCount, String name) {
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(name + "-" + i);
+        }
+    }
+
+    /**
+     * Runs the task on the key's shard, after every task already queued for that shard,
+     * and returns its result.
+     */
+    public <T> T execute(int key, Callable<T> task) throws ExecutionException, InterruptedException {
+        Shard shard = shards[Math.floorMod(key, shards.length)];
+        Future<T> result = shard.submit(task);
+        return result.get();
+    }
+
+    /**
+     * Finishes the queued tasks and stops the shard threads.
+     */
+    public void close() {
+        for (Shard shard : shards) {
+            shard.executor.shutdown();
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.executor.awaitTermination(ServerConfig.DRAIN_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns one line per shard: tasks executed, tasks queued now and the deepest queue seen.
+     */
+    public String stats() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[i];
+            sb.append(String.format("shard %d: executed=%d queued=%d maxQueued=%d%n", i,
+                    shard.executed.sum(), shard.executor.getQueue().size(), shard.maxQueued.get()));
+        }
+        return sb.toString();
+    }
+
+
+    private static class Shard {
+        private final ThreadPoolExecutor executor;
+        private final LongAdder executed = new LongAdder();
+        private final AtomicInteger maxQueued = new AtomicInteger();
+
+        private Shard(String threadName) {
+            executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), task -> {
+                Thread thread = new Thread(task, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        private <T> Future<T> submit(Callable<T> task) {
+            Future<T> result = executor.submit(() -> {
+                try {
+                    return task.call();
+                } finally {
+                    executed.increment();
+                }
+            });
+
+            // Queue depth as this task joined it; only written when it is a new maximum.
+            int queued = executor.getQueue().size();
+            if (queued > maxQueued.get()) {
+                maxQueued.accumulateAndGet(queued, Math::max);
+            }
+            return result;
+        }
+    }
+}
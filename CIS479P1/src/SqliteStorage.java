@@ -0,0 +1,784 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * SqliteStorage - the default StorageEngine, keeping users and stocks in an SQLite database.
+ * Connections and prepared statements are reused through a ConnectionPool, so each call only
+ * binds its parameters and executes.
+ * USD balances and stock quantities are stored as INTEGER micros (see Money). The tables and
+ * indexes are created or upgraded by Schema when the engine is opened.
+ */
+
+public class SqliteStorage implements StorageEngine {
+
+    private static final String INSERT_USER = "INSERT INTO Users (email, first_name, last_name, " +
+            "user_name, password, usd_balance) values (?, ?, ?, ?, ?, ?)";
+    private static final String SELECT_USERS = "SELECT * FROM Users";
+    private static final String SELECT_USER_BY_ID = "SELECT * FROM Users WHERE ID = ?";
+    private static final String SELECT_USER_BY_NAME = "SELECT * FROM Users WHERE user_name = ? ORDER BY ID LIMIT 1";
+    private static final String UPDATE_PASSWORD = "UPDATE Users SET password = ? WHERE ID = ?";
+    private static final String UPDATE_USER_BALANCE = "UPDATE Users SET usd_balance = ? WHERE ID = ?";
+    private static final String INSERT_STOCK =
+            "INSERT INTO Stocks (stock_symbol, stock_name, stock_balance, user_id) VALUES (?, ?, ?, ?)";
+    private static final String SELECT_STOCKS = "SELECT * FROM Stocks ORDER BY user_id, ID";
+    private static final String SELECT_STOCKS_BY_USER = "SELECT * FROM Stocks WHERE user_id = ? ORDER BY ID";
+    private static final String SELECT_STOCK_BY_USER_AND_SYMBOL =
+            "SELECT * FROM Stocks WHERE user_id = ? AND stock_symbol = ?";
+    private static final String UPDATE_STOCK = "UPDATE Stocks SET stock_balance = ? WHERE ID = ?";
+
+    // Trade statements: balances are changed with conditional updates inside one transaction.
+    private static final String DEBIT_USER =
+            "UPDATE Users SET usd_balance = usd_balance - ? WHERE ID = ? AND usd_balance >= ? RETURNING usd_balance";
+    private static final String CREDIT_USER =
+            "UPDATE Users SET usd_balance = usd_balance + ? WHERE ID = ? RETURNING usd_balance";
+    private static final String USER_EXISTS = "SELECT 1 FROM Users WHERE ID = ?";
+    // Positions are unique per (user_id, stock_symbol), see Schema, so both go through that index.
+    private static final String ADD_TO_POSITION =
+            "INSERT INTO Stocks (stock_symbol, stock_name, stock_balance, user_id) VALUES (?, ?, ?, ?) " +
+            "ON CONFLICT (user_id, stock_symbol) DO UPDATE SET stock_balance = stock_balance + excluded.stock_balance " +
+            "RETURNING ID, stock_balance";
+    private static final String REMOVE_FROM_POSITION =
+            "UPDATE Stocks SET stock_balance = stock_balance - ? " +
+            "WHERE user_id = ? AND stock_symbol = ? AND stock_balance >= ? RETURNING ID, stock_balance";
+    private static final String SELECT_USER_BALANCE = "SELECT usd_balance FROM Users WHERE ID = ?";
+
+    // Open orders of the matching engine; a row leaves when nothing of its order is open any more.
+    private static final String INSERT_OPEN_ORDER =
+            "INSERT INTO OpenOrders (ID, user_id, stock_symbol, buy, price, open_amount) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String REDUCE_OPEN_ORDER =
+            "UPDATE OpenOrders SET open_amount = open_amount - ? WHERE ID = ? RETURNING open_amount";
+    private static final String DELETE_OPEN_ORDER = "DELETE FROM OpenOrders WHERE ID = ?";
+    private static final String SELECT_OPEN_ORDERS = "SELECT * FROM OpenOrders ORDER BY ID";
+
+    private final ConnectionPool pool;
+
+    public SqliteStorage(String url) {
+        pool = new ConnectionPool(
+                url,
+                ServerConfig.DB_POOL_SIZE,
+                ServerConfig.DB_STATEMENT_CACHE_SIZE,
+                Schema.connectionSetup());
+        try (ConnectionPool.PooledConnection connection = getConnection()) {
+            Schema.migrate(connection.getConnection());
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not open the database: " + e.getMessage(), e);
+        }
+    }
+
+    //Borrows a pooled connection to the SQLite database. Closing it returns it to the pool.
+    private ConnectionPool.PooledConnection getConnection() throws SQLException {
+        return pool.borrow();
+    }
+
+    /**
+     * Returns connection pool and statement cache counters.
+     */
+    @Override
+    public String stats() {
+        return pool.stats();
+    }
+
+    /**
+     * Closes the pooled connections. Called once when the server shuts down.
+     */
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    @Override
+    public void addUser(User user) {
+        long started = System.nanoTime();
+        try (ConnectionPool.PooledConnection connection = getConnection()) {
+
+            // Prepare SQL insert statement with parameter placeholders
+            PreparedStatement preparedStatement = connection.prepare(INSERT_USER);
+
+            // Set parameter values from the User object
+            preparedStatement.setString(1, user.getEmail());
+            preparedStatement.setString(2, user.getFirstName());
+            preparedStatement.setString(3, user.getLastName());
+            preparedStatement.setString(4, user.getUserName());
+            preparedStatement.setString(5, user.getPassword());
+            preparedStatement.setLong(6, user.getBalance());
+
+            preparedStatement.execute();
+        } catch (SQLException e) {
+            AsyncLog.error("SQLException: " + e.getMessage());
+            Metrics.dbError(Metrics.DbOp.ADD_USER);
+        } finally {
+            Metrics.recordDb(Metrics.DbOp.ADD_USER, started);
+        }
+    }
+
+    /**
+     * Retrieves all users from the Users table.
+     *
+     * @return ArrayList<User> containing all users in the database
+     */
+    @Override
+    public ArrayList<User> getUsers() {
+        ArrayList<User> users = new ArrayList<>();
+        long started = System.nanoTime();
+        try (ConnectionPool.PooledConnection connection = getConnection();
+             ResultSet userQuery = connection.prepare(SELECT_USERS).executeQuery()) {
+
+            // Iterate through result set and create User objects
+            while (userQuery.next()) {
+                users.add(readUser(userQuery));
+            }
+        } catch (SQLException e) {
+            AsyncLog.error("SQLException: " + e.getMessage());
+            Metrics.dbError(Metrics.DbOp.GET_USERS);
+        } finally {
+            Metrics.recordDb(Metrics.DbOp.GET_USERS, started);
+        }
+        return users;
+    }
+
+    /**
+     * Adds a new stock to the Stocks table in the database.
+     *
+     * @param stock The Stock object containing stock details to be inserted
+     */
+    @Override
+    public void addStock(Stock stock) {
+        long started = System.nanoTime();
+        try (ConnectionPool.PooledConnection connection = getConnection()) {
+
+            // Prepare SQL insert statement for stocks
+            PreparedStatement preparedStatement = connection.prepare(INSERT_STOCK);
+
+            // Set parameter values from the Stock object
+            preparedStatement.setString(1, stock.getStockSymbol());
+            preparedStatement.setString(2, stock.getStockName());
+            preparedStatement.setLong(3, stock.getStockBalance());
+            preparedStatement.setInt(4, stock.getUserID());
+
+            preparedStatement.execute();
+        } catch (SQLException e) {
+            AsyncLog.error("SQLException: " + e.getMessage());
+            Metrics.dbError(Metrics.DbOp.ADD_STOCK);
+        } finally {
+            Metrics.recordDb(Metrics.DbOp.ADD_STOCK, started);
+        }
+    }
+
+    /**
+     * Retrieves a user by their unique ID from the Users table.
+     *
+     * @param id The unique identifier of the user to retrieve
+     * @return User object if found, null if no user exists with the given ID
+     */
+    @Override
+    public User getUserByID(int id) {
+        User user = null;
+        long started = System.nanoTime();
+        try (ConnectionPool.PooledConnection connection = getConnection()) {
+
+            // Prepare parameterized query to find user by ID
+            PreparedStatement preparedStatement = connection.prepare(SELECT_USER_BY_ID);
+            preparedStatement.setInt(1, id);
+
+            // If a user is found, create User object from result set
+            try (ResultSet userIDQuery = preparedStatement.executeQuery()) {
+                if (userIDQuery.next()) {
+                    user = readUser(userIDQuery);
+                }
+            }
+        } catch (SQLException e) {
+            AsyncLog.error("SQLException: " + e.getMessage());
+            Metrics.dbError(Metrics.DbOp.GET_USER);
+        } finally {
+            Metrics.recordDb(Metrics.DbOp.GET_USER, started);
+        }
+        return user;
+    }
+
+    /**
+     * Retrieves a user by user name, through the Users_user_name index (see Schema).
+     *
+     * @return User object if found, null if no user has the given user name
+     */
+    @Override
+    public User getUserByName(String userName) {
+        User user = null;
+        long started = System.nanoTime();
+        try (ConnectionPool.PooledConnection connection = getConnection()) {
+            PreparedStatement preparedStatement = connection.prepare(SELECT_USER_BY_NAME);
+            preparedStatement.setString(1, userName);
+            try (ResultSet userNameQuery = preparedStatement.executeQuery()) {
+                if (userNameQuery.next()) {
+                    user = readUser(userNameQuery);
+                }
+            }
+        } catch (SQLException e) {
+            AsyncLog.error("SQLException: " + e.getMessage());
+            Metrics.dbError(Metrics.DbOp.GET_USER_BY_NAME);
+        } finally {
+            Metrics.recordDb(Metrics.DbOp.GET_USER_BY_NAME, started);
+        }
+        return user;
+    }
+
+    @Override
+    public void updatePassword(int id, String password) {
+        long started = System.nanoTime();
+        try (ConnectionPool.PooledConnection connection = getConnection()) {
+            PreparedStatement preparedStatement = connection.prepare(UPDATE_PASSWORD);
+            preparedStatement.setString(1, password);
+            preparedStatement.setInt(2, id);
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            AsyncLog.error("SQLException: " + e.getMessage());
+            Metrics.dbError(Metrics.DbOp.UPDATE_PASSWORD);
+        } finally {
+            Metrics.recordDb(Metrics.DbOp.UPDATE_PASSWORD, started);
+        }
+    }
+
+    /**
+     * Updates the USD balance of a specific user in the database.
+     *
+     * @param id The unique identifier of the user to update
+     * @param newBalance The new USD balance to set for the user, in micros
+     */
+    @Override
+    public void updateUserBalance(int id, long newBalance) {
+        long started = System.nanoTime();
+        try (ConnectionPool.PooledConnection connection = getConnection()) {
+
+            // Prepare update statement for user balance
+            PreparedStatement preparedStatement = connection.prepare(UPDATE_USER_BALANCE);
+            preparedStatement.setLong(1, newBalance);
+            preparedStatement.setInt(2, id);
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            AsyncLog.error("SQLException: " + e.getMessage());
+            Metrics.dbError(Metrics.DbOp.UPDATE_USER_BALANCE);
+        } finally {
+            Metrics.recordDb(Metrics.DbOp.UPDATE_USER_BALANCE, started);
+        }
+    }
+
+    /**
+     * Retrieves stocks for a specific user, optionally filtered by stock symbol.
+     * If stockSymbol is null, returns all stocks for the user.
+     *
+     * @param userId The unique identifier of the user
+     * @param stockSymbol The stock symbol to filter by (can be null for all stocks)
+     * @return ArrayList<Stock> containing matching stocks for the user
+     */
+    @Override
+    public ArrayList<Stock> getStockByUserAndSymbol(int userId, String stockSymbol) {
+        ArrayList<Stock> stocks = new ArrayList<>();
+        long started = System.nanoTime();
+        try (ConnectionPool.PooledConnection connection = getConnection()) {
+            PreparedStatement preparedStatement;
+
+            if (stockSymbol == null) {
+                // If symbol is null, get all stocks for this user
+                preparedStatement = connection.prepare(SELECT_STOCKS_BY_USER);
+                preparedStatement.setInt(1, userId);
+            } else {
+                // Otherwise, get only the matching stock
+                preparedStatement = connection.prepare(SELECT_STOCK_BY_USER_AND_SYMBOL);
+                preparedStatement.setInt(1, userId);
+                preparedStatement.setString(2, stockSymbol);
+            }
+
+            // Execute query and process results
+            try (ResultSet stockQuery = preparedStatement.executeQuery()) {
+                while (stockQuery.next()) {
+                    stocks.add(readStock(stockQuery));
+                }
+            }
+        } catch (SQLException e) {
+            AsyncLog.error("SQLException: " + e.getMessage());
+            Metrics.dbError(Metrics.DbOp.GET_USER_STOCKS);
+        } finally {
+            Metrics.recordDb(Metrics.DbOp.GET_USER_STOCKS, started);
+        }
+
+        return stocks;
+    }
+
+    /**
+     * Retrieves every row of the Stocks table, grouped by user.
+     *
+     * @return ArrayList<Stock> containing all stocks ordered by user_id and ID
+     */
+    @Override
+    public ArrayList<Stock> getStocks() {
+        ArrayList<Stock> stocks = new ArrayList<>();
+        long started = System.nanoTime();
+        try (ConnectionPool.PooledConnection connection = getConnection();
+             ResultSet stockQuery = connection.prepare(SELECT_STOCKS).executeQuery()) {
+            while (stockQuery.next()) {
+                stocks.add(readStock(stockQuery));
+            }
+        } catch (SQLException e) {
+            AsyncLog.error("SQLException: " + e.getMessage());
+            Metrics.dbError(Metrics.DbOp.GET_STOCKS);
+        } finally {
+            Metrics.recordDb(Metrics.DbOp.GET_STOCKS, started);
+        }
+        return stocks;
+    }
+
+
+    @Override
+    public void updateStock(Stock stock) {
+        long started = System.nanoTime();
+        try (ConnectionPool.PooledConnection connection = getConnection()) {
+            PreparedStatement preparedStatement = connection.prepare(UPDATE_STOCK);
+            preparedStatement.setLong(1, stock.getStockBalance());
+            preparedStatement.setInt(2, stock.getId());
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            AsyncLog.error("SQLException: " + e.getMessage());
+            Metrics.dbError(Metrics.DbOp.UPDATE_STOCK);
+        } finally {
+            Metrics.recordDb(Metrics.DbOp.UPDATE_STOCK, started);
+        }
+    }
+
+    //Builds a User from the current row of a Users query.
+    private static User readUser(ResultSet userQuery) throws SQLException {
+        return new User(
+                userQuery.getInt("ID"),
+                userQuery.getString("email"),
+                userQuery.getString("first_name"),
+                userQuery.getString("last_name"),
+                userQuery.getString("user_name"),
+                userQuery.getString("password"),
+                userQuery.getLong("usd_balance")
+        );
+    }
+
+    //Builds a Stock from the current row of a Stocks query.
+    private static Stock readStock(ResultSet stockQuery) throws SQLException {
+        return new Stock(
+                stockQuery.getInt("ID"),
+                stockQuery.getString("stock_symbol"),
+                stockQuery.getString("stock_name"),
+                stockQuery.getLong("stock_balance"),
+                stockQuery.getInt("user_id")
+        );
+    }
+
+    /**
+     * Buys stock for a user as one transaction: the USD balance is debited only if it covers
+     * amount * price, then the amount is added to the user's position (created if missing).
+     *
+     * @param userId The user buying
+     * @param stockSymbol The stock being bought
+     * @param amount Number of shares, in micros
+     * @param price Price per share in USD, in micros
+     * @return TradeResult with the new balances, or the reason the trade was rejected
+     */
+    @Override
+    public TradeResult buyStock(int userId, String stockSymbol, long amount, long price) {
+        return trade(true, userId, stockSymbol, amount, price);
+    }
+
+    /**
+     * Sells stock for a user as one transaction: the position is reduced only if it holds at
+     * least the amount, then amount * price is credited to the user's USD balance.
+     *
+     * @param userId The user selling
+     * @param stockSymbol The stock being sold
+     * @param amount Number of shares, in micros
+     * @param price Price per share in USD, in micros
+     * @return TradeResult with the new balances, or the reason the trade was rejected
+     */
+    @Override
+    public TradeResult sellStock(int userId, String stockSymbol, long amount, long price) {
+        return trade(false, userId, stockSymbol, amount, price);
+    }
+
+    //Runs a single BUY or SELL in its own transaction, committing only when it succeeds.
+    private TradeResult trade(boolean buy, int userId, String stockSymbol, long amount, long price) {
+        Metrics.DbOp op = buy ? Metrics.DbOp.BUY : Metrics.DbOp.SELL;
+        long started = System.nanoTime();
+        try (ConnectionPool.PooledConnection connection = getConnection()) {
+            Connection db = connection.getConnection();
+            db.setAutoCommit(false);
+
+            TradeResult result = buy
+                    ? executeBuy(connection, userId, stockSymbol, amount, price)
+                    : executeSell(connection, userId, stockSymbol, amount, price);
+
+            if (result.isOk()) {
+                db.commit();
+            } else {
+                db.rollback();
+            }
+            db.setAutoCommit(true);
+            return result;
+        } catch (SQLException e) {
+            AsyncLog.error("SQLException: " + e.getMessage());
+            Metrics.dbError(op);
+            return TradeResult.failed(TradeResult.Status.ERROR);
+        } finally {
+            Metrics.recordDb(op, started);
+        }
+    }
+
+    /**
+     * Executes several trades in order inside one transaction with a single commit.
+     * A rejected trade writes nothing and does not affect the others; if the database fails,
+     * the whole transaction is rolled back and every trade is reported as ERROR.
+     *
+     * @param trades The trades to apply, in execution order
+     * @return One TradeResult per trade, in the same order
+     */
+    @Override
+    public TradeResult[] executeTrades(List<TradeRequest> trades) {
+        TradeResult[] results = new TradeResult[trades.size()];
+        long started = System.nanoTime();
+        try (ConnectionPool.PooledConnection connection = getConnection()) {
+            Connection db = connection.getConnection();
+            db.setAutoCommit(false);
+
+            for (int i = 0; i < results.length; i++) {
+                TradeRequest trade = trades.get(i);
+                results[i] = trade.isBuy()
+                        ? executeBuy(connection, trade.getUserID(), trade.getStockSymbol(),
+                                trade.getAmount(), trade.getPrice())
+                        : executeSell(connection, trade.getUserID(), trade.getStockSymbol(),
+                                trade.getAmount(), trade.getPrice());
+            }
+
+            db.commit();
+            db.setAutoCommit(true);
+        } catch (SQLException e) {
+            AsyncLog.error("SQLException: " + e.getMessage());
+            Metrics.dbError(Metrics.DbOp.TRADE_BATCH);
+            Arrays.fill(results, TradeResult.failed(TradeResult.Status.ERROR));
+        } finally {
+            Metrics.recordDb(Metrics.DbOp.TRADE_BATCH, started);
+        }
+        return results;
+    }
+
+    /**
+     * Applies a BUY on a connection whose transaction is managed by the caller.
+     * Nothing is written when the trade is rejected.
+     */
+    static TradeResult executeBuy(ConnectionPool.PooledConnection connection, int userId,
+                                  String stockSymbol, long amount, long price) throws SQLException {
+        long totalCost = Money.multiply(amount, price);
+
+        // Debit the user only if the balance covers the whole purchase.
+        PreparedStatement debit = connection.prepare(DEBIT_USER);
+        debit.setLong(1, totalCost);
+        debit.setInt(2, userId);
+        debit.setLong(3, totalCost);
+        Long newBalance = firstLong(debit);
+        if (newBalance == null) {
+            return TradeResult.failed(userExists(connection, userId)
+                    ? TradeResult.Status.NOT_ENOUGH_USD
+                    : TradeResult.Status.USER_NOT_FOUND);
+        }
+
+        // Create the position or add to it, in one upsert.
+        Stock position = addToPosition(connection, userId, stockSymbol, amount);
+        return new TradeResult(TradeResult.Status.OK, newBalance, position);
+    }
+
+    /**
+     * Applies a SELL on a connection whose transaction is managed by the caller.
+     * Nothing is written when the trade is rejected.
+     */
+    static TradeResult executeSell(ConnectionPool.PooledConnection connection, int userId,
+                                   String stockSymbol, long amount, long price) throws SQLException {
+
+        // Reduce the position only if the user owns enough of the stock.
+        PreparedStatement remove = connection.prepare(REMOVE_FROM_POSITION);
+        remove.setLong(1, amount);
+        remove.setInt(2, userId);
+        remove.setString(3, stockSymbol);
+        remove.setLong(4, amount);
+        Stock position = readPosition(remove, userId, stockSymbol);
+        if (position == null) {
+            return TradeResult.failed(userExists(connection, userId)
+                    ? TradeResult.Status.NOT_ENOUGH_STOCK
+                    : TradeResult.Status.USER_NOT_FOUND);
+        }
+
+        // Credit the sale proceeds.
+        PreparedStatement credit = connection.prepare(CREDIT_USER);
+        credit.setLong(1, Money.multiply(amount, price));
+        credit.setInt(2, userId);
+        Long newBalance = firstLong(credit);
+
+        return new TradeResult(TradeResult.Status.OK, newBalance, position);
+    }
+
+    /**
+     * Takes what an order may spend out of the user's account before it reaches the order book:
+     * amount * price USD for a BUY, the amount of stock for a SELL. Nothing is taken when the
+     * account cannot cover it. The order is stored in OpenOrders in the same transaction, so the
+     * hold can be given back after a crash.
+     *
+     * @return OK with the balances after the hold, or the reason the order was rejected
+     */
+    @Override
+    public TradeResult escrowOrder(long orderId, boolean buy, int userId, String stockSymbol,
+                                   long amount, long price) {
+        long started = System.nanoTime();
+        try (ConnectionPool.PooledConnection connection = getConnection()) {
+            Connection db = connection.getConnection();
+            db.setAutoCommit(false);
+
+            TradeResult result = buy
+                    ? holdUsd(connection, userId, Money.multiply(amount, price))
+                    : holdStock(connection, userId, stockSymbol, amount);
+            if (result.isOk()) {
+                PreparedStatement insert = connection.prepare(INSERT_OPEN_ORDER);
+                insert.setLong(1, orderId);
+                insert.setInt(2, userId);
+                insert.setString(3, stockSymbol);
+                insert.setBoolean(4, buy);
+                insert.setLong(5, price);
+                insert.setLong(6, amount);
+                insert.executeUpdate();
+                db.commit();
+            } else {
+                db.rollback();
+            }
+            db.setAutoCommit(true);
+            return result;
+        } catch (SQLException e) {
+            AsyncLog.error("SQLException: " + e.getMessage());
+            Metrics.dbError(Metrics.DbOp.ORDER_ESCROW);
+            return TradeResult.failed(TradeResult.Status.ERROR);
+        } finally {
+            Metrics.recordDb(Metrics.DbOp.ORDER_ESCROW, started);
+        }
+    }
+
+    //Debits USD held for a BUY order if the balance covers it.
+    private static TradeResult holdUsd(ConnectionPool.PooledConnection connection, int userId, long usd)
+            throws SQLException {
+        PreparedStatement debit = connection.prepare(DEBIT_USER);
+        debit.setLong(1, usd);
+        debit.setInt(2, userId);
+        debit.setLong(3, usd);
+        Long newBalance = firstLong(debit);
+        if (newBalance == null) {
+            return TradeResult.failed(userExists(connection, userId)
+                    ? TradeResult.Status.NOT_ENOUGH_USD
+                    : TradeResult.Status.USER_NOT_FOUND);
+        }
+        return new TradeResult(TradeResult.Status.OK, newBalance, null);
+    }
+
+    //Removes stock held for a SELL order if the position holds it.
+    private static TradeResult holdStock(ConnectionPool.PooledConnection connection, int userId,
+                                         String stockSymbol, long amount) throws SQLException {
+        PreparedStatement remove = connection.prepare(REMOVE_FROM_POSITION);
+        remove.setLong(1, amount);
+        remove.setInt(2, userId);
+        remove.setString(3, stockSymbol);
+        remove.setLong(4, amount);
+        Stock position = readPosition(remove, userId, stockSymbol);
+        if (position == null) {
+            return TradeResult.failed(userExists(connection, userId)
+                    ? TradeResult.Status.NOT_ENOUGH_STOCK
+                    : TradeResult.Status.USER_NOT_FOUND);
+        }
+        return new TradeResult(TradeResult.Status.OK, usdBalance(connection, userId), position);
+    }
+
+    /**
+     * Settles the fills of one incoming order in one transaction. The escrow already holds the
+     * buyer's USD and the seller's stock, so each fill credits the stock to the buyer and
+     * amount * fill price to the seller, and takes the amount off the open orders of both sides.
+     * A buying order gets back what its escrow held for the filled amount beyond what it cost,
+     * computed on the escrowed totals so no rounding is lost over the fills of an order.
+     *
+     * @param takerOrderId ID of the incoming order, as given to escrowOrder
+     * @param takerBuy Side of the incoming order; the resting orders in fills are the other side
+     * @param takerLimit The incoming order's limit price, in micros
+     * @return the taker's USD balance in micros after settlement, or null if the database failed
+     */
+    @Override
+    public Long settleFills(long takerOrderId, String stockSymbol, boolean takerBuy, int takerId,
+                            long takerLimit, OrderBook.Fills fills) {
+        long started = System.nanoTime();
+        try (ConnectionPool.PooledConnection connection = getConnection()) {
+            Connection db = connection.getConnection();
+            db.setAutoCommit(false);
+
+            long filled = 0;
+            long cost = 0;
+            for (int i = 0; i < fills.size(); i++) {
+                long amount = fills.getAmount(i);
+                long price = fills.getPrice(i);
+                int buyer = takerBuy ? takerId : fills.getUser(i);
+                int seller = takerBuy ? fills.getUser(i) : takerId;
+
+                addToPosition(connection, buyer, stockSymbol, amount);
+                long value = Money.multiply(amount, price);
+                credit(connection, seller, value);
+                long held = reduceOpenOrder(connection, fills.getOrderId(i), amount, takerBuy ? 0 : price);
+                if (!takerBuy && held != value) {
+                    credit(connection, buyer, held - value);
+                }
+                filled += amount;
+                cost += value;
+            }
+            long held = reduceOpenOrder(connection, takerOrderId, filled, takerBuy ? takerLimit : 0);
+            if (takerBuy && held != cost) {
+                credit(connection, takerId, held - cost);
+            }
+
+            Long balance = usdBalance(connection, takerId);
+            db.commit();
+            db.setAutoCommit(true);
+            return balance;
+        } catch (SQLException e) {
+            AsyncLog.error("SQLException: " + e.getMessage());
+            Metrics.dbError(Metrics.DbOp.ORDER_SETTLE);
+            return null;
+        } finally {
+            Metrics.recordDb(Metrics.DbOp.ORDER_SETTLE, started);
+        }
+    }
+
+    /**
+     * Gives the unfilled part of cancelled orders back to their owners: what the escrow held for
+     * the open amount in USD for a BUY, the open amount of stock for a SELL. The amounts are
+     * taken off OpenOrders. All orders are released in one transaction.
+     *
+     * @return true if the release was committed
+     */
+    @Override
+    public boolean releaseOrders(OrderBook.Order... orders) {
+        long started = System.nanoTime();
+        try (ConnectionPool.PooledConnection connection = getConnection()) {
+            Connection db = connection.getConnection();
+            db.setAutoCommit(false);
+
+            for (OrderBook.Order order : orders) {
+                long held = reduceOpenOrder(connection, order.getId(), order.getOpen(),
+                        order.isBuy() ? order.getPrice() : 0);
+                if (order.isBuy()) {
+                    credit(connection, order.getUserId(), held);
+                } else {
+                    addToPosition(connection, order.getUserId(), order.getSymbol(), order.getOpen());
+                }
+            }
+
+            db.commit();
+            db.setAutoCommit(true);
+            return true;
+        } catch (SQLException e) {
+            AsyncLog.error("SQLException: " + e.getMessage());
+            Metrics.dbError(Metrics.DbOp.ORDER_RELEASE);
+            return false;
+        } finally {
+            Metrics.recordDb(Metrics.DbOp.ORDER_RELEASE, started);
+        }
+    }
+
+    @Override
+    public ArrayList<OrderBook.Order> getOpenOrders() {
+        long started = System.nanoTime();
+        ArrayList<OrderBook.Order> orders = new ArrayList<>();
+        try (ConnectionPool.PooledConnection connection = getConnection();
+             ResultSet orderQuery = connection.prepare(SELECT_OPEN_ORDERS).executeQuery()) {
+            while (orderQuery.next()) {
+                orders.add(new OrderBook.Order(
+                        orderQuery.getLong("ID"),
+                        orderQuery.getString("stock_symbol"),
+                        orderQuery.getInt("user_id"),
+                        orderQuery.getBoolean("buy"),
+                        orderQuery.getLong("price"),
+                        orderQuery.getLong("open_amount")));
+            }
+        } catch (SQLException e) {
+            AsyncLog.error("SQLException: " + e.getMessage());
+            Metrics.dbError(Metrics.DbOp.GET_OPEN_ORDERS);
+        } finally {
+            Metrics.recordDb(Metrics.DbOp.GET_OPEN_ORDERS, started);
+        }
+        return orders;
+    }
+
+    /**
+     * Takes an amount off an open order, deleting its row once nothing is left, and returns the
+     * USD its escrow no longer needs at the order's price: what the open amount held before
+     * minus what the rest holds now. Over the life of a BUY these add up to exactly its escrow.
+     * An order without a row counts as holding just the amount. Pass price 0 for a SELL.
+     */
+    private static long reduceOpenOrder(ConnectionPool.PooledConnection connection, long orderId,
+                                        long amount, long price) throws SQLException {
+        PreparedStatement reduce = connection.prepare(REDUCE_OPEN_ORDER);
+        reduce.setLong(1, amount);
+        reduce.setLong(2, orderId);
+        Long open = firstLong(reduce);
+        if (open == null) return Money.multiply(amount, price);
+
+        if (open <= 0) {
+            PreparedStatement delete = connection.prepare(DELETE_OPEN_ORDER);
+            delete.setLong(1, orderId);
+            delete.executeUpdate();
+        }
+        long rest = Math.max(open, 0);
+        return Money.multiply(rest + amount, price) - Money.multiply(rest, price);
+    }
+
+    //Adds stock to the user's position in the symbol, creating the position if there is none.
+    private static Stock addToPosition(ConnectionPool.PooledConnection connection, int userId,
+                                       String stockSymbol, long amount) throws SQLException {
+        PreparedStatement add = connection.prepare(ADD_TO_POSITION);
+        add.setString(1, stockSymbol);
+        add.setString(2, stockSymbol);
+        add.setLong(3, amount);
+        add.setInt(4, userId);
+        return readPosition(add, userId, stockSymbol);
+    }
+
+    private static void credit(ConnectionPool.PooledConnection connection, int userId, long usd)
+            throws SQLException {
+        PreparedStatement credit = connection.prepare(CREDIT_USER);
+        credit.setLong(1, usd);
+        credit.setInt(2, userId);
+        firstLong(credit);
+    }
+
+    private static Long usdBalance(ConnectionPool.PooledConnection connection, int userId) throws SQLException {
+        PreparedStatement balance = connection.prepare(SELECT_USER_BALANCE);
+        balance.setInt(1, userId);
+        return firstLong(balance);
+    }
+
+    private static boolean userExists(ConnectionPool.PooledConnection connection, int userId) throws SQLException {
+        PreparedStatement preparedStatement = connection.prepare(USER_EXISTS);
+        preparedStatement.setInt(1, userId);
+        try (ResultSet result = preparedStatement.executeQuery()) {
+            return result.next();
+        }
+    }
+
+    //Executes a position UPDATE/INSERT ... RETURNING ID, stock_balance and returns the updated row, or null.
+    private static Stock readPosition(PreparedStatement preparedStatement, int userId, String stockSymbol)
+            throws SQLException {
+        try (ResultSet result = preparedStatement.executeQuery()) {
+            if (!result.next()) return null;
+            return new Stock(result.getInt(1), stockSymbol, stockSymbol, result.getLong(2), userId);
+        }
+    }
+
+    //Executes a query (or UPDATE ... RETURNING) and returns the first column of the first row, or null.
+    private static Long firstLong(PreparedStatement preparedStatement) throws SQLException {
+        try (ResultSet result = preparedStatement.executeQuery()) {
+            return result.next() ? result.getLong(1) : null;
+        }
+    }
+}
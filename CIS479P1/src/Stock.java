@@ -3,10 +3,10 @@ public class Stock {
     private int id;
     private String stockSymbol;
     private String stockName;
-    private double stockBalance;
+    private volatile long stockBalance; // Quantity in micros (see Money)
     private int userID;
 
-    public Stock(int id, String stockSymbol, String stockName, double stockBalance, int userID) {
+    public Stock(int id, String stockSymbol, String stockName, long stockBalance, int userID) {
         this.id = id;
         this.stockSymbol = stockSymbol;
         this.stockName = stockName;
@@ -30,11 +30,11 @@ public class Stock {
     }
 
 
-    public double getStockBalance() {
+    public long getStockBalance() {
         return stockBalance;
     }
 
-    public void setStockBalance(double stockBalance) {
+    public void setStockBalance(long stockBalance) {
         this.stockBalance = stockBalance;
     }
 
@@ -49,7 +49,7 @@ public class Stock {
                 "id=" + id +
                 ", stockSymbol='" + stockSymbol + '\'' +
                 ", stockName='" + stockName + '\'' +
-                ", stockBalance=" + stockBalance +
+                ", stockBalance=" + Money.formatQuantity(stockBalance) +
                 ", userID=" + userID +
                 '}';
     }
@@ -0,0 +1,120 @@
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * StorageEngine - where users and stock positions are kept, behind the static StockDB facade.
+ *
+ * Chosen with -Dstorage.engine: "sqlite" (the default, SqliteStorage on ServerConfig.DB_URL),
+ * "memory" for MemoryStorage, or the name of any class implementing this interface that has a
+ * public no-argument constructor. All amounts, prices and balances are in micros (see Money).
+ *
+ * Every method is called from many threads at once. A trade method either applies the whole
+ * trade or nothing; a failed storage write is reported as TradeResult.Status.ERROR.
+ */
+public interface StorageEngine {
+
+    void addUser(User user);
+
+    ArrayList<User> getUsers();
+
+    /**
+     * @return the user, or null if none has the given ID
+     */
+    User getUserByID(int id);
+
+    /**
+     * @return the user with the lowest ID among those with the given user name, or null if none
+     */
+    User getUserByName(String userName);
+
+    /**
+     * Replaces the stored password of a user, as formatted by PasswordHash.
+     */
+    void updatePassword(int id, String password);
+
+    void updateUserBalance(int id, long newBalance);
+
+    void addStock(Stock stock);
+
+    /**
+     * Returns the positions of a user, or only the one in stockSymbol unless it is null.
+     */
+    ArrayList<Stock> getStockByUserAndSymbol(int userId, String stockSymbol);
+
+    /**
+     * Returns every position, ordered by user ID and then position ID.
+     */
+    ArrayList<Stock> getStocks();
+
+    void updateStock(Stock stock);
+
+    /**
+     * Debits amount * price USD if the balance covers it and adds the amount to the position.
+     */
+    TradeResult buyStock(int userId, String stockSymbol, long amount, long price);
+
+    /**
+     * Reduces the position if it holds the amount and credits amount * price USD.
+     */
+    TradeResult sellStock(int userId, String stockSymbol, long amount, long price);
+
+    /**
+     * Applies several trades in order. A rejected trade changes nothing and does not affect
+     * the others.
+     *
+     * @return One TradeResult per trade, in the same order
+     */
+    TradeResult[] executeTrades(List<TradeRequest> trades);
+
+    /**
+     * Holds what a matching order may spend: amount * price USD for a BUY, the stock for a SELL.
+     * The order is stored as open together with the hold.
+     */
+    TradeResult escrowOrder(long orderId, boolean buy, int userId, String stockSymbol, long amount, long price);
+
+    /**
+     * Settles the fills of one incoming order against escrowed funds and takes the filled
+     * amounts off the open orders involved, all or nothing.
+     *
+     * @return the taker's USD balance after settlement, or null if storage failed
+     */
+    Long settleFills(long takerOrderId, String stockSymbol, boolean takerBuy, int takerId, long takerLimit,
+                     OrderBook.Fills fills);
+
+    /**
+     * Gives the given open amounts of orders back to their owners and takes them off the open
+     * orders, all or nothing.
+     *
+     * @return true if the release was stored
+     */
+    boolean releaseOrders(OrderBook.Order... orders);
+
+    /**
+     * Returns the stored open orders with their open amounts, in order ID order.
+     */
+    ArrayList<OrderBook.Order> getOpenOrders();
+
+    /**
+     * Returns a one-line summary of the engine's counters for STATS.
+     */
+    String stats();
+
+    /**
+     * Flushes and releases everything the engine holds. Called once when the server shuts down.
+     */
+    void close();
+
+    /**
+     * Creates the engine named by ServerConfig.STORAGE_ENGINE.
+     */
+    static StorageEngine create(String name) {
+        if (name.equalsIgnoreCase("sqlite")) return new SqliteStorage(ServerConfig.DB_URL);
+        if (name.equalsIgnoreCase("memory")) return new MemoryStorage(Paths.get(ServerConfig.STORAGE_DIR));
+        try {
+            return (StorageEngine) Class.forName(name).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Unknown storage engine: " + name, e);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Subscriber - the events waiting to be pushed to one connection, see EventBus.
+ *
+ * Events are queued by whichever thread committed the change and taken by the connection's
+ * writer. The queue is bounded so a client that stops reading cannot make the server hold an
+ * ever growing backlog: once it is full, new events are dropped and counted, and the next event
+ * the connection gets is "EVENT DROPPED <count>", telling the client to re-read BALANCE and LIST.
+ */
+public class Subscriber {
+
+    private final ArrayBlockingQueue<String> events;
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Tells the connection there is something to push. Run once per burst: from the first queued
+    // event until the writer reports the queue drained.
+    private final Runnable signal;
+    private final AtomicBoolean signalled = new AtomicBoolean();
+
+    // Users this connection watches, guarded by this.
+    private final Set<Integer> users = new HashSet<>();
+
+    public Subscriber(int capacity, Runnable signal) {
+        this.events = new ArrayBlockingQueue<>(capacity);
+        this.signal = signal;
+    }
+
+    /**
+     * Queues an event without blocking, or drops it if the queue is full.
+     */
+    void offer(String event) {
+        if (!events.offer(event)) {
+            dropped.incrementAndGet();
+            EventBus.countDropped();
+            return;
+        }
+        if (signalled.compareAndSet(false, true)) {
+            signal.run();
+        }
+    }
+
+    /**
+     * Takes the next event to push, or returns null if there is none.
+     */
+    public String poll() {
+        long missed = dropped.getAndSet(0);
+        if (missed > 0) {
+            return "EVENT DROPPED " + missed;
+        }
+        String event = events.poll();
+        if (event != null) EventBus.countDelivered();
+        return event;
+    }
+
+    public boolean hasEvents() {
+        return !events.isEmpty() || dropped.get() > 0;
+    }
+
+    /**
+     * Called by the writer once it has taken every event. Signals again if more arrived meanwhile.
+     */
+    public void drained() {
+        signalled.set(false);
+        if (hasEvents() && signalled.compareAndSet(false, true)) {
+            signal.run();
+        }
+    }
+
+    // Adds the user to the watched set; false if the connection already watches as many users as allowed.
+    synchronized boolean watch(int userId) {
+        if (users.contains(userId)) return true;
+        if (users.size() >= ServerConfig.EVENT_MAX_SUBSCRIPTIONS) return false;
+        return users.add(userId);
+    }
+
+    synchronized boolean unwatch(int userId) {
+        return users.remove(userId);
+    }
+
+    synchronized Integer[] watched() {
+        return users.toArray(new Integer[0]);
+    }
+}
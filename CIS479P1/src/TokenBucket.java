@@ -0,0 +1,52 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TokenBucket - lock-free token bucket refilled at a fixed rate, holding at most burst tokens.
+ *
+ * The whole state is one AtomicLong: the System.nanoTime() at which the bucket will be full
+ * again (the "theoretical arrival time" of the generic cell rate algorithm). Taking a token moves
+ * that time one refill interval later with a compare-and-set, and is refused when it would lie
+ * more than burst intervals ahead. Threads sharing a bucket never block each other.
+ */
+public final class TokenBucket {
+
+    // Nanoseconds to refill one token, and to refill the whole bucket.
+    private final long interval;
+    private final long capacity;
+
+    private final AtomicLong fullAt;
+
+    public TokenBucket(int tokensPerSecond, int burst) {
+        interval = Math.max(1, 1_000_000_000L / Math.max(1, tokensPerSecond));
+        capacity = interval * Math.max(1, burst);
+        fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes one token if there is one.
+     *
+     * @param now System.nanoTime()
+     */
+    public boolean tryAcquire(long now) {
+        while (true) {
+            long full = fullAt.get();
+            long next = (full - now < 0 ? now : full) + interval;
+            if (next - now > capacity) return false;
+            if (fullAt.compareAndSet(full, next)) return true;
+        }
+    }
+
+    /**
+     * @return the System.nanoTime() from which tryAcquire succeeds again
+     */
+    public long nextTokenAt() {
+        return fullAt.get() - capacity + interval;
+    }
+
+    /**
+     * True once the bucket has refilled completely; dropping it then loses nothing.
+     */
+    public boolean isFull(long now) {
+        return fullAt.get() - now <= 0;
+    }
+}
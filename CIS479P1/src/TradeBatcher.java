@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TradeBatcher - group commit in front of StockDB.
+ * Client threads queue their trades here and wait; a single committer thread collects the
+ * trades that arrive together (up to a batch size or time window) and applies them with
+ * StockDB.executeTrades in one transaction. Each client is answered only after the commit
+ * that contains its trade, so many trades share one disk sync instead of paying one each.
+ */
+public class TradeBatcher {
+
+    private final int maxBatchSize;
+    private final long windowNanos;
+    private final BlockingQueue<PendingTrade> queue = new LinkedBlockingQueue<>();
+    private final Thread committer;
+    private volatile boolean running = true;
+    // Held while checking running and queueing, and while close clears running, so no trade is
+    // queued after the committer could have seen the queue empty for the last time.
+    private final Object submitLock = new Object();
+
+    // Statistics for the STATS output and the shutdown summary.
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder trades = new LongAdder();
+    private final AtomicLong largestBatch = new AtomicLong();
+    private final LongAdder commitNanos = new LongAdder();
+    private final AtomicLong slowestCommitNanos = new AtomicLong();
+
+    /**
+     * @param maxBatchSize Most trades committed in one transaction
+     * @param windowMicros How long to keep collecting after the first trade of a batch arrives.
+     *                     0 commits whatever is already queued without waiting.
+     */
+    public TradeBatcher(int maxBatchSize, long windowMicros) {
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.committer = new Thread(this::run, "trade-batcher");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    /**
+     * Queues a trade without waiting. The future completes on the committer thread once the batch
+     * containing the trade is committed; trades are committed in the order they were queued.
+     */
+    public CompletableFuture<TradeResult> submit(TradeRequest trade) {
+        PendingTrade pending = new PendingTrade(trade);
+        synchronized (submitLock) {
+            if (!running) {
+                return CompletableFuture.completedFuture(TradeResult.failed(TradeResult.Status.ERROR));
+            }
+            queue.add(pending);
+        }
+        return pending.result;
+    }
+
+    //Committer loop: wait for the first trade, gather the rest of the batch, commit, answer.
+    private void run() {
+        List<PendingTrade> batch = new ArrayList<>(maxBatchSize);
+        List<TradeRequest> requests = new ArrayList<>(maxBatchSize);
+
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingTrade first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+
+                batch.add(first);
+                collect(batch);
+
+                for (PendingTrade pending : batch) {
+                    requests.add(pending.trade);
+                }
+
+                long start = System.nanoTime();
+                TradeResult[] results = StockDB.executeTrades(requests);
+                recordBatch(batch.size(), System.nanoTime() - start);
+
+                for (int i = 0; i < results.length; i++) {
+                    batch.get(i).result.complete(results[i]);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                for (PendingTrade pending : batch) {
+                    pending.result.complete(TradeResult.failed(TradeResult.Status.ERROR));
+                }
+            } finally {
+                batch.clear();
+                requests.clear();
+            }
+        }
+    }
+
+    //Adds queued trades to the batch until it is full or the collection window has passed.
+    private void collect(List<PendingTrade> batch) throws InterruptedException {
+        queue.drainTo(batch, maxBatchSize - batch.size());
+        if (windowNanos <= 0) return;
+
+        long deadline = System.nanoTime() + windowNanos;
+        while (batch.size() < maxBatchSize) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) break;
+
+            PendingTrade next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) break;
+            batch.add(next);
+            queue.drainTo(batch, maxBatchSize - batch.size());
+        }
+    }
+
+    private void recordBatch(int size, long nanos) {
+        batches.increment();
+        trades.add(size);
+        commitNanos.add(nanos);
+        largestBatch.accumulateAndGet(size, Math::max);
+        slowestCommitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Stops taking new trades, commits the ones already queued and stops the committer thread.
+     */
+    public void close() {
+        synchronized (submitLock) {
+            running = false;
+        }
+        try {
+            committer.join(TimeUnit.SECONDS.toMillis(ServerConfig.DRAIN_SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Trades still queued when the committer did not finish in time are rejected, not left waiting.
+        PendingTrade pending;
+        while ((pending = queue.poll()) != null) {
+            pending.result.complete(TradeResult.failed(TradeResult.Status.ERROR));
+        }
+    }
+
+    /**
+     * Returns a one-line summary of batch sizes and commit latency.
+     */
+    public String stats() {
+        long batchCount = batches.sum();
+        long tradeCount = trades.sum();
+        double averageBatch = batchCount == 0 ? 0 : (double) tradeCount / batchCount;
+        double averageCommitMs = batchCount == 0 ? 0 : commitNanos.sum() / 1e6 / batchCount;
+        return "batches=" + batchCount
+                + " trades=" + tradeCount
+                + String.format(" avgBatch=%.1f", averageBatch)
+                + " maxBatch=" + largestBatch.get()
+                + String.format(" avgCommitMs=%.3f", averageCommitMs)
+                + String.format(" maxCommitMs=%.3f", slowestCommitNanos.get() / 1e6);
+    }
+
+    private static class PendingTrade {
+        private final TradeRequest trade;
+        private final CompletableFuture<TradeResult> result = new CompletableFuture<>();
+
+        private PendingTrade(TradeRequest trade) {
+            this.trade = trade;
+        }
+    }
+}
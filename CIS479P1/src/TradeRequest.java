@@ -0,0 +1,57 @@
+/**
+ * TradeRequest - a single BUY or SELL order waiting to be executed by StockDB.
+ * Amount and price are in micros (see Money).
+ */
+public class TradeRequest {
+
+    private final boolean buy;
+    private final String stockSymbol;
+    private final long amount;
+    private final long price;
+    private final int userID;
+
+    public TradeRequest(boolean buy, String stockSymbol, long amount, long price, int userID) {
+        this.buy = buy;
+        this.stockSymbol = stockSymbol;
+        this.amount = amount;
+        this.price = price;
+        this.userID = userID;
+    }
+
+
+    public boolean isBuy() {
+        return buy;
+    }
+
+
+    public String getStockSymbol() {
+        return stockSymbol;
+    }
+
+
+    public long getAmount() {
+        return amount;
+    }
+
+
+    public long getPrice() {
+        return price;
+    }
+
+
+    public int getUserID() {
+        return userID;
+    }
+
+
+    @Override
+    public String toString() {
+        return "TradeRequest{" +
+                "side=" + (buy ? "BUY" : "SELL") +
+                ", stockSymbol='" + stockSymbol + '\'' +
+                ", amount=" + Money.formatQuantity(amount) +
+                ", price=" + Money.formatUsd(price) +
+                ", userID=" + userID +
+                '}';
+    }
+}
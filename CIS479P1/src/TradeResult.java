@@ -0,0 +1,63 @@
+/**
+ * TradeResult - outcome of a BUY or SELL executed by StockDB.
+ * On success it carries the user's new USD balance and the updated position in the traded stock.
+ */
+public class TradeResult {
+
+    public enum Status {
+        OK,
+        USER_NOT_FOUND,
+        NOT_ENOUGH_USD,
+        NOT_ENOUGH_STOCK,
+        ERROR
+    }
+
+    private final Status status;
+    private final long usdBalance;
+    private final Stock position;
+
+    public TradeResult(Status status, long usdBalance, Stock position) {
+        this.status = status;
+        this.usdBalance = usdBalance;
+        this.position = position;
+    }
+
+    public static TradeResult failed(Status status) {
+        return new TradeResult(status, 0, null);
+    }
+
+
+    public Status getStatus() {
+        return status;
+    }
+
+
+    public boolean isOk() {
+        return status == Status.OK;
+    }
+
+
+    public long getUsdBalance() {
+        return usdBalance;
+    }
+
+
+    public long getStockBalance() {
+        return position == null ? 0 : position.getStockBalance();
+    }
+
+
+    public Stock getPosition() {
+        return position;
+    }
+
+
+    @Override
+    public String toString() {
+        return "TradeResult{" +
+                "status=" + status +
+                ", usdBalance=" + Money.formatUsd(usdBalance) +
+                ", position=" + position +
+                '}';
+    }
+}
@@ -4,10 +4,10 @@ public class User {
     private String firstName;
     private String lastName;
     private String userName;
-    private String password;
-    private double balance;
+    private String password; // Plain text or PasswordHash format
+    private volatile long balance; // USD in micros (see Money)
 
-    public User(int id, String email, String firstName, String lastName, String userName, String password, double balance) {
+    public User(int id, String email, String firstName, String lastName, String userName, String password, long balance) {
         this.id = id;
         this.email = email;
         this.firstName = firstName;
@@ -46,11 +46,23 @@ public class User {
         return password;
     }
 
+    public void setPassword(String password) {
+        this.password = password;
+    }
 
-    public double getBalance() {
+
+    public long getBalance() {
         return balance;
     }
 
+    public void setBalance(long balance) {
+        this.balance = balance;
+    }
+
+    public int getId() {
+        return id;
+    }
+
 
     @Override
     public String toString() {
@@ -61,7 +73,7 @@ public class User {
                 ", lastName='" + lastName + '\'' +
                 ", userName='" + userName + '\'' +
                 ", password='" + password + '\'' +
-                ", balance=" + balance +
+                ", balance=" + Money.formatUsd(balance) +
                 '}';
     }
 }
\ No newline at end of file